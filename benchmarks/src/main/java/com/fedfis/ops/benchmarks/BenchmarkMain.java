@@ -0,0 +1,20 @@
+package com.fedfis.ops.benchmarks;
+
+import java.util.Arrays;
+
+/**
+ * JMH's Main with the gc profiler on unless profilers are given, so every run reports allocation per operation
+ */
+public final class BenchmarkMain {
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!Arrays.asList(args).contains("-prof")) {
+            args = Arrays.copyOf(args, args.length + 2);
+            args[args.length - 2] = "-prof";
+            args[args.length - 1] = "gc";
+        }
+        org.openjdk.jmh.Main.main(args);
+    }
+}
@@ -0,0 +1,154 @@
+package com.fedfis.ops.benchmarks;
+
+import com.fedfis.ops.XBRLFiling;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes synthetic FFIEC bulk zips: one zip per source and quarter holding a facsimile for every bank
+ * <p>
+ * Zips go to dir/ubpr and dir/call and are named like the FFIEC bulk downloads; entries are named the way
+ * xbrlPattern expects. UBPR documents use the taxonomy release of their year, so a corpus spanning several years
+ * has several UBPR namespaces. Every fourth bank leaves out every seventh concept, so filings don't all have the
+ * same columns. Output depends only on the arguments, so a corpus can be regenerated identically.
+ * <p>
+ * Usage: CorpusGenerator dir=/tmp/corpus banks=500 concepts=2500 quarters=4 sources=ubpr,call lastQuarter=2021-09-30
+ */
+public class CorpusGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(CorpusGenerator.class.getName());
+    private static final DateTimeFormatter ZIP_DATE = DateTimeFormatter.ofPattern("MMddyyyy");
+    private static final long ENTRY_TIME = LocalDate.of(2021, 1, 1).toEpochDay() * 86_400_000L;
+
+    protected final int banks;
+    protected final int concepts;
+    protected final List<LocalDate> quarters;
+
+    /**
+     * @param banks       Filings per zip
+     * @param concepts    Concepts per filing, besides the identifying ones
+     * @param quarters    Number of quarters, one zip per source each
+     * @param lastQuarter Last quarter end; earlier quarters count back from it
+     */
+    public CorpusGenerator(int banks, int concepts, int quarters, LocalDate lastQuarter) {
+        this.banks = banks;
+        this.concepts = concepts;
+        this.quarters = new ArrayList<>(quarters);
+        for (int q = quarters - 1; q >= 0; q--) {
+            this.quarters.add(lastQuarter.minusMonths(3L * q).with(IsoFields.DAY_OF_QUARTER, 1).plusMonths(3).minusDays(1));
+        }
+    }
+
+    /**
+     * Write the zips for one source
+     *
+     * @param dir    Corpus directory; zips go to dir/source
+     * @param source XBRLFiling.UBPR or XBRLFiling.CALL
+     * @return the zips written
+     */
+    public List<Path> generate(Path dir, String source) throws IOException {
+        final Path sourceDir = Files.createDirectories(dir.resolve(source));
+        final List<String> ubprConcepts = SyntheticXBRL.ubprConcepts(concepts);
+        final List<String> callConcepts = SyntheticXBRL.callConcepts(concepts);
+        final List<Path> zips = new ArrayList<>();
+        for (LocalDate quarter : quarters) {
+            final Path zip = sourceDir.resolve(zipFileName(source, quarter));
+            try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(zip), 1 << 16))) {
+                for (int bank = 0; bank < banks; bank++) {
+                    final int rssd = rssd(bank);
+                    final long seed = quarter.toEpochDay() * 100_003L + bank;
+                    final byte[] document;
+                    final String name;
+                    if (XBRLFiling.UBPR.equals(source)) {
+                        name = SyntheticXBRL.ubprFileName(rssd, quarter);
+                        document = SyntheticXBRL.ubpr(rssd, quarter, reported(ubprConcepts, bank), seed,
+                                SyntheticXBRL.UBPR_VERSION - (quarters.get(quarters.size() - 1).getYear() - quarter.getYear()));
+                    } else {
+                        name = SyntheticXBRL.callFileName(rssd, quarter);
+                        document = SyntheticXBRL.call(rssd, cert(bank), quarter, reported(callConcepts, bank), seed);
+                    }
+                    final ZipEntry entry = new ZipEntry(name);
+                    entry.setTime(ENTRY_TIME);
+                    out.putNextEntry(entry);
+                    out.write(document);
+                    out.closeEntry();
+                }
+            }
+            logger.info("Wrote " + zip + " (" + banks + " banks, " + Files.size(zip) / 1024 + "KB)");
+            zips.add(zip);
+        }
+        return zips;
+    }
+
+    private static List<String> reported(List<String> concepts, int bank) {
+        if (bank % 4 != 3) {
+            return concepts;
+        }
+        final List<String> reported = new ArrayList<>(concepts.size());
+        for (int i = 0; i < concepts.size(); i++) {
+            if (i % 7 != 6) {
+                reported.add(concepts.get(i));
+            }
+        }
+        return reported;
+    }
+
+    /**
+     * Bulk zip name for a source and quarter, as downloaded from the FFIEC CDR
+     */
+    public static String zipFileName(String source, LocalDate quarter) {
+        return XBRLFiling.UBPR.equals(source)
+                ? "FFIEC CDR UBPR XBRL Facsimile All Banks " + quarter.format(ZIP_DATE) + ".zip"
+                : "FFIEC CDR Call Bulk XBRL " + quarter.format(ZIP_DATE) + ".zip";
+    }
+
+    public static int rssd(int bank) {
+        return 10_000 + bank * 37;
+    }
+
+    public static int cert(int bank) {
+        return 1_000 + bank;
+    }
+
+    public List<LocalDate> getQuarters() {
+        return quarters;
+    }
+
+    /**
+     * Parse name=value arguments, as Launcher takes them
+     */
+    public static Map<String, String> options(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            final int equalsAt = arg.indexOf('=');
+            options.put(equalsAt > -1 ? arg.substring(0, equalsAt) : arg, equalsAt > -1 ? arg.substring(equalsAt + 1) : "");
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final Map<String, String> options = options(args);
+        final CorpusGenerator generator = new CorpusGenerator(
+                Integer.parseInt(options.getOrDefault("banks", "500")),
+                Integer.parseInt(options.getOrDefault("concepts", "2500")),
+                Integer.parseInt(options.getOrDefault("quarters", "4")),
+                LocalDate.parse(options.getOrDefault("lastQuarter", "2021-09-30")));
+        final Path dir = Path.of(options.getOrDefault("dir", "corpus"));
+        for (String source : options.getOrDefault("sources", XBRLFiling.UBPR + "," + XBRLFiling.CALL).split(",")) {
+            generator.generate(dir, source.trim());
+        }
+    }
+}
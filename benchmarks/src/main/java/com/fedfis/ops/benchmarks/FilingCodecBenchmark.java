@@ -0,0 +1,105 @@
+package com.fedfis.ops.benchmarks;
+
+import com.fedfis.ops.ConceptDictionary;
+import com.fedfis.ops.XBRLFiling;
+import com.fedfis.ops.XBRLFilingCodec;
+import com.fedfis.ops.XBRLValueClassifier;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moving filings between verticles: the binary event bus codec, and the JSON form used for scratchpad.ubpr rows
+ * <p>
+ * Setup fails unless the benchmarked filing, and one with the decimal forms the classifier can't hold in a long,
+ * come back from the wire with the same values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilingCodecBenchmark {
+    @Param({XBRLFiling.UBPR, XBRLFiling.CALL})
+    public String source;
+
+    @Param({"2500"})
+    public int concepts;
+
+    private final XBRLFilingCodec codec = new XBRLFilingCodec();
+    private XBRLFiling filing;
+    private Buffer wire;
+    private String json;
+
+    @Setup
+    public void setup() throws IOException {
+        filing = XBRLFiling.UBPR.equals(source) ? SyntheticXBRL.ubprFiling(concepts) : SyntheticXBRL.callFiling(concepts);
+        wire = encodeToWire();
+        json = toJson();
+        checkRoundTrip(filing);
+        checkRoundTrip(decimals());
+    }
+
+    @Benchmark
+    public Buffer encodeToWire() {
+        final Buffer buffer = Buffer.buffer();
+        codec.encodeToWire(buffer, filing);
+        return buffer;
+    }
+
+    @Benchmark
+    public XBRLFiling decodeFromWire() {
+        return codec.decodeFromWire(0, wire);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return filing.toJson().encode();
+    }
+
+    @Benchmark
+    public JsonObject fromJson() {
+        return new JsonObject(json);
+    }
+
+    /**
+     * Decimals in exponent form, with negative scales and too long for a long, next to ones that fit, alternately
+     * in USD and without a unit
+     */
+    private XBRLFiling decimals() {
+        final String[] texts = {"12e0", "1.5e1", "-2.5E-3", "1E+3", "123456789012345678901234.5", "-0.000001", "42.125"};
+        final XBRLFiling.Builder builder = XBRLFiling.builder(source, LocalDate.of(2021, 9, 30), "decimals.xml");
+        final ConceptDictionary dictionary = builder.getDictionary();
+        final XBRLValueClassifier classifier = new XBRLValueClassifier();
+        for (int t = 0; t < texts.length; t++) {
+            classifier.classify(texts[t]);
+            builder.add(dictionary.idOf("ROUNDTRIP" + t), classifier, ConceptDictionary.divisorFor(t % 2 == 0 ? "USD" : null));
+        }
+        return builder.build();
+    }
+
+    private void checkRoundTrip(XBRLFiling expected) {
+        final Buffer buffer = Buffer.buffer();
+        codec.encodeToWire(buffer, expected);
+        final XBRLFiling decoded = codec.decodeFromWire(0, buffer);
+        if (decoded.size() != expected.size()) {
+            throw new IllegalStateException(expected.getPath() + " decoded with " + decoded.size() + " of " + expected.size() + " facts");
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            final int at = decoded.indexOf(expected.conceptId(i));
+            final Object value = decoded.value(at);
+            if (!Objects.equals(value, expected.value(i))) {
+                throw new IllegalStateException(expected.name(i) + " decoded as " + value + ", not " + expected.value(i));
+            }
+            if (decoded.divisor(at) != expected.divisor(i)) {
+                throw new IllegalStateException(expected.name(i) + " decoded with divisor " + decoded.divisor(at) + ", not " + expected.divisor(i));
+            }
+        }
+    }
+}
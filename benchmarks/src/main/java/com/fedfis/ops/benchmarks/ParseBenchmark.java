@@ -0,0 +1,74 @@
+package com.fedfis.ops.benchmarks;
+
+import com.fedfis.ops.CALLPublishingVisitor;
+import com.fedfis.ops.UBPRPublishingVisitor;
+import com.fedfis.ops.XBRLFiling;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getEntries() for one UBPR and one call report document: Woodstox parsing, namespace and context filtering,
+ * value classification and building the XBRLFiling
+ * <p>
+ * Documents are read from a temporary directory rather than a zip, so this measures parsing and not inflating.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"500", "2500"})
+    public int concepts;
+
+    private Path dir;
+    private Path ubprPath;
+    private Path callPath;
+    private UBPRPublishingVisitor ubpr;
+    private CALLPublishingVisitor call;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("xbrl-bench");
+        ubprPath = SyntheticXBRL.write(dir, SyntheticXBRL.ubprFileName(SyntheticXBRL.RSSD, SyntheticXBRL.REPORTED_ON),
+                SyntheticXBRL.ubpr(SyntheticXBRL.RSSD, SyntheticXBRL.REPORTED_ON, SyntheticXBRL.ubprConcepts(concepts), 1L));
+        callPath = SyntheticXBRL.write(dir, SyntheticXBRL.callFileName(SyntheticXBRL.RSSD, SyntheticXBRL.REPORTED_ON),
+                SyntheticXBRL.call(SyntheticXBRL.RSSD, SyntheticXBRL.CERT, SyntheticXBRL.REPORTED_ON, SyntheticXBRL.callConcepts(concepts), 1L));
+        final PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher("glob:*.xml");
+        ubpr = new UBPRPublishingVisitor(pathMatcher, null, "benchmark");
+        call = new CALLPublishingVisitor(pathMatcher, null, "benchmark");
+        // a generator or extractor change that drops facts would make the numbers meaningless
+        check(ubprGetEntries(), concepts + 2);
+        check(callGetEntries(), concepts + 3);
+    }
+
+    private static void check(XBRLFiling filing, int expected) {
+        if (filing.size() != expected) {
+            throw new IllegalStateException(filing.getPath() + " has " + filing.size() + " facts, expected " + expected);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(ubprPath);
+        Files.deleteIfExists(callPath);
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public XBRLFiling ubprGetEntries() {
+        return ubpr.getEntries(ubprPath, SyntheticXBRL.REPORTED_ON);
+    }
+
+    @Benchmark
+    public XBRLFiling callGetEntries() {
+        return call.getEntries(callPath, SyntheticXBRL.REPORTED_ON);
+    }
+}
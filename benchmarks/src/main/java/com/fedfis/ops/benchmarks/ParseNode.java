@@ -0,0 +1,36 @@
+package com.fedfis.ops.benchmarks;
+
+import com.fedfis.ops.ImportMetrics;
+import com.fedfis.ops.XBRLFilingCodec;
+import com.fedfis.ops.XBRLParseVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A parse-only cluster node, as Launcher runs it with "cluster parse"; PipelineHarness starts these as child JVMs
+ * <p>
+ * Usage: ParseNode cluster=127.0.0.1 parseInstances=2, with -Dvertx.hazelcast.config naming the cluster config.
+ * Prints READY on stdout once its parse verticles are deployed, and runs until killed.
+ */
+public class ParseNode {
+    public static final String READY = "READY";
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = CorpusGenerator.options(args);
+        final VertxOptions vertxOptions = new VertxOptions().setMetricsOptions(ImportMetrics.enable())
+                .setClusterManager(new HazelcastClusterManager());
+        vertxOptions.getEventBusOptions().setHost(options.getOrDefault("cluster", "127.0.0.1"));
+        final Vertx vertx = Vertx.clusteredVertx(vertxOptions).toCompletionStage().toCompletableFuture().get(120, TimeUnit.SECONDS);
+        XBRLFilingCodec.register(vertx);
+        vertx.deployVerticle(XBRLParseVerticle::new, new DeploymentOptions().setWorker(true)
+                .setInstances(Integer.parseInt(options.getOrDefault("parseInstances", "1"))))
+                .toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+        System.out.println(READY);
+        System.out.flush();
+    }
+}
@@ -0,0 +1,340 @@
+package com.fedfis.ops.benchmarks;
+
+import com.fedfis.ops.ImportMetrics;
+import com.fedfis.ops.ArrowExportVerticle;
+import com.fedfis.ops.Launcher;
+import com.fedfis.ops.QuarterFile;
+import com.fedfis.ops.QuarterFileVerticle;
+import com.fedfis.ops.XBRLFiling;
+import com.fedfis.ops.XBRLFilingCodec;
+import com.fedfis.ops.XBRLImportConfig;
+import com.fedfis.ops.XBRLParseVerticle;
+import com.fedfis.ops.XBRLSourceVerticle;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs the import pipeline end to end against a synthetic corpus and stand-in sinks, and reports throughput
+ * <p>
+ * Zips are published with Launcher.publishZips() to StandInSinkVerticles, which walk and parse them as the real
+ * sinks do and record what they are sent. The run ends when every sink has acknowledged the flush of every zip.
+ * Reports files/sec and facts/sec over the delivered filings, end-to-end time, peak heap (sampled every 20ms) and
+ * GC time, plus mean parse, zip open and batch write times from ImportMetrics, and fails if a sink is missing a
+ * filing or got one twice. With metricsPort set the Prometheus endpoint is served during the run.
+ * <p>
+ * Usage: PipelineHarness corpus=/tmp/corpus banks=500 concepts=2500 quarters=4 sources=ubpr,call sinks=1
+ * batchLatencyMs=20 rowLatencyMicros=0 batchSize=500 parserWorkers=1 zipWorkers=1 metricsPort=0 parseNodes=0
+ * parseInstances=1 remoteParse=true fanOut=true quarterPath= replay=false arrowPath=
+ * <p>
+ * Entries are parsed by parseInstances XBRLParseVerticles deployed in the harness JVM, as Launcher does by default,
+ * and sinkCredits bounds how far they run ahead of the sinks. With parseNodes set the harness joins a cluster on
+ * 127.0.0.1 instead, configured by conf/cluster-local.xml unless vertx.hazelcast.config says otherwise, and starts
+ * that many ParseNode JVMs with parseInstances parse verticles each; parse times are then recorded on those JVMs.
+ * With remoteParse=false and no parseNodes the sinks parse in process on parserWorkers threads.
+ * <p>
+ * The sinks register with one XBRLSourceVerticle per source, which parses each zip once for all of them and spools
+ * filings for a sink that runs out of credits, as Launcher deploys them by default; with fanOut=false each sink walks
+ * and parses every zip itself.
+ * <p>
+ * With quarterPath set a QuarterFileVerticle per source also keeps every parsed quarter there, and the run waits for
+ * its files to be committed. With replay=true the quarter files already in quarterPath are published instead of the
+ * zips, so the sinks are loaded without parsing any XBRL. With arrowPath set an ArrowExportVerticle per source
+ * exports every quarter there as well, and the run waits for its exports.
+ * <p>
+ * The corpus is generated with CorpusGenerator unless corpus already holds zips for a source. Other name=value
+ * arguments are passed to the sinks as config, e.g. zipQueueSize.
+ */
+public class PipelineHarness {
+    private static final Logger logger = LoggerFactory.getLogger(PipelineHarness.class.getName());
+    private static final String URI_ADDRESS = "xbrl.uri.listen";
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = CorpusGenerator.options(args);
+        final int banks = Integer.parseInt(options.getOrDefault("banks", "500"));
+        final int concepts = Integer.parseInt(options.getOrDefault("concepts", "2500"));
+        final int quarters = Integer.parseInt(options.getOrDefault("quarters", "4"));
+        final int sinksPerSource = Integer.parseInt(options.getOrDefault("sinks", "1"));
+        final long batchLatencyMs = Long.parseLong(options.getOrDefault("batchLatencyMs", "20"));
+        final long rowLatencyMicros = Long.parseLong(options.getOrDefault("rowLatencyMicros", "0"));
+        final int batchSize = Integer.parseInt(options.getOrDefault("batchSize", "500"));
+        final Path corpus = Path.of(options.getOrDefault("corpus", "corpus"));
+        final List<String> sources = new ArrayList<>();
+        for (String source : options.getOrDefault("sources", XBRLFiling.UBPR + "," + XBRLFiling.CALL).split(",")) {
+            sources.add(source.trim());
+        }
+
+        final JsonObject config = new JsonObject();
+        options.forEach((name, value) -> config.put(name, value.matches("-?\\d+") ? (Object) Integer.valueOf(value)
+                : value.equals("true") || value.equals("false") ? (Object) Boolean.valueOf(value) : value));
+        final boolean fanOut = config.getBoolean(XBRLImportConfig.CFG_FANOUT, true);
+        config.put(XBRLImportConfig.CFG_FANOUT, fanOut);
+        final String quarterPath = config.getString(XBRLImportConfig.CFG_QUARTERPATH);
+        final boolean replay = config.getBoolean("replay", false);
+
+        // corpus
+        final long generateStart = System.nanoTime();
+        final CorpusGenerator generator = new CorpusGenerator(banks, concepts, quarters, LocalDate.parse(options.getOrDefault("lastQuarter", "2021-09-30")));
+        final Map<String, List<Path>> zips = new LinkedHashMap<>();
+        for (String source : sources) {
+            List<Path> existing = list(corpus.resolve(source));
+            if (existing.isEmpty()) {
+                existing = generator.generate(corpus, source);
+            } else {
+                logger.info("Using " + existing.size() + " existing " + source + " zips in " + corpus.resolve(source));
+            }
+            if (replay) {
+                existing = list(Path.of(quarterPath), source + "-", QuarterFile.EXTENSION);
+                if (existing.isEmpty()) {
+                    throw new IOException("No " + source + " quarter files to replay in " + quarterPath);
+                }
+                logger.info("Replaying " + existing.size() + " " + source + " quarter files from " + quarterPath);
+            }
+            zips.put(source, existing);
+            config.put(XBRLFiling.UBPR.equals(source) ? "ubprPath" : "callPath", corpus.resolve(source).toAbsolutePath().toString());
+        }
+        final long generateMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - generateStart);
+
+        final int parseNodes = Integer.parseInt(options.getOrDefault("parseNodes", "0"));
+        final List<Process> nodes = new ArrayList<>();
+        final Vertx vertx;
+        if (parseNodes > 0) {
+            System.setProperty("vertx.hazelcast.config", System.getProperty("vertx.hazelcast.config", "conf/cluster-local.xml"));
+            for (int n = 0; n < parseNodes; n++) {
+                nodes.add(startParseNode(options.getOrDefault("parseInstances", "1")));
+            }
+            final VertxOptions vertxOptions = new VertxOptions().setMetricsOptions(ImportMetrics.enable())
+                    .setClusterManager(new HazelcastClusterManager());
+            vertxOptions.getEventBusOptions().setHost("127.0.0.1");
+            vertx = Vertx.clusteredVertx(vertxOptions).toCompletionStage().toCompletableFuture().get(120, TimeUnit.SECONDS);
+            for (Process node : nodes) {
+                awaitReady(node);
+            }
+            logger.info(parseNodes + " parse nodes ready");
+        } else {
+            vertx = Vertx.vertx(new VertxOptions().setMetricsOptions(ImportMetrics.enable()));
+        }
+        final boolean localParse = parseNodes == 0 && config.getBoolean(XBRLImportConfig.CFG_REMOTEPARSE, true);
+        config.put(XBRLImportConfig.CFG_REMOTEPARSE, parseNodes > 0 || localParse);
+        XBRLFilingCodec.register(vertx);
+        boolean complete;
+        try {
+            ImportMetrics.serve(vertx, Integer.parseInt(options.getOrDefault("metricsPort", "0"))).toCompletionStage().toCompletableFuture().get();
+
+            // sinks, one zip channel each as Launcher sets them up
+            final List<StandInSinkVerticle> sinks = new ArrayList<>();
+            final List<Future> deployments = new ArrayList<>();
+            for (String source : sources) {
+                for (int s = 0; s < sinksPerSource; s++) {
+                    final StandInSinkVerticle sink = new StandInSinkVerticle(URI_ADDRESS + ".standin-" + source + "-" + s,
+                            source, batchLatencyMs, rowLatencyMicros, batchSize);
+                    sinks.add(sink);
+                    deployments.add(vertx.deployVerticle(sink, new DeploymentOptions().setConfig(config)));
+                }
+            }
+            // quarter and Arrow sinks by zip channel, to the source they take
+            final Map<String, String> quarterSinks = new LinkedHashMap<>();
+            for (String source : sources) {
+                if (quarterPath != null && !replay) {
+                    quarterSinks.put(URI_ADDRESS + ".quarters." + source, source);
+                    deployments.add(vertx.deployVerticle(new QuarterFileVerticle(URI_ADDRESS + ".quarters." + source, source),
+                            new DeploymentOptions().setConfig(config)));
+                }
+                if (config.getString(XBRLImportConfig.CFG_ARROWPATH) != null) {
+                    quarterSinks.put(URI_ADDRESS + ".arrow." + source, source);
+                    deployments.add(vertx.deployVerticle(new ArrowExportVerticle(URI_ADDRESS + ".arrow." + source, source),
+                            new DeploymentOptions().setConfig(config)));
+                }
+            }
+            if (localParse) {
+                deployments.add(vertx.deployVerticle(XBRLParseVerticle::new, new DeploymentOptions().setConfig(config).setWorker(true)
+                        .setInstances(Integer.parseInt(options.getOrDefault("parseInstances", "1")))));
+            }
+            CompositeFuture.all(deployments).toCompletionStage().toCompletableFuture().get();
+            if (fanOut) {
+                // one parse stage per source, taking the zips for all of its sinks
+                final List<Future> sourceDeployments = new ArrayList<>();
+                for (String source : sources) {
+                    sourceDeployments.add(vertx.deployVerticle(new XBRLSourceVerticle(URI_ADDRESS + "." + source, source),
+                            new DeploymentOptions().setConfig(config)));
+                }
+                CompositeFuture.all(sourceDeployments).toCompletionStage().toCompletableFuture().get();
+            }
+
+            final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            System.gc();
+            final long heapBefore = memory.getHeapMemoryUsage().getUsed();
+            final long gcBefore = gcMillis();
+            final long[] peakHeap = {heapBefore};
+            final Promise<Void> finished = Promise.promise();
+            final long start = System.nanoTime();
+
+            vertx.getOrCreateContext().runOnContext(v -> {
+                final List<Future> published = new ArrayList<>();
+                for (String source : sources) {
+                    final List<String> channels = new ArrayList<>();
+                    if (fanOut) {
+                        channels.add(URI_ADDRESS + "." + source);
+                    } else {
+                        sinks.stream().filter(sink -> sink.getSource().equals(source)).forEach(sink -> channels.add(sink.getBusAddress()));
+                        quarterSinks.forEach((channel, of) -> {
+                            if (of.equals(source)) {
+                                channels.add(channel);
+                            }
+                        });
+                    }
+                    try {
+                        published.add(replay ? Launcher.publishQuarters(vertx, quarterPath, source, channels)
+                                : Launcher.publishZips(vertx, config.getString(XBRLFiling.UBPR.equals(source) ? "ubprPath" : "callPath"), channels));
+                    } catch (IOException e) {
+                        finished.tryFail(e);
+                    }
+                }
+                CompositeFuture.all(published).onFailure(finished::tryFail);
+                vertx.setPeriodic(20L, timer -> {
+                    peakHeap[0] = Math.max(peakHeap[0], memory.getHeapMemoryUsage().getUsed());
+                    // each zip is one quarter, so a quarter file is committed for every zip
+                    if (sinks.stream().allMatch(sink -> sink.flushes() >= zips.get(sink.getSource()).size())
+                            && quarterSinks.entrySet().stream().allMatch(sink -> quarterCommits(sink.getKey()) >= zips.get(sink.getValue()).size())) {
+                        vertx.cancelTimer(timer);
+                        finished.tryComplete();
+                    }
+                });
+            });
+            finished.future().toCompletionStage().toCompletableFuture().get();
+            final long elapsedMs = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            report(sinks, zips, banks, generateMs, elapsedMs, peakHeap[0], heapBefore, gcMillis() - gcBefore);
+            complete = sinks.stream().allMatch(sink -> sink.filings() == (long) banks * zips.get(sink.getSource()).size() && sink.duplicates() == 0);
+        } finally {
+            vertx.close().toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+            nodes.forEach(Process::destroy);
+        }
+        if (!complete) {
+            logger.error("A sink is missing filings or got some twice");
+            System.exit(1);
+        }
+    }
+
+    private static void report(List<StandInSinkVerticle> sinks, Map<String, List<Path>> zips, int banks,
+                               long generateMs, long elapsedMs, long peakHeap, long heapBefore, long gcMs) {
+        long filings = 0;
+        long facts = 0;
+        for (StandInSinkVerticle sink : sinks) {
+            filings += sink.filings();
+            facts += sink.facts();
+            logger.info(String.format("  %-40s %8d filings %12d facts %6d batches %4d zips %d duplicates",
+                    sink.getBusAddress(), sink.filings(), sink.facts(), sink.batches(), sink.flushes(), sink.duplicates()));
+        }
+        final Set<String> distinct = new HashSet<>();
+        sinks.forEach(sink -> distinct.addAll(sink.stored()));
+        final int zipCount = zips.values().stream().mapToInt(List::size).sum();
+        logger.info("Corpus:      " + zipCount + " zips, " + distinct.size() + " distinct filings (" + banks + " banks per zip), generated or found in " + generateMs + "ms");
+        logger.info("End to end:  " + elapsedMs + "ms");
+        logger.info(String.format("Files/sec:   %.1f (%d filings delivered to %d sinks)", filings * 1000.0 / elapsedMs, filings, sinks.size()));
+        logger.info(String.format("Facts/sec:   %.0f (%d facts)", facts * 1000.0 / elapsedMs, facts));
+        logger.info(String.format("Peak heap:   %dMB (%dMB before the run, max %dMB)", peakHeap >> 20, heapBefore >> 20, Runtime.getRuntime().maxMemory() >> 20));
+        logger.info("GC time:     " + gcMs + "ms");
+        for (Timer timer : ImportMetrics.registry().find("xbrl.entry.parse").timers()) {
+            if (timer.count() == 0) {
+                continue;
+            }
+            logger.info(String.format("Parse:       %s %.2fms mean, %.0fms total", timer.getId().getTag("source"),
+                    timer.mean(TimeUnit.MILLISECONDS), timer.totalTime(TimeUnit.MILLISECONDS)));
+        }
+        for (Timer timer : ImportMetrics.registry().find("xbrl.zip.open").timers()) {
+            logger.info(String.format("Zip open:    %s %.2fms mean", timer.getId().getTag("sink"), timer.mean(TimeUnit.MILLISECONDS)));
+        }
+        for (Timer timer : ImportMetrics.registry().find("xbrl.quarter.commit").timers()) {
+            logger.info(String.format("Quarter:     %s %.2fms mean commit over %d files", timer.getId().getTag("sink"),
+                    timer.mean(TimeUnit.MILLISECONDS), timer.count()));
+        }
+        for (Timer timer : ImportMetrics.registry().find("xbrl.arrow.export").timers()) {
+            logger.info(String.format("Arrow:       %s %.2fms mean export over %d quarters", timer.getId().getTag("source"),
+                    timer.mean(TimeUnit.MILLISECONDS), timer.count()));
+        }
+        for (Timer timer : ImportMetrics.registry().find("xbrl.batch.latency").tag("outcome", "success").timers()) {
+            logger.info(String.format("Batch write: %s %.2fms mean over %d batches", timer.getId().getTag("flusher"),
+                    timer.mean(TimeUnit.MILLISECONDS), timer.count()));
+        }
+    }
+
+    /**
+     * Start a ParseNode JVM on this classpath; its log goes to our stderr
+     */
+    private static Process startParseNode(String parseInstances) throws IOException {
+        final String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "-Dvertx.hazelcast.config=" + System.getProperty("vertx.hazelcast.config"),
+                ParseNode.class.getName(), "cluster=127.0.0.1", "parseInstances=" + parseInstances)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    private static void awaitReady(Process node) throws IOException {
+        final BufferedReader out = new BufferedReader(new InputStreamReader(node.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = out.readLine()) != null) {
+            if (line.equals(ParseNode.READY)) {
+                return;
+            }
+        }
+        throw new IOException("Parse node exited with " + node.onExit().join().exitValue());
+    }
+
+    private static long quarterCommits(String sink) {
+        final Timer commits = ImportMetrics.registry().find("xbrl.quarter.commit").tag("sink", sink).timer();
+        return commits == null ? 0 : commits.count();
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        return list(dir, "", ".zip");
+    }
+
+    private static List<Path> list(Path dir, String prefix, String extension) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            final List<Path> zips = new ArrayList<>();
+            files.filter(f -> f.getFileName().toString().startsWith(prefix) && f.getFileName().toString().endsWith(extension))
+                    .sorted().forEach(zips::add);
+            return zips;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.fedfis.ops.benchmarks;
+
+import com.fedfis.ops.IntIntMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving a quarter's worth of RSSD ids to fisweb ids, through a boxed HashMap as the fisweb sink used to and
+ * through the IntIntMap RssdCertCache keeps per quarter
+ * <p>
+ * RSSD ids are spread over the real range of up to seven digits; one in twenty lookups misses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RssdLookupBenchmark {
+    @Param({"5000"})
+    public int banks;
+
+    private int[] lookups;
+    private Map<Integer, Integer> boxed;
+    private IntIntMap primitive;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(42);
+        lookups = new int[banks];
+        boxed = new HashMap<>(banks);
+        primitive = new IntIntMap(banks);
+        for (int b = 0; b < banks; b++) {
+            final int rssd = 1 + random.nextInt(9_999_999);
+            lookups[b] = b % 20 == 0 ? -rssd : rssd;
+            boxed.put(rssd, b);
+            primitive.put(rssd, b);
+        }
+    }
+
+    @Benchmark
+    public long boxedHashMap() {
+        long sum = 0;
+        for (int rssd : lookups) {
+            final Integer id = boxed.get(rssd);
+            sum += id == null ? -1 : id;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long intIntMap() {
+        long sum = 0;
+        for (int rssd : lookups) {
+            sum += primitive.get(rssd, -1);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,88 @@
+package com.fedfis.ops.benchmarks;
+
+import com.fedfis.ops.FiswebCALLImportVerticle;
+import com.fedfis.ops.FiswebSchemaCatalog;
+import com.fedfis.ops.FiswebUBPRImportVerticle;
+import com.fedfis.ops.IntIntMap;
+import com.fedfis.ops.XBRLFiling;
+import io.vertx.sqlclient.Tuple;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building fisweb UPDATE statements and their Tuples from parsed filings, and generating table names
+ * <p>
+ * The verticles are constructed but not deployed; generateUpdate() and generateTable() don't need Vert.x, and the
+ * table schemas stand in for what FiswebSchemaCatalog reads from information_schema.
+ * UBPR updates every concept in the filing, as for a b table holding all UBPR columns; the call report updates the
+ * columns fisweb imports today. ubprGenerateUpdateChanged updates a tenth of the columns, as with
+ * fiswebChangedColumnsOnly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SqlGenerationBenchmark {
+    @Param({"500", "2500"})
+    public int concepts;
+
+    private FiswebUBPRImportVerticle ubprVerticle;
+    private FiswebCALLImportVerticle callVerticle;
+    private XBRLFiling ubpr;
+    private XBRLFiling call;
+    private List<String> ubprColumns;
+    private FiswebSchemaCatalog.TableSchema ubprTable;
+    private FiswebSchemaCatalog.TableSchema callTable;
+    private BitSet changed;
+    private IntIntMap idrssd;
+
+    @Setup
+    public void setup() throws IOException {
+        ubprVerticle = new FiswebUBPRImportVerticle("benchmark.ubpr");
+        callVerticle = new FiswebCALLImportVerticle("benchmark.call");
+        ubpr = SyntheticXBRL.ubprFiling(concepts);
+        call = SyntheticXBRL.callFiling(concepts);
+        ubprColumns = SyntheticXBRL.ubprConcepts(concepts);
+        ubprTable = new FiswebSchemaCatalog.TableSchema(ubprVerticle.generateTable("b", "b", SyntheticXBRL.REPORTED_ON), ubprColumns);
+        callTable = new FiswebSchemaCatalog.TableSchema(callVerticle.generateTable("b", "b", SyntheticXBRL.REPORTED_ON), SyntheticXBRL.callConcepts(15));
+        changed = new BitSet(ubprColumns.size());
+        for (int c = 0; c < ubprColumns.size(); c += 10) {
+            changed.set(c);
+        }
+        idrssd = new IntIntMap(1);
+        idrssd.put(SyntheticXBRL.RSSD, SyntheticXBRL.CERT);
+    }
+
+    @Benchmark
+    public void ubprGenerateUpdate(Blackhole blackhole) {
+        final Tuple t = Tuple.tuple();
+        blackhole.consume(ubprVerticle.generateUpdate(ubprTable, ubpr, idrssd.get(SyntheticXBRL.RSSD, -1), t));
+        blackhole.consume(t);
+    }
+
+    @Benchmark
+    public void ubprGenerateUpdateChanged(Blackhole blackhole) {
+        final Tuple t = Tuple.tuple();
+        blackhole.consume(ubprVerticle.generateUpdate(ubprTable, ubpr, idrssd.get(SyntheticXBRL.RSSD, -1), t, changed));
+        blackhole.consume(t);
+    }
+
+    @Benchmark
+    public void callGenerateUpdate(Blackhole blackhole) {
+        final Tuple t = Tuple.tuple();
+        blackhole.consume(callVerticle.generateUpdate(callTable, call, SyntheticXBRL.CERT, t));
+        blackhole.consume(t);
+    }
+
+    @Benchmark
+    public String generateTable() {
+        return ubprVerticle.generateTable("b", "b", SyntheticXBRL.REPORTED_ON);
+    }
+}
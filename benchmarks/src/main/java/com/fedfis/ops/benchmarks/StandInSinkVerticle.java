@@ -0,0 +1,159 @@
+package com.fedfis.ops.benchmarks;
+
+import com.fedfis.ops.BatchFlusher;
+import com.fedfis.ops.CALLPublishingVisitor;
+import com.fedfis.ops.UBPRPublishingVisitor;
+import com.fedfis.ops.XBRLFiling;
+import com.fedfis.ops.XBRLImportVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sink that stores nothing: it records the filings sent to it and acknowledges flushes after a simulated write
+ * <p>
+ * Filings are batched through a BatchFlusher as the real sinks batch rows. A batch "commits" batchLatencyMs plus
+ * rowLatencyMicros per filing after it is written, so database latency and backpressure can be modelled without a
+ * database. Counters may be read from any thread.
+ */
+public class StandInSinkVerticle extends XBRLImportVerticle {
+    private static final Logger logger = LoggerFactory.getLogger(StandInSinkVerticle.class.getName());
+
+    protected final String source;
+    protected final long batchLatencyMs;
+    protected final long rowLatencyMicros;
+    protected final int batchSize;
+
+    private final AtomicLong filings = new AtomicLong();
+    private final AtomicLong facts = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final Set<String> stored = ConcurrentHashMap.newKeySet();
+    private BatchFlusher<XBRLFiling> flusher;
+
+    /**
+     * @param busAddress       Zip channel
+     * @param source           XBRLFiling.UBPR or XBRLFiling.CALL
+     * @param batchLatencyMs   Simulated commit time of a batch
+     * @param rowLatencyMicros Simulated time added per filing in a batch
+     * @param batchSize        Initial batch size
+     */
+    public StandInSinkVerticle(String busAddress, String source, long batchLatencyMs, long rowLatencyMicros, int batchSize) {
+        super(busAddress);
+        this.source = source;
+        this.batchLatencyMs = batchLatencyMs;
+        this.rowLatencyMicros = rowLatencyMicros;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    protected SimpleFileVisitor<Path> getPublishingVisitor() {
+        final PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher("glob:/**.xml");
+        return XBRLFiling.UBPR.equals(source)
+                ? new UBPRPublishingVisitor(pathMatcher, vertx.eventBus(), listenerAddress)
+                : new CALLPublishingVisitor(pathMatcher, vertx.eventBus(), listenerAddress);
+    }
+
+    @Override
+    public void start(Promise<Void> p) {
+        flusher = new BatchFlusher<>(vertx, busAddress, this::write, batchSize, Math.max(1, batchSize / 10),
+                batchSize * 10, 4, 1000L, 0);
+        vertx.eventBus().<XBRLFiling>localConsumer(listenerAddress, message -> {
+            final XBRLFiling filing = message.body();
+            if (filing.isFlush()) {
+                flusher.flush()
+                        .onSuccess(v -> {
+                            flushes.incrementAndGet();
+                            message.reply(null);
+                        })
+                        .onFailure(fail -> message.fail(500, fail.toString()));
+            } else {
+                filingConsumed();
+                flusher.add(filing);
+            }
+        });
+        listenForZips();
+        p.complete();
+    }
+
+    @Override
+    protected int writerBacklog() {
+        return flusher == null ? 0 : flusher.backlog();
+    }
+
+    private Future<Void> write(List<XBRLFiling> batch) {
+        final Promise<Void> written = Promise.promise();
+        final long delayMs = batchLatencyMs + rowLatencyMicros * batch.size() / 1000L;
+        if (delayMs < 1) {
+            record(batch);
+            written.complete();
+        } else {
+            vertx.setTimer(delayMs, t -> {
+                record(batch);
+                written.complete();
+            });
+        }
+        return written.future();
+    }
+
+    private void record(List<XBRLFiling> batch) {
+        for (XBRLFiling filing : batch) {
+            if (!stored.add(filing.getPath())) {
+                duplicates.incrementAndGet();
+                logger.warn(busAddress + " got " + filing.getPath() + " twice");
+            }
+            facts.addAndGet(filing.size());
+        }
+        filings.addAndGet(batch.size());
+        batches.incrementAndGet();
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getBusAddress() {
+        return busAddress;
+    }
+
+    public long filings() {
+        return filings.get();
+    }
+
+    public long facts() {
+        return facts.get();
+    }
+
+    public long batches() {
+        return batches.get();
+    }
+
+    /**
+     * Zips whose flush has been acknowledged
+     */
+    public long flushes() {
+        return flushes.get();
+    }
+
+    public long duplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Paths of the XBRL documents stored
+     */
+    public Set<String> stored() {
+        return stored;
+    }
+}
@@ -0,0 +1,208 @@
+package com.fedfis.ops.benchmarks;
+
+import com.fedfis.ops.CALLPublishingVisitor;
+import com.fedfis.ops.UBPRPublishingVisitor;
+import com.fedfis.ops.XBRLFiling;
+import com.fedfis.ops.XBRLImportConfig;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Synthetic FFIEC XBRL instance documents shaped like the ones in the bulk download zips
+ * <p>
+ * Each document has a context for the report date and one for the same date a year earlier, with prior-year
+ * comparatives for half of the numeric concepts, as UBPR and call report facsimiles do. Facts are mostly USD
+ * amounts, then PURE ratios, a few amounts too large for an int, booleans and strings. UBPR concepts are split
+ * across the Concepts and SourceConcepts namespaces. Values are drawn from a seeded Random, so runs are repeatable.
+ */
+public final class SyntheticXBRL {
+    public static final int UBPR_VERSION = 122;
+    public static final String CALL_CONCEPTS = "http://www.ffiec.gov/xbrl/call/concepts";
+    public static final LocalDate REPORTED_ON = LocalDate.of(2021, 9, 30);
+    public static final int RSSD = 480228;
+    public static final int CERT = 3510;
+    private static final String[] CALL_PREFIXES = {"RCON", "RCFD", "RIAD", "RCFN"};
+    private static final DateTimeFormatter FILE_DATE = DateTimeFormatter.ofPattern("MMddyyyy");
+    private static final DateTimeFormatter CALL_DATE = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private SyntheticXBRL() {
+    }
+
+    /**
+     * File name of a UBPR facsimile as found in the UBPR bulk zips
+     */
+    public static String ubprFileName(int rssd, LocalDate reportedOn) {
+        return "FFIEC CDR UBPR Facsimile " + rssd + "(ID RSSD) " + reportedOn.format(FILE_DATE) + ".XBRL.xml";
+    }
+
+    /**
+     * File name of a call report facsimile as found in the call report bulk zips
+     */
+    public static String callFileName(int rssd, LocalDate reportedOn) {
+        return "FFIEC CDR Call Facsimile " + rssd + "(ID RSSD) " + reportedOn.format(FILE_DATE) + ".XBRL.xml";
+    }
+
+    /**
+     * UBPR concept names, e.g. UBPRA000, UBPRA001, ...
+     */
+    public static List<String> ubprConcepts(int count) {
+        final List<String> concepts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            concepts.add(String.format("UBPR%c%03d", 'A' + (i / 1000) % 26, i % 1000));
+        }
+        return concepts;
+    }
+
+    /**
+     * Call report concept names, starting with the RIADB947-RIADB961 columns fisweb imports
+     */
+    public static List<String> callConcepts(int count) {
+        final List<String> concepts = new ArrayList<>(count);
+        for (int i = 947; i <= 961 && concepts.size() < count; i++) {
+            concepts.add("RIADB" + i);
+        }
+        for (int i = 0; concepts.size() < count; i++) {
+            concepts.add(String.format("%s%c%03d", CALL_PREFIXES[i % CALL_PREFIXES.length], 'C' + (i / 4000) % 24, (i / 4) % 1000));
+        }
+        return concepts;
+    }
+
+    /**
+     * A UBPR facsimile with RSSD9001, UBPR9999 and a fact for every concept
+     */
+    public static byte[] ubpr(int rssd, LocalDate reportedOn, List<String> concepts, long seed) {
+        return ubpr(rssd, reportedOn, concepts, seed, UBPR_VERSION);
+    }
+
+    /**
+     * A UBPR facsimile in the namespaces of UBPR taxonomy release v&lt;version&gt;
+     */
+    public static byte[] ubpr(int rssd, LocalDate reportedOn, List<String> concepts, long seed, int version) {
+        final String taxonomy = "http://www.cdr.ffiec.gov/xbrl/ubpr/v" + version;
+        final StringBuilder xml = header(rssd, reportedOn, "xmlns:uc=\"" + taxonomy + "/Concepts\" xmlns:usc=\"" + taxonomy + "/SourceConcepts\"");
+        final String current = context(rssd, reportedOn);
+        fact(xml, "uc", XBRLImportConfig.RSSD_9001, current, null, null, Integer.toString(rssd));
+        fact(xml, "uc", XBRLImportConfig.UBPR_9999, current, null, null, reportedOn.format(DateTimeFormatter.ISO_DATE));
+        facts(xml, rssd, reportedOn, concepts, i -> i % 4 == 3 ? "usc" : "uc", new Random(seed));
+        return xml.append("</xbrl>\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A call report facsimile with RSSD9001, RSSD9050, RCON9999 and a fact for every concept
+     */
+    public static byte[] call(int rssd, int cert, LocalDate reportedOn, List<String> concepts, long seed) {
+        final StringBuilder xml = header(rssd, reportedOn, "xmlns:cc=\"" + CALL_CONCEPTS + "\"");
+        final String current = context(rssd, reportedOn);
+        fact(xml, "cc", XBRLImportConfig.RSSD_9001, current, null, null, Integer.toString(rssd));
+        fact(xml, "cc", XBRLImportConfig.RSSD_9050, current, null, null, Integer.toString(cert));
+        fact(xml, "cc", XBRLImportConfig.RCON_9999, current, null, null, reportedOn.format(CALL_DATE));
+        facts(xml, rssd, reportedOn, concepts, i -> "cc", new Random(seed));
+        return xml.append("</xbrl>\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a document into dir under its FFIEC file name
+     */
+    public static Path write(Path dir, String fileName, byte[] document) throws IOException {
+        return Files.write(dir.resolve(fileName), document);
+    }
+
+    /**
+     * A UBPR filing parsed from a synthetic document, for benchmarks that start from parsed filings
+     */
+    public static XBRLFiling ubprFiling(int concepts) throws IOException {
+        final UBPRPublishingVisitor visitor = new UBPRPublishingVisitor(FileSystems.getDefault().getPathMatcher("glob:*.xml"), null, "benchmark");
+        return parse(ubprFileName(RSSD, REPORTED_ON), ubpr(RSSD, REPORTED_ON, ubprConcepts(concepts), 1L),
+                path -> visitor.getEntries(path, REPORTED_ON));
+    }
+
+    /**
+     * A call report filing parsed from a synthetic document
+     */
+    public static XBRLFiling callFiling(int concepts) throws IOException {
+        final CALLPublishingVisitor visitor = new CALLPublishingVisitor(FileSystems.getDefault().getPathMatcher("glob:*.xml"), null, "benchmark");
+        return parse(callFileName(RSSD, REPORTED_ON), call(RSSD, CERT, REPORTED_ON, callConcepts(concepts), 1L),
+                path -> visitor.getEntries(path, REPORTED_ON));
+    }
+
+    private static XBRLFiling parse(String fileName, byte[] document, Function<Path, XBRLFiling> parser) throws IOException {
+        final Path dir = Files.createTempDirectory("xbrl-bench");
+        final Path path = write(dir, fileName, document);
+        try {
+            return parser.apply(path);
+        } finally {
+            Files.delete(path);
+            Files.delete(dir);
+        }
+    }
+
+    private static StringBuilder header(int rssd, LocalDate reportedOn, String namespaces) {
+        final StringBuilder xml = new StringBuilder(1 << 16);
+        xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n")
+                .append("<xbrl xmlns=\"http://www.xbrl.org/2003/instance\" xmlns:link=\"http://www.xbrl.org/2003/linkbase\" ")
+                .append("xmlns:xlink=\"http://www.w3.org/1999/xlink\" xmlns:iso4217=\"http://www.xbrl.org/2003/iso4217\" ")
+                .append(namespaces).append(">\n")
+                .append("  <link:schemaRef xlink:type=\"simple\" xlink:href=\"http://www.ffiec.gov/xbrl/facsimile.xsd\"/>\n");
+        for (LocalDate date : new LocalDate[]{reportedOn, reportedOn.minusYears(1)}) {
+            xml.append("  <context id=\"").append(context(rssd, date)).append("\"><entity><identifier scheme=\"http://www.ffiec.gov/cdr\">")
+                    .append(rssd).append("</identifier></entity><period><instant>").append(date.format(DateTimeFormatter.ISO_DATE))
+                    .append("</instant></period></context>\n");
+        }
+        xml.append("  <unit id=\"USD\"><measure>iso4217:USD</measure></unit>\n")
+                .append("  <unit id=\"PURE\"><measure>pure</measure></unit>\n");
+        return xml;
+    }
+
+    private static String context(int rssd, LocalDate date) {
+        return "CI_" + rssd + "_" + date.format(DateTimeFormatter.ISO_DATE);
+    }
+
+    private static void facts(StringBuilder xml, int rssd, LocalDate reportedOn, List<String> concepts,
+                              IntFunction<String> prefix, Random random) {
+        final String current = context(rssd, reportedOn);
+        final String prior = context(rssd, reportedOn.minusYears(1));
+        for (int i = 0; i < concepts.size(); i++) {
+            final String concept = concepts.get(i);
+            final int kind = i % 20;
+            if (kind < 12) {
+                final long amount = random.nextInt(10_000_000) * 1000L;
+                fact(xml, prefix.apply(i), concept, current, "USD", "-3", Long.toString(amount));
+                if (i % 2 == 0) {
+                    fact(xml, prefix.apply(i), concept, prior, "USD", "-3", Long.toString(amount - random.nextInt(1_000_000) * 1000L));
+                }
+            } else if (kind < 17) {
+                final String ratio = String.format(Locale.ROOT, "%.4f", random.nextDouble() * 200 - 50);
+                fact(xml, prefix.apply(i), concept, current, "PURE", "4", ratio);
+                if (i % 2 == 0) {
+                    fact(xml, prefix.apply(i), concept, prior, "PURE", "4", ratio);
+                }
+            } else if (kind == 17) {
+                fact(xml, prefix.apply(i), concept, current, "USD", "-3", Long.toString(3_000_000_000L + random.nextInt(1_000_000) * 1000L));
+            } else if (kind == 18) {
+                fact(xml, prefix.apply(i), concept, current, null, null, Boolean.toString(random.nextBoolean()));
+            } else {
+                fact(xml, prefix.apply(i), concept, current, null, null, "Synthetic Bank " + rssd + " note " + i);
+            }
+        }
+    }
+
+    private static void fact(StringBuilder xml, String prefix, String concept, String context, String unit, String decimals, String value) {
+        xml.append("  <").append(prefix).append(':').append(concept).append(" contextRef=\"").append(context).append('"');
+        if (unit != null) {
+            xml.append(" unitRef=\"").append(unit).append("\" decimals=\"").append(decimals).append('"');
+        }
+        xml.append('>').append(value).append("</").append(prefix).append(':').append(concept).append(">\n");
+    }
+}
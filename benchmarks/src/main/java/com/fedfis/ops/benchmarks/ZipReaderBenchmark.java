@@ -0,0 +1,144 @@
+package com.fedfis.ops.benchmarks;
+
+import com.fedfis.ops.MappedZipFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reading every entry of one generated bulk zip, through the zip filesystem and through MappedZipFile
+ * <p>
+ * Each operation opens the zip, reads every entry to the end and closes it, so opening and indexing are included.
+ * The parallel variants read the entries on 4 threads, as parserWorkers does. Entries are read and discarded, so
+ * this measures the zip layer and inflating, not parsing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipReaderBenchmark {
+    private static final int THREADS = 4;
+
+    @Param({"200"})
+    public int banks;
+
+    private Path dir;
+    private Path zip;
+    private ExecutorService pool;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("xbrl-zip-bench");
+        zip = new CorpusGenerator(banks, 1000, 1, LocalDate.of(2021, 9, 30)).generate(dir, "ubpr").get(0);
+        pool = Executors.newFixedThreadPool(THREADS);
+        final long zipfs = zipfs(false);
+        final long mapped = mapped(false);
+        if (zipfs != mapped) {
+            throw new IllegalStateException("zipfs read " + zipfs + " bytes, mapped " + mapped);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public long zipfsSerial() throws Exception {
+        return zipfs(false);
+    }
+
+    @Benchmark
+    public long zipfsParallel() throws Exception {
+        return zipfs(true);
+    }
+
+    @Benchmark
+    public long mappedSerial() throws Exception {
+        return mapped(false);
+    }
+
+    @Benchmark
+    public long mappedParallel() throws Exception {
+        return mapped(true);
+    }
+
+    private long zipfs(boolean parallel) {
+        try (FileSystem fs = FileSystems.newFileSystem(URI.create("jar:" + zip.toUri()), new HashMap<>());
+             Stream<Path> files = Files.list(fs.getRootDirectories().iterator().next())) {
+            return read(files.collect(Collectors.toList()), path -> Files.newInputStream(path), parallel);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long mapped(boolean parallel) {
+        try (MappedZipFile mapped = MappedZipFile.open(zip)) {
+            return read(mapped.entries(), MappedZipFile.Entry::open, parallel);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private <E> long read(List<E> entries, Opener<E> opener, boolean parallel) {
+        if (!parallel) {
+            long total = 0;
+            for (E entry : entries) {
+                total += drain(opener, entry);
+            }
+            return total;
+        }
+        final List<Future<Long>> reads = entries.stream()
+                .map(entry -> pool.submit(() -> drain(opener, entry)))
+                .collect(Collectors.toList());
+        long total = 0;
+        try {
+            for (Future<Long> read : reads) {
+                total += read.get();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return total;
+    }
+
+    private static <E> long drain(Opener<E> opener, E entry) {
+        final byte[] buffer = new byte[1 << 16];
+        long total = 0;
+        try (InputStream in = opener.open(entry)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                total += n;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return total;
+    }
+
+    private interface Opener<E> {
+        InputStream open(E entry) throws IOException;
+    }
+}
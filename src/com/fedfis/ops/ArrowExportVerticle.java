@@ -0,0 +1,64 @@
+package com.fedfis.ops;
+
+import io.vertx.core.Promise;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sink that exports every parsed quarter of its source as an Arrow IPC file, for analytical reads that would
+ * otherwise pull whole tables out of the databases
+ * <p>
+ * Filings are kept in QuarterFiles under arrowPath/_quarters as QuarterFileVerticle keeps them, so every concept of
+ * a quarter is known before its schema is written. Each committed quarter is exported by an ArrowQuarterWriter to
+ * arrowPath/source/reported_on=date/source.arrow, the layout Arrow dataset readers take as partitioned by quarter,
+ * in record batches of arrowBatchRows. The flush is acknowledged once the export is in place. Arrow's allocator
+ * needs java.nio opened to it: the jar's manifest does so, other launches need
+ * --add-opens=java.base/java.nio=ALL-UNNAMED.
+ */
+public class ArrowExportVerticle extends QuarterFileVerticle {
+    private ArrowQuarterWriter writer;
+
+    /**
+     * @param busAddress Zip channel
+     * @param source     XBRLFiling.UBPR or XBRLFiling.CALL
+     */
+    public ArrowExportVerticle(String busAddress, String source) {
+        super(busAddress, source);
+    }
+
+    @Override
+    public void start(Promise<Void> p) {
+        if (config().getString(XBRLImportConfig.CFG_ARROWPATH) == null) {
+            p.fail("Arrow export needs " + XBRLImportConfig.CFG_ARROWPATH);
+            return;
+        }
+        writer = new ArrowQuarterWriter(config().getInteger(XBRLImportConfig.CFG_ARROWBATCHROWS, 1024));
+        super.start(p);
+    }
+
+    /**
+     * Quarters are kept next to the exports; dataset readers skip directories starting with _
+     */
+    @Override
+    protected Path getQuarterPath() {
+        return getArrowPath().resolve("_quarters");
+    }
+
+    protected Path getArrowPath() {
+        return Path.of(config().getString(XBRLImportConfig.CFG_ARROWPATH));
+    }
+
+    @Override
+    protected void committed(Path quarter) throws IOException {
+        final long started = System.nanoTime();
+        try (QuarterFile file = QuarterFile.open(quarter)) {
+            if (file.size() == 0) {
+                return;
+            }
+            writer.write(file, getArrowPath().resolve(source).resolve("reported_on=" + file.reportedOn(0)).resolve(source + ".arrow"));
+        }
+        ImportMetrics.registry().timer("xbrl.arrow.export", "source", source).record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+    }
+}
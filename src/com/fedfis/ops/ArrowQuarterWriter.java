@@ -0,0 +1,270 @@
+package com.fedfis.ops;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.DecimalVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.dictionary.Dictionary;
+import org.apache.arrow.vector.dictionary.DictionaryProvider;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.DictionaryEncoding;
+import org.apache.arrow.vector.types.pojo.Field;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exports a QuarterFile as an Arrow IPC file with a row per bank and a column per concept
+ * <p>
+ * The first pass over the mapped quarter finds the concepts it has and the RSSD ids of its banks. A concept's
+ * column is Bool, Int64 or Decimal128 when every value of it fits one; otherwise it is Utf8. Each column carries
+ * the concept's unit as field metadata, and its divisor when every fact of it has the same one. rssd_id is
+ * dictionary encoded: the quarter's RSSD ids, sorted, are written once as the dictionary and every batch holds
+ * Int32 indices into it. The second pass writes rows in record batches of batchRows, so memory stays at one batch
+ * whatever the size of the quarter. Filings without RSSD9001 are left out. The file is written next to its target
+ * and moved into place once complete.
+ */
+public class ArrowQuarterWriter {
+    private static final Logger logger = LoggerFactory.getLogger(ArrowQuarterWriter.class.getName());
+    public static final String RSSD_COLUMN = "rssd_id";
+    private static final int MAX_PRECISION = 38;
+    private static final int BOOL = 1 << XBRLValueClassifier.BOOLEAN;
+    private static final int INT64 = 1 << XBRLValueClassifier.LONG;
+    private static final int DECIMAL = INT64 | 1 << XBRLValueClassifier.DECIMAL;
+
+    protected final int batchRows;
+
+    /**
+     * @param batchRows Rows per record batch
+     */
+    public ArrowQuarterWriter(int batchRows) {
+        this.batchRows = Math.max(1, batchRows);
+    }
+
+    /**
+     * Write a quarter to an Arrow file
+     *
+     * @param quarter Quarter to export
+     * @param target  Arrow file, replaced once written
+     * @return number of rows written
+     */
+    public int write(QuarterFile quarter, Path target) throws IOException {
+        final ConceptDictionary dictionary = ConceptDictionary.forSource(quarter.getSource());
+        final Columns columns = new Columns(dictionary.size());
+        final int rssdId = dictionary.idOf(XBRLImportConfig.RSSD_9001);
+        final int[] rssds = new int[quarter.size()];
+        int rows = 0;
+        for (int i = 0; i < quarter.size(); i++) {
+            final XBRLFiling filing = quarter.filing(i);
+            final int r = filing.indexOf(rssdId);
+            if (r < 0 || filing.kind(r) != XBRLValueClassifier.LONG) {
+                logger.error("Missing " + XBRLImportConfig.RSSD_9001 + " in " + filing.getPath() + ", not exported");
+                rssds[i] = -1;
+                continue;
+            }
+            rssds[i] = (int) filing.longValue(r);
+            columns.scan(filing);
+            rows++;
+        }
+        final int[] rssdDictionary = Arrays.stream(rssds).filter(rssd -> rssd >= 0).sorted().distinct().toArray();
+        final List<Integer> concepts = columns.concepts(dictionary);
+
+        final Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.createDirectories(target.getParent());
+        final DictionaryEncoding rssdEncoding = new DictionaryEncoding(0, true, new ArrowType.Int(32, true));
+        final List<Field> fields = new ArrayList<>(concepts.size() + 1);
+        fields.add(new Field(RSSD_COLUMN, new FieldType(false, new ArrowType.Int(32, true), rssdEncoding), null));
+        for (int id : concepts) {
+            final Map<String, String> metadata = new HashMap<>();
+            if (dictionary.unitOf(id) != null) {
+                metadata.put("unit", dictionary.unitOf(id));
+            }
+            if (columns.divisors[id] > 0) {
+                metadata.put("divisor", String.valueOf(columns.divisors[id]));
+            } else {
+                logger.warn(dictionary.nameOf(id) + " has facts with different divisors in " + quarter + ", none recorded");
+            }
+            fields.add(new Field(dictionary.nameOf(id), new FieldType(true, columns.type(id), null, metadata), null));
+        }
+        final Map<String, String> metadata = new HashMap<>();
+        metadata.put("source", quarter.getSource());
+        if (quarter.size() > 0) {
+            metadata.put("reported_on", quarter.reportedOn(0).toString());
+        }
+
+        try (BufferAllocator allocator = new RootAllocator();
+             IntVector rssdValues = new IntVector(RSSD_COLUMN, allocator);
+             VectorSchemaRoot root = VectorSchemaRoot.create(new Schema(fields, metadata), allocator);
+             FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            rssdValues.allocateNew(rssdDictionary.length);
+            for (int d = 0; d < rssdDictionary.length; d++) {
+                rssdValues.set(d, rssdDictionary[d]);
+            }
+            rssdValues.setValueCount(rssdDictionary.length);
+            final DictionaryProvider provider = new DictionaryProvider.MapDictionaryProvider(new Dictionary(rssdValues, rssdEncoding));
+
+            // vector of each concept id, by the column order above
+            final FieldVector[] vectorOf = new FieldVector[columns.kinds.length];
+            for (int c = 0; c < concepts.size(); c++) {
+                vectorOf[concepts.get(c)] = root.getVector(c + 1);
+            }
+            final IntVector rssdIndex = (IntVector) root.getVector(0);
+
+            try (ArrowFileWriter writer = new ArrowFileWriter(root, provider, channel)) {
+                writer.start();
+                int row = 0;
+                root.allocateNew();
+                for (int i = 0; i < quarter.size(); i++) {
+                    if (rssds[i] < 0) {
+                        continue;
+                    }
+                    final XBRLFiling filing = quarter.filing(i);
+                    rssdIndex.setSafe(row, Arrays.binarySearch(rssdDictionary, rssds[i]));
+                    for (int f = 0; f < filing.size(); f++) {
+                        set(vectorOf[filing.conceptId(f)], row, filing, f);
+                    }
+                    if (++row == batchRows) {
+                        writeBatch(root, writer, row);
+                        row = 0;
+                    }
+                }
+                if (row > 0 || rows == 0) {
+                    writeBatch(root, writer, row);
+                }
+                writer.end();
+                channel.force(true);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e instanceof IOException ? (IOException) e : new IOException("Exporting " + quarter + ": " + e, e);
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Exported " + rows + " rows and " + concepts.size() + " concepts of " + quarter + " to " + target);
+        return rows;
+    }
+
+    private static void writeBatch(VectorSchemaRoot root, ArrowFileWriter writer, int rows) throws IOException {
+        for (FieldVector vector : root.getFieldVectors()) {
+            vector.setValueCount(rows);
+        }
+        root.setRowCount(rows);
+        writer.writeBatch();
+        root.allocateNew();
+    }
+
+    private static void set(FieldVector vector, int row, XBRLFiling filing, int f) {
+        if (vector instanceof BigIntVector) {
+            ((BigIntVector) vector).setSafe(row, filing.longValue(f));
+        } else if (vector instanceof BitVector) {
+            ((BitVector) vector).setSafe(row, filing.booleanValue(f) ? 1 : 0);
+        } else if (vector instanceof DecimalVector) {
+            final DecimalVector decimals = (DecimalVector) vector;
+            final boolean isLong = filing.kind(f) == XBRLValueClassifier.LONG;
+            final Object object = isLong ? null : filing.object(f);
+            final int scale = isLong ? 0 : filing.scale(f);
+            if (object == null && scale == decimals.getScale()) {
+                decimals.setSafe(row, filing.longValue(f));
+            } else {
+                final BigDecimal value = object != null ? (BigDecimal) object : BigDecimal.valueOf(filing.longValue(f), scale);
+                decimals.setSafe(row, value.setScale(decimals.getScale()));
+            }
+        } else {
+            final Object value = filing.value(f);
+            final String text = value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : String.valueOf(value);
+            ((VarCharVector) vector).setSafe(row, text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        for (long v = value == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(value); v >= 10; v /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * What the values of each concept of a quarter need to be held in
+     */
+    private static final class Columns {
+        private final int[] kinds;// bit per XBRLValueClassifier kind seen
+        private final int[] scales;// largest decimal scale
+        private final int[] integerDigits;// most digits left of the point
+        private final int[] divisors;// divisor of every fact, 0 before the first, -1 if they differ
+
+        Columns(int concepts) {
+            this.kinds = new int[concepts];
+            this.scales = new int[concepts];
+            this.integerDigits = new int[concepts];
+            this.divisors = new int[concepts];
+        }
+
+        void scan(XBRLFiling filing) {
+            for (int f = 0; f < filing.size(); f++) {
+                final int id = filing.conceptId(f);
+                final int kind = filing.kind(f);
+                kinds[id] |= 1 << kind;
+                if (divisors[id] != filing.divisor(f)) {
+                    divisors[id] = divisors[id] == 0 ? filing.divisor(f) : -1;
+                }
+                if (kind == XBRLValueClassifier.LONG) {
+                    integerDigits[id] = Math.max(integerDigits[id], digits(filing.longValue(f)));
+                } else if (kind == XBRLValueClassifier.DECIMAL) {
+                    final Object object = filing.object(f);
+                    final int scale = object != null ? ((BigDecimal) object).scale() : filing.scale(f);
+                    final int precision = object != null ? ((BigDecimal) object).precision() : digits(filing.longValue(f));
+                    scales[id] = Math.max(scales[id], Math.max(0, scale));
+                    integerDigits[id] = Math.max(integerDigits[id], precision - scale);
+                }
+            }
+        }
+
+        /**
+         * Concepts with a value in the quarter, by name
+         */
+        List<Integer> concepts(ConceptDictionary dictionary) {
+            final List<Integer> seen = new ArrayList<>();
+            for (int id = 0; id < kinds.length; id++) {
+                if (kinds[id] != 0) {
+                    seen.add(id);
+                }
+            }
+            seen.sort(Comparator.comparing(dictionary::nameOf));
+            return seen;
+        }
+
+        ArrowType type(int id) {
+            if (kinds[id] == BOOL) {
+                return ArrowType.Bool.INSTANCE;
+            } else if (kinds[id] == INT64) {
+                return new ArrowType.Int(64, true);
+            } else if ((kinds[id] & ~DECIMAL) == 0 && integerDigits[id] + scales[id] <= MAX_PRECISION) {
+                return new ArrowType.Decimal(MAX_PRECISION, scales[id], 128);
+            }
+            return ArrowType.Utf8.INSTANCE;
+        }
+    }
+}
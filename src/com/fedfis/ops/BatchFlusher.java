@@ -0,0 +1,275 @@
+package com.fedfis.ops;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Buffers rows into batches and writes them with a bounded number of batches in flight
+ * <p>
+ * The batch size adapts to commit latency: it grows while full batches commit in under half of targetLatencyMs
+ * and halves when one takes longer than targetLatencyMs. A failed batch is retried up to maxRetries times.
+ * flush() acknowledges durability: its Future completes once every row added before it has been written, and
+ * fails if any of those rows could not be written.
+ * <p>
+ * Batch sizes, write latencies, retries and lost rows are recorded as xbrl.batch.* meters tagged with the name,
+ * along with gauges of pending rows, batches in flight and the current batch size.
+ * <p>
+ * Every method must be called from the owning verticle's context.
+ */
+public class BatchFlusher<T> {
+    private static final Logger logger = LoggerFactory.getLogger(BatchFlusher.class.getName());
+
+    protected final Vertx vertx;
+    protected final String name;
+    protected final Function<List<T>, Future<?>> writer;
+    protected final int maxInFlight;
+    protected final int minBatchSize;
+    protected final int maxBatchSize;
+    protected final long targetLatencyMs;
+    protected final int maxRetries;
+
+    private int batchSize;
+    private List<T> buffer;
+    private long nextSeq = 0;
+    private int inFlight = 0;
+    private int inFlightRows = 0;
+    private int readyRows = 0;
+    private final ArrayDeque<Batch> ready = new ArrayDeque<>();
+    private final TreeSet<Long> outstanding = new TreeSet<>();
+    private final List<Waiter> waiters = new ArrayList<>();
+    private final List<Throwable> unreported = new ArrayList<>();
+    private final Timer written;
+    private final Timer failed;
+    private final DistributionSummary batchRows;
+    private final Counter retries;
+    private final Counter lost;
+
+    /**
+     * @param vertx           Vertx instance, for retry timers
+     * @param name            Name for logging and the flusher tag of its meters
+     * @param writer          Writes one batch; the Future must complete once the batch is durable
+     * @param batchSize       Initial batch size
+     * @param minBatchSize    Smallest the batch size adapts down to
+     * @param maxBatchSize    Largest the batch size adapts up to
+     * @param maxInFlight     Batches written at once
+     * @param targetLatencyMs Commit latency the batch size adapts to
+     * @param maxRetries      Times a failed batch is retried before its rows are reported lost
+     */
+    public BatchFlusher(Vertx vertx, String name, Function<List<T>, Future<?>> writer, int batchSize, int minBatchSize,
+                        int maxBatchSize, int maxInFlight, long targetLatencyMs, int maxRetries) {
+        this.vertx = vertx;
+        this.name = name;
+        this.writer = writer;
+        this.minBatchSize = Math.max(1, minBatchSize);
+        this.maxBatchSize = Math.max(this.minBatchSize, maxBatchSize);
+        this.batchSize = Math.min(this.maxBatchSize, Math.max(this.minBatchSize, batchSize));
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.targetLatencyMs = targetLatencyMs;
+        this.maxRetries = maxRetries;
+        this.buffer = new ArrayList<>(this.batchSize);
+
+        final MeterRegistry registry = ImportMetrics.registry();
+        this.written = Timer.builder("xbrl.batch.latency").description("Time to write a batch")
+                .tags("flusher", name, "outcome", "success").publishPercentileHistogram().register(registry);
+        this.failed = Timer.builder("xbrl.batch.latency").description("Time to write a batch")
+                .tags("flusher", name, "outcome", "failure").publishPercentileHistogram().register(registry);
+        this.batchRows = DistributionSummary.builder("xbrl.batch.rows").description("Rows per batch written")
+                .tag("flusher", name).register(registry);
+        this.retries = Counter.builder("xbrl.batch.retries").description("Failed batch writes retried")
+                .tag("flusher", name).register(registry);
+        this.lost = Counter.builder("xbrl.batch.lost").description("Rows not written after every retry")
+                .tag("flusher", name).register(registry);
+        // read from metrics threads; the counts may be momentarily stale
+        Gauge.builder("xbrl.batch.pending", this, BatchFlusher::pending).description("Rows buffered or being written")
+                .tag("flusher", name).register(registry);
+        Gauge.builder("xbrl.batch.inflight", this, BatchFlusher::inFlight).description("Batches being written")
+                .tag("flusher", name).register(registry);
+        Gauge.builder("xbrl.batch.size", this, BatchFlusher::getBatchSize).description("Current batch size")
+                .tag("flusher", name).register(registry);
+    }
+
+    public void add(T row) {
+        buffer.add(row);
+        if (buffer.size() >= batchSize) {
+            cut();
+            dispatch();
+        }
+    }
+
+    /**
+     * Write whatever is buffered
+     *
+     * @return Future completing once every row added so far is durable
+     */
+    public Future<Void> flush() {
+        cut();
+        final Waiter waiter = new Waiter(nextSeq - 1);
+        if (!unreported.isEmpty()) {
+            waiter.failure = unreported.get(0);
+            unreported.clear();
+        }
+        waiters.add(waiter);
+        dispatch();
+        checkWaiters();
+        return waiter.promise.future();
+    }
+
+    /**
+     * Rows buffered or written but not yet acknowledged
+     */
+    public int pending() {
+        return buffer.size() + readyRows + inFlightRows;
+    }
+
+    /**
+     * Rows cut into batches but not yet acknowledged; unlike pending() this drains without a flush
+     */
+    public int backlog() {
+        return readyRows + inFlightRows;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int inFlight() {
+        return inFlight;
+    }
+
+    private void cut() {
+        if (!buffer.isEmpty()) {
+            final Batch batch = new Batch(nextSeq++, buffer);
+            outstanding.add(batch.seq);
+            ready.add(batch);
+            readyRows += batch.rows.size();
+            buffer = new ArrayList<>(batchSize);
+        }
+    }
+
+    private void dispatch() {
+        while (inFlight < maxInFlight && !ready.isEmpty()) {
+            write(ready.poll());
+        }
+    }
+
+    private void write(Batch batch) {
+        readyRows -= batch.rows.size();
+        inFlight++;
+        inFlightRows += batch.rows.size();
+        final long started = System.nanoTime();
+        final Future<?> written;
+        try {
+            written = writer.apply(batch.rows);
+        } catch (Exception e) {
+            completed(batch, started, e);
+            return;
+        }
+        written.onComplete(ar -> completed(batch, started, ar.failed() ? ar.cause() : null));
+    }
+
+    private void completed(Batch batch, long started, Throwable failure) {
+        inFlight--;
+        inFlightRows -= batch.rows.size();
+        final long latencyNs = System.nanoTime() - started;
+        final long latencyMs = latencyNs / 1_000_000L;
+        (failure == null ? written : failed).record(latencyNs, TimeUnit.NANOSECONDS);
+        if (failure == null) {
+            batchRows.record(batch.rows.size());
+            logger.debug(name + " wrote " + batch.rows.size() + " rows in " + latencyMs + "ms");
+            adapt(batch.rows.size(), latencyMs);
+            outstanding.remove(batch.seq);
+        } else if (batch.attempts++ < maxRetries) {
+            logger.warn(name + " batch of " + batch.rows.size() + " failed, retry " + batch.attempts + ": " + failure);
+            retries.increment();
+            vertx.setTimer(250L << Math.min(batch.attempts, 6), t -> {
+                ready.addFirst(batch);
+                readyRows += batch.rows.size();
+                dispatch();
+            });
+        } else {
+            logger.error(name + " lost " + batch.rows.size() + " rows after " + batch.attempts + " attempts: " + failure);
+            lost.increment(batch.rows.size());
+            outstanding.remove(batch.seq);
+            report(batch.seq, failure);
+        }
+        dispatch();
+        checkWaiters();
+    }
+
+    private void adapt(int rows, long latencyMs) {
+        if (latencyMs > targetLatencyMs && batchSize > minBatchSize) {
+            batchSize = Math.max(minBatchSize, batchSize / 2);
+            logger.debug(name + " batch size down to " + batchSize);
+        } else if (rows >= batchSize && latencyMs < targetLatencyMs / 2 && batchSize < maxBatchSize) {
+            batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, batchSize / 8));
+            logger.debug(name + " batch size up to " + batchSize);
+        }
+    }
+
+    private void report(long seq, Throwable failure) {
+        boolean reported = false;
+        for (Waiter waiter : waiters) {
+            if (waiter.through >= seq) {
+                if (waiter.failure == null) {
+                    waiter.failure = failure;
+                }
+                reported = true;
+            }
+        }
+        if (!reported) {
+            unreported.add(failure);
+        }
+    }
+
+    private void checkWaiters() {
+        final Iterator<Waiter> i = waiters.iterator();
+        while (i.hasNext()) {
+            final Waiter waiter = i.next();
+            if (outstanding.isEmpty() || outstanding.first() > waiter.through) {
+                i.remove();
+                if (waiter.failure == null) {
+                    waiter.promise.complete();
+                } else {
+                    waiter.promise.fail(waiter.failure);
+                }
+            }
+        }
+    }
+
+    private class Batch {
+        final long seq;
+        final List<T> rows;
+        int attempts = 0;
+
+        Batch(long seq, List<T> rows) {
+            this.seq = seq;
+            this.rows = rows;
+        }
+    }
+
+    private static class Waiter {
+        final long through;
+        final Promise<Void> promise = Promise.promise();
+        Throwable failure;
+
+        Waiter(long through) {
+            this.through = through;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.fedfis.ops;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the concept names of one FFIEC source to dense int ids and keeps per-concept metadata
+ * <p>
+ * Filings refer to concepts by id, so a concept's name and unit are stored once per taxonomy rather than once per
+ * filing. The unit is the last one seen and only describes the concept; a fact's divisor depends on its own unitRef,
+ * so XBRLFiling.Builder captures it per fact. Ids are only meaningful inside one JVM; anything that leaves the
+ * process (event bus wire format, files) must carry names. Lookups are lock free; adding a concept or changing its
+ * metadata takes a lock.
+ */
+public class ConceptDictionary {
+    private static final ConcurrentHashMap<String, ConceptDictionary> dictionaries = new ConcurrentHashMap<>();
+
+    private final String source;
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>(4096);
+    private volatile String[] names = new String[1024];
+    private volatile String[] units = new String[1024];
+    private volatile int size = 0;
+
+    public ConceptDictionary(String source) {
+        this.source = source;
+    }
+
+    /**
+     * The shared dictionary for an FFIEC source, XBRLFiling.UBPR or XBRLFiling.CALL
+     */
+    public static ConceptDictionary forSource(String source) {
+        return dictionaries.computeIfAbsent(source, ConceptDictionary::new);
+    }
+
+    /**
+     * Id of a concept, adding it if it hasn't been seen before
+     */
+    public int idOf(String name) {
+        final Integer id = ids.get(name);
+        return id != null ? id : add(name);
+    }
+
+    /**
+     * Id of a concept, or -1 if it hasn't been seen
+     */
+    public int lookup(String name) {
+        final Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    private synchronized int add(String name) {
+        final Integer known = ids.get(name);
+        if (known != null) {
+            return known;
+        }
+        final int id = size;
+        if (id == names.length) {
+            final int capacity = id * 2;
+            units = Arrays.copyOf(units, capacity);
+            names = Arrays.copyOf(names, capacity);
+        }
+        names[id] = name;
+        size = id + 1;
+        ids.put(name, id);
+        return id;
+    }
+
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    /**
+     * Unit the concept is reported in (e.g. USD, PURE), or null if it has no unitRef
+     */
+    public String unitOf(int id) {
+        return units[id];
+    }
+
+    /**
+     * Divisor fisweb applies to a value reported in a unit: 1000 for amounts in USD, otherwise 1
+     *
+     * @param unit unitRef of the fact, or null
+     */
+    public static int divisorFor(String unit) {
+        return "USD".equals(unit) ? 1000 : 1;
+    }
+
+    /**
+     * Record the unit a concept is reported in
+     */
+    public void setUnit(int id, String unit) {
+        if (unit == null || unit.equals(units[id])) {
+            return;
+        }
+        synchronized (this) {
+            units[id] = unit;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getSource() {
+        return source;
+    }
+}
@@ -0,0 +1,309 @@
+package com.fedfis.ops;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.eventbus.EventBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A publishing visitor that parses each entry of a zip once and sends the filing to every sink of the source
+ * <p>
+ * Each sink is one instance of a sink verticle on this node, with its own FilingCredits, its own SinkSpool, and its
+ * own ImportManifest walk when a manifest is kept. Before an entry is parsed it reserves a slot with every sink it is
+ * for: a credit if the sink has one, else room in its spool. A slow sink so falls behind on its spool without holding
+ * back the parse or the other sinks, and catches up from there instead of having the zip parsed again. The parse
+ * only waits while every sink's spool is full; a sink whose spool is full while another still takes filings is
+ * detached for the rest of the zip, as is one that makes no room for stallMs: filings stop going to it, its flush
+ * isn't sent and the zip counts as failed for it alone, so a stuck database doesn't stop the others.
+ * <p>
+ * With a manifest, select() decides per entry which sinks haven't stored it; without one, every entry goes to every
+ * sink. The flush goes to every attached sink and each one's outcome is kept on its Target, so one sink failing a
+ * zip doesn't fail it for the others. The walk waits for the flushes sent straight away; a flush queued behind a
+ * sink's spool completes the Target later. Like XBRLPublishingVisitor, this must walk on a worker thread.
+ */
+public class FanOutPublishingVisitor extends XBRLPublishingVisitor {
+    private static final Logger logger = LoggerFactory.getLogger(FanOutPublishingVisitor.class.getName());
+    protected final List<Target> targets;
+    protected final long stallMs;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param parser   Visitor of the source, whose file naming and extractor are used to parse
+     * @param eventBus Bus to send filings on
+     * @param targets  Sinks to feed, one instance each
+     * @param stallMs  How long the parse waits on a sink whose credits and spool are used up before detaching it
+     */
+    public FanOutPublishingVisitor(XBRLPublishingVisitor parser, EventBus eventBus, List<Target> targets, long stallMs) {
+        super(parser.pathMatcher, eventBus, null, parser.xbrlPattern, parser.extractor);
+        this.targets = List.copyOf(targets);
+        this.stallMs = stallMs;
+    }
+
+    public List<Target> getTargets() {
+        return targets;
+    }
+
+    /**
+     * Decide which sinks an entry is for, recording it in each sink's manifest walk
+     *
+     * @return false if every sink already stored the entry as it is now
+     */
+    public boolean select(Path path, BasicFileAttributes attrs) {
+        final List<Target> needing = new ArrayList<>(targets.size());
+        for (Target target : targets) {
+            if ((target.walk == null || target.walk.changed(path, attrs)) && !target.detached) {
+                needing.add(target);
+            }
+        }
+        if (needing.isEmpty()) {
+            return false;
+        }
+        entries.put(path.toString(), new Entry(needing));
+        return true;
+    }
+
+    /**
+     * Reserve a credit or spool room with every sink the entry is for, waiting only if every one of them is full
+     */
+    @Override
+    public void acquireCredit(Path path) throws InterruptedIOException {
+        final Entry entry = entries.computeIfAbsent(path.toString(), p -> new Entry(targets));
+        boolean placed = false;
+        for (int t = 0; t < entry.targets.size(); t++) {
+            final Target target = entry.targets.get(t);
+            if (!target.detached) {
+                entry.slots[t] = target.sink.spool.reserve(path);
+                placed |= entry.slots[t] != SinkSpool.Slot.FULL;
+            }
+        }
+        // every sink is full: wait for one to make room, detaching the ones that stall
+        for (int t = 0; !placed && t < entry.targets.size(); t++) {
+            final Target target = entry.targets.get(t);
+            while (!target.detached && entry.slots[t] == SinkSpool.Slot.FULL) {
+                entry.slots[t] = target.sink.spool.awaitReserve(path, stallMs);
+                if (entry.slots[t] == SinkSpool.Slot.FULL) {
+                    detach(target, path, " made no room for " + stallMs + "ms");
+                }
+            }
+            placed = !target.detached;
+        }
+        // the others still full drop out of the zip rather than hold back the sinks that have room
+        for (int t = 0; t < entry.targets.size(); t++) {
+            if (entry.slots[t] == SinkSpool.Slot.FULL) {
+                detach(entry.targets.get(t), path, "'s spool is full");
+            }
+        }
+    }
+
+    @Override
+    public void releaseCredit(Path path) {
+        final Entry entry = entries.remove(path.toString());
+        if (entry != null) {
+            for (int t = 0; t < entry.targets.size(); t++) {
+                if (entry.slots[t] == SinkSpool.Slot.LIVE) {
+                    entry.targets.get(t).sink.credits.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a filing to every attached sink it was parsed for, or spool it for those without a credit; detached sinks
+     * get their credit back instead
+     */
+    @Override
+    public void publish(XBRLFiling filing) {
+        final Entry entry = entries.remove(filing.getPath());
+        if (entry == null) {
+            logger.error("Published " + filing.getPath() + " without a credit");
+            return;
+        }
+        for (int t = 0; t < entry.targets.size(); t++) {
+            final Target target = entry.targets.get(t);
+            if (entry.slots[t] == SinkSpool.Slot.LIVE) {
+                if (target.detached) {
+                    target.sink.credits.release();
+                    continue;
+                }
+                target.sink.spool.send(filing);
+            } else if (entry.slots[t] == SinkSpool.Slot.SPOOL && !target.detached) {
+                try {
+                    target.sink.spool.spool(filing);
+                } catch (IOException e) {
+                    fail(target, new IOException("Couldn't spool " + filing.getPath() + " for " + target.sink.name + ": " + e.getMessage(), e));
+                    continue;
+                }
+            } else {
+                continue;
+            }
+            if (target.walk != null) {
+                target.walk.published(filing.getPath());
+            }
+        }
+    }
+
+    /**
+     * Detach a sink that can't take an entry, unless every other sink is detached already
+     */
+    private synchronized void detach(Target target, Path path, String reason) {
+        if (target.detached) {
+            return;
+        }
+        for (Target other : targets) {
+            if (other != target && !other.detached) {
+                fail(target, new IOException(target.sink.name + reason + ", detached at " + path));
+                return;
+            }
+        }
+    }
+
+    private synchronized void fail(Target target, IOException failure) {
+        if (target.detached) {
+            return;
+        }
+        target.detached = true;
+        target.failure = failure;
+        logger.warn(failure.getMessage());
+        ImportMetrics.registry().counter("xbrl.fanout.detached", "sink", target.sink.name).increment();
+    }
+
+    /**
+     * Have the flush marker sent to every attached sink, once its spool is drained up to here, and wait for the
+     * sinks it went to straight away; each one's outcome is kept on its Target
+     */
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException ioe) throws IOException {
+        final List<Future<?>> flushes = new ArrayList<>(targets.size());
+        for (Target target : targets) {
+            if (target.detached) {
+                continue;
+            }
+            final Promise<Object> reply = Promise.promise();
+            final boolean queued = target.sink.spool.flush(getSource(), reply);
+            target.done = reply.future().transform(ar -> {
+                if (ar.succeeded()) {
+                    unstored(target.walk, ar.result());
+                    return Future.succeededFuture();
+                }
+                target.failure = new IOException("Flush of " + dir + " failed: " + ar.cause().getMessage(), ar.cause());
+                return Future.failedFuture(target.failure);
+            });
+            if (!queued) {
+                flushes.add(target.done);
+            }
+        }
+        try {
+            CompositeFuture.join(List.copyOf(flushes)).toCompletionStage().toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for flush of " + dir);
+        } catch (ExecutionException e) {
+            // kept on the targets that failed
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * One instance of a sink verticle, registered with XBRLSourceVerticle
+     */
+    public static final class Sink {
+        final String name;
+        final String listenerAddress;
+        final FilingCredits credits;
+        final SinkSpool spool;
+
+        /**
+         * @param name            Name of the sink, its zip channel; shared by its instances and keys its progress
+         * @param listenerAddress Address of the instance's filings
+         * @param credits         The instance's credits
+         * @param spool           The instance's spool, sending on the same credits
+         */
+        public Sink(String name, String listenerAddress, FilingCredits credits, SinkSpool spool) {
+            this.name = name;
+            this.listenerAddress = listenerAddress;
+            this.credits = credits;
+            this.spool = spool;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public FilingCredits getCredits() {
+            return credits;
+        }
+
+        public SinkSpool getSpool() {
+            return spool;
+        }
+    }
+
+    /**
+     * A sink fed by one walk, and how the walk went for it
+     */
+    public static final class Target {
+        final Sink sink;
+        final ImportManifest.Walk walk;
+        volatile boolean detached = false;
+        volatile IOException failure;
+        volatile Future<Void> done;
+
+        /**
+         * @param sink Sink instance to feed
+         * @param walk The sink's manifest walk of the zip, or null without a manifest
+         */
+        public Target(Sink sink, ImportManifest.Walk walk) {
+            this.sink = sink;
+            this.walk = walk;
+        }
+
+        public Sink getSink() {
+            return sink;
+        }
+
+        public ImportManifest.Walk getWalk() {
+            return walk;
+        }
+
+        /**
+         * Why the zip failed for this sink, or null if every filing sent to it was stored
+         */
+        public IOException getFailure() {
+            return failure;
+        }
+
+        /**
+         * Completes once the sink has answered the zip's flush, which may be after the walk if it queued behind the
+         * sink's spool; null if the flush was never sent
+         */
+        public Future<Void> getDone() {
+            return done;
+        }
+    }
+
+    /**
+     * Sinks an entry is for and how it reaches each of them; null for sinks already detached
+     */
+    private static final class Entry {
+        final List<Target> targets;
+        final SinkSpool.Slot[] slots;
+
+        Entry(List<Target> targets) {
+            this.targets = targets;
+            this.slots = new SinkSpool.Slot[targets.size()];
+        }
+    }
+}
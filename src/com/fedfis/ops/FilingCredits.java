@@ -0,0 +1,116 @@
+package com.fedfis.ops;
+
+import io.vertx.core.Vertx;
+
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Credit-based flow control between a sink and the walkers and parse workers feeding it
+ * <p>
+ * A walker takes a credit before an entry is parsed. An entry that turns out not to be a filing gives its credit
+ * straight back; otherwise the sink grants it back once it has taken the filing and its writer's backlog, filings
+ * whose rows are cut into batches but not yet written, is under the credit count. While the writer is behind,
+ * credits are held and handed back as it catches up. So however slow the sink, at most {@code credits} filings are
+ * being parsed, queued on the event bus or waiting for a batch, instead of piling up on the bus.
+ * <p>
+ * acquire(), tryAcquire() and release() may be called from any thread; consumed() only from the sink's context.
+ */
+public class FilingCredits {
+    public static final long RECHECK_MS = 20L;
+    protected final Vertx vertx;
+    protected final int credits;
+    protected final IntSupplier writerBacklog;
+    private final Semaphore available;
+    private int held = 0;
+    private long recheckTimer = -1;
+
+    /**
+     * @param vertx         Vertx instance, for rechecking the writer while credits are held
+     * @param credits       Filings handed out at once
+     * @param writerBacklog Filings whose rows the sink's writer has cut into batches but not yet written; must
+     *                      drain without a flush
+     */
+    public FilingCredits(Vertx vertx, int credits, IntSupplier writerBacklog) {
+        this.vertx = vertx;
+        this.credits = Math.max(1, credits);
+        this.writerBacklog = writerBacklog;
+        this.available = new Semaphore(this.credits);
+    }
+
+    /**
+     * Take a credit for an entry about to be parsed, waiting for the sink to grant one back if none is left
+     *
+     * @param path Entry, for the message if interrupted
+     */
+    public void acquire(Path path) throws InterruptedIOException {
+        try {
+            available.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a credit to parse " + path);
+        }
+    }
+
+    /**
+     * Take a credit for an entry about to be parsed, waiting at most timeoutMs for the sink to grant one back
+     *
+     * @param path      Entry, for the message if interrupted
+     * @param timeoutMs How long to wait
+     * @return false if no credit was granted in time
+     */
+    public boolean tryAcquire(Path path, long timeoutMs) throws InterruptedIOException {
+        try {
+            return available.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a credit to parse " + path);
+        }
+    }
+
+    /**
+     * Give back the credit of an entry that didn't produce a filing
+     */
+    public void release() {
+        available.release();
+    }
+
+    /**
+     * The sink took a filing: grant its credit back now, or once the writer has caught up
+     */
+    public void consumed() {
+        held++;
+        grant();
+    }
+
+    private void grant() {
+        final int granted = Math.min(held, Math.max(0, credits - writerBacklog.getAsInt()));
+        if (granted > 0) {
+            held -= granted;
+            available.release(granted);
+        }
+        if (held > 0 && recheckTimer < 0) {
+            recheckTimer = vertx.setTimer(RECHECK_MS, t -> {
+                recheckTimer = -1;
+                grant();
+            });
+        }
+    }
+
+    /**
+     * Credits free to be taken
+     */
+    public int available() {
+        return available.availablePermits();
+    }
+
+    /**
+     * Credits of filings the sink has taken, held until its writer catches up
+     */
+    public int held() {
+        return held;
+    }
+}
@@ -0,0 +1,318 @@
+package com.fedfis.ops;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers a 64-bit digest of every filing a sink stored, so unchanged filings can be skipped on re-import
+ * <p>
+ * Digests are kept per source and report date in one file under dir/sink, loaded on first use. A filing is
+ * identified by the file name of its XBRL document, which carries the bank's RSSD id and the report date. Sinks
+ * that only write some columns can also keep a 32-bit hash per column, to update only the columns that changed.
+ * <p>
+ * New digests are staged, taken with drain() when a flush starts and committed once the flush is acknowledged,
+ * so a filing whose write failed is written again next time. Every instance of a sink shares the digests loaded
+ * for it, while each keeps its own staged digests, so one instance's flush never commits another's filings.
+ * Methods are synchronized so commit() can run on a worker thread.
+ */
+public class FilingDigestStore {
+    private static final Logger logger = LoggerFactory.getLogger(FilingDigestStore.class.getName());
+    private static final int VERSION = 1;
+    private static final Map<Path, Map<String, Partition>> shared = new HashMap<>();
+
+    protected final Path dir;
+    private final Map<String, Partition> partitions;
+    private List<Staged> staged = new ArrayList<>();
+
+    /**
+     * @param dir  Directory holding every sink's digests
+     * @param sink Name of the sink
+     */
+    public FilingDigestStore(Path dir, String sink) {
+        this.dir = dir.resolve(sink);
+        synchronized (shared) {
+            this.partitions = shared.computeIfAbsent(this.dir.toAbsolutePath().normalize(), d -> new HashMap<>());
+        }
+    }
+
+    /**
+     * Digest of a filing's facts; independent of concept ids, so digests survive restarts
+     */
+    public static long digest(XBRLFiling filing) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < filing.size(); i++) {
+            h = mix(h ^ filing.name(i).hashCode());
+            h = mix(h ^ valueHash(filing, i));
+        }
+        return h;
+    }
+
+    /**
+     * Hash of each column's value, 0 where the filing doesn't have the column
+     */
+    public static int[] columnHashes(XBRLFiling filing, List<String> columns) {
+        final int[] hashes = new int[columns.size()];
+        for (int c = 0; c < hashes.length; c++) {
+            final int i = filing.indexOf(columns.get(c));
+            if (i >= 0) {
+                final int hash = (int) mix(valueHash(filing, i));
+                hashes[c] = hash == 0 ? 1 : hash;
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Columns whose hash differs from the stored one, leaving out columns the filing doesn't have
+     *
+     * @param stored  Hashes from storedColumns(), or null
+     * @param current Hashes from columnHashes()
+     * @return the changed column positions, or null if nothing was stored to compare with
+     */
+    public static BitSet changedColumns(int[] stored, int[] current) {
+        if (stored == null || stored.length != current.length) {
+            return null;
+        }
+        final BitSet changed = new BitSet(current.length);
+        for (int c = 0; c < current.length; c++) {
+            if (current[c] != 0 && current[c] != stored[c]) {
+                changed.set(c);
+            }
+        }
+        return changed;
+    }
+
+    private static long valueHash(XBRLFiling filing, int i) {
+        final int kind = filing.kind(i);
+        switch (kind) {
+            case XBRLValueClassifier.BOOLEAN:
+            case XBRLValueClassifier.LONG:
+                return mix(kind * 31L + filing.longValue(i));
+            case XBRLValueClassifier.DECIMAL:
+                // numerically equal decimals hash alike whatever their scale
+                return mix(kind * 31L + ((BigDecimal) filing.value(i)).stripTrailingZeros().hashCode());
+            default:
+                return mix(kind * 31L + String.valueOf(filing.value(i)).hashCode());
+        }
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * @return true if the sink stored this filing with the same digest
+     */
+    public boolean unchanged(XBRLFiling filing, long digest) {
+        synchronized (partitions) {
+            final Entry entry = partition(filing).entries.get(key(filing));
+            return entry != null && entry.digest == digest;
+        }
+    }
+
+    /**
+     * Column hashes stored for this filing, or null if none were stored for the same columns
+     */
+    public int[] storedColumns(XBRLFiling filing, List<String> columns) {
+        synchronized (partitions) {
+            final Partition partition = partition(filing);
+            final Entry entry = partition.entries.get(key(filing));
+            return entry == null || !columns.equals(partition.columns) ? null : entry.columns;
+        }
+    }
+
+    /**
+     * Stage the digest of a filing handed to the sink
+     *
+     * @param columns      Columns the hashes are for, or null
+     * @param columnHashes Hashes from columnHashes(), or null
+     */
+    public synchronized void stage(XBRLFiling filing, long digest, List<String> columns, int[] columnHashes) {
+        staged.add(new Staged(partitionName(filing), key(filing), digest, columns, columnHashes));
+    }
+
+    /**
+     * Check a filing against what the sink stored and stage its digest if it needs writing
+     *
+     * @param columns Columns the sink writes, to track them one by one; null to track whole filings only
+     * @return null to write the whole filing, otherwise the positions in columns to write; empty if nothing changed
+     */
+    public synchronized BitSet track(XBRLFiling filing, List<String> columns) {
+        final long digest = digest(filing);
+        if (unchanged(filing, digest)) {
+            return new BitSet();
+        }
+        if (columns == null) {
+            stage(filing, digest, null, null);
+            return null;
+        }
+        final int[] hashes = columnHashes(filing, columns);
+        final BitSet changed = changedColumns(storedColumns(filing, columns), hashes);
+        stage(filing, digest, columns, hashes);
+        return changed;
+    }
+
+    /**
+     * Take the digests staged so far, for committing once they are known to be stored
+     */
+    public synchronized List<Staged> drain() {
+        final List<Staged> drained = staged;
+        staged = new ArrayList<>();
+        return drained;
+    }
+
+    /**
+     * Record drained digests as stored and save the partitions they touch
+     */
+    public void commit(List<Staged> drained) throws IOException {
+        synchronized (partitions) {
+            final Map<String, Partition> dirty = new HashMap<>();
+            for (Staged s : drained) {
+                final Partition partition = partitions.computeIfAbsent(s.partition, this::load);
+                if (s.columns != null && !s.columns.equals(partition.columns)) {
+                    // columns changed: older column hashes no longer line up
+                    partition.columns = new ArrayList<>(s.columns);
+                    partition.entries.values().forEach(e -> e.columns = null);
+                }
+                partition.entries.put(s.key, new Entry(s.digest, s.columnHashes));
+                dirty.put(s.partition, partition);
+            }
+            for (Map.Entry<String, Partition> partition : dirty.entrySet()) {
+                save(partition.getKey(), partition.getValue());
+            }
+        }
+    }
+
+    private static String key(XBRLFiling filing) {
+        final Path name = Paths.get(filing.getPath()).getFileName();
+        return name == null ? filing.getPath() : name.toString();
+    }
+
+    private static String partitionName(XBRLFiling filing) {
+        return filing.getSource() + "-" + filing.getReportedOn();
+    }
+
+    private Partition partition(XBRLFiling filing) {
+        return partitions.computeIfAbsent(partitionName(filing), this::load);
+    }
+
+    private Partition load(String name) {
+        final Partition partition = new Partition();
+        final Path file = dir.resolve(name + ".digests");
+        if (!Files.exists(file)) {
+            return partition;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != VERSION) {
+                logger.warn("Ignoring digests in " + file + ": unknown version");
+                return partition;
+            }
+            final int columnCount = in.readInt();
+            if (columnCount >= 0) {
+                partition.columns = new ArrayList<>(columnCount);
+                for (int c = 0; c < columnCount; c++) {
+                    partition.columns.add(in.readUTF());
+                }
+            }
+            final int entries = in.readInt();
+            for (int n = 0; n < entries; n++) {
+                final String key = in.readUTF();
+                final long digest = in.readLong();
+                int[] columns = null;
+                if (in.readBoolean()) {
+                    columns = new int[in.readInt()];
+                    for (int c = 0; c < columns.length; c++) {
+                        columns[c] = in.readInt();
+                    }
+                }
+                partition.entries.put(key, new Entry(digest, columns));
+            }
+            logger.debug("Loaded " + entries + " digests from " + file);
+        } catch (IOException e) {
+            logger.warn("Ignoring digests in " + file + ": " + e);
+            partition.entries.clear();
+        }
+        return partition;
+    }
+
+    private void save(String name, Partition partition) throws IOException {
+        Files.createDirectories(dir);
+        final Path file = dir.resolve(name + ".digests");
+        final Path tmp = dir.resolve(name + ".digests.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(VERSION);
+            if (partition.columns == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(partition.columns.size());
+                for (String column : partition.columns) {
+                    out.writeUTF(column);
+                }
+            }
+            out.writeInt(partition.entries.size());
+            for (Map.Entry<String, Entry> entry : partition.entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().digest);
+                final int[] columns = entry.getValue().columns;
+                out.writeBoolean(columns != null);
+                if (columns != null) {
+                    out.writeInt(columns.length);
+                    for (int hash : columns) {
+                        out.writeInt(hash);
+                    }
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A digest waiting for its filing to be acknowledged
+     */
+    public static final class Staged {
+        final String partition;
+        final String key;
+        final long digest;
+        final List<String> columns;
+        final int[] columnHashes;
+
+        Staged(String partition, String key, long digest, List<String> columns, int[] columnHashes) {
+            this.partition = partition;
+            this.key = key;
+            this.digest = digest;
+            this.columns = columns;
+            this.columnHashes = columnHashes;
+        }
+    }
+
+    private static final class Partition {
+        List<String> columns;
+        final Map<String, Entry> entries = new HashMap<>();
+    }
+
+    private static final class Entry {
+        final long digest;
+        int[] columns;
+
+        Entry(long digest, int[] columns) {
+            this.digest = digest;
+            this.columns = columns;
+        }
+    }
+}
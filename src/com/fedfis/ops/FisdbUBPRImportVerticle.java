@@ -1,5 +1,6 @@
 package com.fedfis.ops;
 
+import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.json.JsonObject;
@@ -14,73 +15,139 @@ import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.time.LocalDate;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Function;
 
 import static com.fedfis.ops.XBRLImportConfig.RSSD_9001;
 
 
+/**
+ * Loads UBPR filings into scratchpad.ubpr, one JSON document per bank and report date
+ * <p>
+ * Rows go through a BatchFlusher, which keeps up to pgMaxInFlight batches in flight and sizes batches to commit
+ * in about pgBatchTargetMs. The flush marker at the end of a zip is answered only once every row queued before
+ * it is durable, or failed if rows were lost. With digestPath configured, filings unchanged since they were last
+ * stored are skipped.
+ */
 public class FisdbUBPRImportVerticle extends XBRLImportVerticle {
     final private static Logger logger = LoggerFactory.getLogger(FisdbUBPRImportVerticle.class.getName());
     protected static final int QSIZE = 1000;
+    protected static final int MIN_BATCH = 100;
     protected PgPool fisdbPool;
-    final protected ArrayBlockingQueue<Tuple> insertQ;
+    protected PgCopyWriter copyWriter;
+    protected BatchFlusher<Tuple> flusher;
 
     final protected String ins_query = "INSERT INTO scratchpad.ubpr (rssd_id, ubpr, reported_on) VALUES ($1, $2, $3) ON CONFLICT (rssd_id, reported_on) DO UPDATE SET ubpr=EXCLUDED.ubpr";
 
     @Override
     protected SimpleFileVisitor<Path> getPublishingVisitor() {
-        final String glob = "glob:/*.xml";
+        final String glob = "glob:/**.xml";
         final PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher(glob);
         return new UBPRPublishingVisitor(pathMatcher, vertx.eventBus(), listenerAddress);
     }
 
+    @Override
+    protected int writerBacklog() {
+        return flusher == null ? 0 : flusher.backlog();
+    }
+
     public FisdbUBPRImportVerticle(String busAddress) {
         super(busAddress);
-        this.insertQ = new ArrayBlockingQueue<>(QSIZE);
     }
 
     @Override
     public void start(Promise p) {
-        fisdbPool = PgPool.pool(vertx, config().getString(XBRLImportConfig.CFG_PGCONNECTIONURI), new PoolOptions().setMaxSize(8));
-
+        final int maxInFlight = config().getInteger(XBRLImportConfig.CFG_PGMAXINFLIGHT, 4);
+        fisdbPool = PgPool.pool(vertx, config().getString(XBRLImportConfig.CFG_PGCONNECTIONURI), new PoolOptions().setMaxSize(Math.max(8, maxInFlight)));
+        final Function<List<Tuple>, Future<?>> writer;
+        if (XBRLImportConfig.PGINGEST_COPY.equals(config().getString(XBRLImportConfig.CFG_PGINGESTMODE, XBRLImportConfig.PGINGEST_INSERT))) {
+            logger.info("Loading scratchpad.ubpr with binary COPY");
+            copyWriter = new PgCopyWriter(config().getString(XBRLImportConfig.CFG_PGCONNECTIONURI), maxInFlight);
+            writer = this::copyBatch;
+        } else {
+            writer = batch -> fisdbPool.preparedQuery(ins_query).executeBatch(batch);
+        }
+        flusher = new BatchFlusher<>(vertx, "scratchpad.ubpr", writer,
+                config().getInteger(XBRLImportConfig.CFG_PGBATCHSIZE, QSIZE),
+                MIN_BATCH,
+                config().getInteger(XBRLImportConfig.CFG_PGMAXBATCHSIZE, 10 * QSIZE),
+                maxInFlight,
+                config().getLong(XBRLImportConfig.CFG_PGBATCHTARGETMS, 1000L),
+                config().getInteger(XBRLImportConfig.CFG_PGBATCHRETRIES, 3));
+
+        final FilingDigestStore digests = getDigestStore();
         final EventBus eb = vertx.eventBus();
 
-        // setup: listen for URIs
-        eb.consumer(busAddress, getURIHandler());
-
         // setup: listen for UBPR messages
-        eb.consumer(listenerAddress, message -> {
-            final JsonObject messageJson = new JsonObject(message.body().toString());
-
-            if (messageJson.getBoolean("flush", false)) {
-                flushQueue();
+        eb.<XBRLFiling>localConsumer(listenerAddress, message -> {
+            final XBRLFiling filing = message.body();
+
+            if (filing.isFlush()) {
+                final List<FilingDigestStore.Staged> staged = digests == null ? null : digests.drain();
+                flusher.flush()
+                        .compose(v -> commitDigests(staged))
+                        .onSuccess(v -> message.reply(null))
+                        .onFailure(fail -> message.fail(500, fail.toString()));
             } else {
-                final JsonObject ubpr = messageJson.getJsonObject("ubpr");
-                final int rssd_id = ubpr.getInteger(RSSD_9001);
-                final LocalDate dataDate = LocalDate.parse(ubpr.getString(XBRLImportConfig.UBPR_9999));
-                Tuple t = Tuple.of(rssd_id, ubpr, dataDate);
-                insertQ.add(t);
-
-                if (insertQ.remainingCapacity() == 0) {
-                    flushQueue();
+                filingConsumed();
+                // build the row before staging the digest, so a filing that can't be written isn't recorded as stored
+                final Tuple row;
+                try {
+                    row = row(filing);
+                } catch (RuntimeException e) {
+                    logger.error("Processing " + filing.getPath() + ": " + e);
+                    return;
                 }
+                if (digests != null && digests.track(filing, null) != null) {
+                    logger.debug("Unchanged: " + filing.getPath());
+                    return;
+                }
+                flusher.add(row);
             }
         });
 
+        // setup: take zips, once filings can be received
+        listenForZips();
         p.complete();
     }
 
-    private void flushQueue() {
-        if (insertQ.size() > 0) {
-            List<Tuple> batch = new ArrayList<>(insertQ.size());
-            insertQ.drainTo(batch);
-            logger.debug("INSERT " + batch.size());
-            fisdbPool.preparedQuery(ins_query).executeBatch(batch).onFailure(fail -> {
-                logger.error("INSERT failure: " + fail.toString());
-                fail.printStackTrace();
-            });
+    /**
+     * The scratchpad.ubpr row of a filing
+     *
+     * @throws RuntimeException if its RSSD9001 or UBPR9999 is missing or malformed
+     */
+    private static Tuple row(XBRLFiling filing) {
+        final JsonObject ubpr = filing.getFacts();
+        final Integer rssd_id = ubpr.getInteger(RSSD_9001);
+        final String dataDate = ubpr.getString(XBRLImportConfig.UBPR_9999);
+        if (rssd_id == null || dataDate == null) {
+            throw new IllegalArgumentException("Missing " + (rssd_id == null ? RSSD_9001 : XBRLImportConfig.UBPR_9999));
         }
+        return Tuple.of(rssd_id, ubpr, LocalDate.parse(dataDate));
+    }
+
+    private Future<Void> copyBatch(List<Tuple> batch) {
+        return vertx.executeBlocking(promise -> {
+            try {
+                copyWriter.write(batch);
+                promise.complete();
+            } catch (Exception e) {
+                promise.fail(e);
+            }
+        }, false);
+    }
+
+    @Override
+    public void stop(Promise<Void> stopPromise) {
+        final Promise<Void> stopped = Promise.promise();
+        super.stop(stopped);
+        stopped.future()
+                .compose(v -> flusher == null ? Future.succeededFuture() : flusher.flush())
+                .onComplete(ar -> {
+                    if (copyWriter != null) {
+                        copyWriter.close();
+                    }
+                    stopPromise.handle(ar);
+                });
     }
 }
@@ -5,7 +5,6 @@ import io.vertx.core.Handler;
 import io.vertx.core.Promise;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.eventbus.Message;
-import io.vertx.core.json.JsonObject;
 import io.vertx.mysqlclient.MySQLConnectOptions;
 import io.vertx.mysqlclient.MySQLPool;
 import io.vertx.sqlclient.PoolOptions;
@@ -19,8 +18,10 @@ import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * This is for importing call reports to FisWeb
@@ -29,10 +30,12 @@ import java.util.List;
  */
 public class FiswebCALLImportVerticle extends XBRLImportVerticle {
     private static final Logger logger = LoggerFactory.getLogger(FiswebCALLImportVerticle.class.getName());
+    protected final UpdateStatementCache statements = new UpdateStatementCache("bankdata2017q2", 256);
+    private FiswebCallImportHandler callImport;
 
     @Override
     protected SimpleFileVisitor<Path> getPublishingVisitor() {
-        final String glob = "glob:/*.xml";
+        final String glob = "glob:/**.xml";
         final PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher(glob);
         return new CALLPublishingVisitor(pathMatcher, vertx.eventBus(), listenerAddress);
     }
@@ -46,15 +49,13 @@ public class FiswebCALLImportVerticle extends XBRLImportVerticle {
      */
     @Override
     public void start(Promise p) {
-        final MySQLConnectOptions connectOptions = new MySQLConnectOptions().setPort(config().getInteger("fiswebConnectionPort", 13306)).setHost(config().getString("fiswebConectionHost", "localhost")).setDatabase(config().getString("fiswebConnectionDb", "fis_common")).setUser(config().getString("fiswebConnectionUser", "admin")).setPassword(config().getString("fiswebConnectionPassword", "HARDCODED_PASSWORD"));
+        final MySQLConnectOptions connectOptions = new MySQLConnectOptions().setPort(config().getInteger("fiswebConnectionPort", 13306)).setHost(config().getString("fiswebConectionHost", "localhost")).setDatabase(config().getString("fiswebConnectionDb", "fis_common")).setUser(config().getString("fiswebConnectionUser", "admin")).setPassword(config().getString("fiswebConnectionPassword", "HARDCODED_PASSWORD")).setCachePreparedStatements(true);
         final MySQLPool fiswebPool = MySQLPool.pool(vertx, connectOptions, new PoolOptions().setMaxSize(8));
 
         final EventBus eb = vertx.eventBus();
 
-        List<String> targetColumns = new ArrayList<>();
-
-        List<String> importOnlyColumns = new ArrayList<>();
-        importOnlyColumns.add("RIADB947");
+        // TODO Hardcoded: Limit attributes to importOnlyColumns
+        final Set<String> importOnlyColumns = new HashSet<>();
         importOnlyColumns.add("RIADB947");
         importOnlyColumns.add("RIADB948");
         importOnlyColumns.add("RIADB949");
@@ -70,41 +71,39 @@ public class FiswebCALLImportVerticle extends XBRLImportVerticle {
         importOnlyColumns.add("RIADB959");
         importOnlyColumns.add("RIADB960");
         importOnlyColumns.add("RIADB961");
-
-        eb.consumer(busAddress, getURIHandler());
+        // columns come from the fiswebTables tables (b by default) of each filing's quarter, read when its first filing arrives
+        final FiswebSchemaCatalog catalog = new FiswebSchemaCatalog(fiswebPool, "bankdata2017q2", importOnlyColumns::contains);
 
         // fisweb import setup
 
         // setup: listen for parsed UBPR blocks
         // this is all of the FISWEB import implementation
         // TODO update FiswebBankImport to something more appropriate here
-        eb.consumer(listenerAddress, new FiswebCallImportHandler(fiswebPool, targetColumns));
-
-        fiswebPool.preparedQuery("SELECT upper(c.column_name) FROM information_schema.columns c\nWHERE c.TABLE_SCHEMA='bankdata2017q2'\n\tAND c.TABLE_NAME = ?\n" + // try not to inject m4lw4r3 into ur own sql
-                        "ORDER BY c.TABLE_NAME DESC").execute(Tuple.of("b2021q4b"))
-                .compose(p_cols -> {
-                    p_cols.forEach(row -> {
-                        String candidateCol = row.getString(0);
-                        // TODO Hardcoded: Limit attributes to importOnlyColumns
-                        if (importOnlyColumns.contains(candidateCol)) {
-                            logger.debug("Adding " + candidateCol + " for import");
-                            targetColumns.add(candidateCol);
-                        }
-                    });
-                    p.complete();
-                    return Future.succeededFuture();
-                }).onFailure(t -> {
-                    logger.error(t.getMessage());
-                    p.fail(t);
-                });
+        callImport = new FiswebCallImportHandler(fiswebPool, catalog);
+        eb.localConsumer(listenerAddress, callImport);
+        listenForZips();
+        p.complete();
+    }
+
+    /**
+     * UPDATE batches waiting or executing; merged rows are only written on flush, so they don't count
+     */
+    @Override
+    protected int writerBacklog() {
+        return callImport == null ? 0 : callImport.router.backlog();
     }
 
     /**
      * This could be absorbed into start() but it made some sense to isolate it here
      */
-    private class FiswebCallImportHandler implements Handler<Message<Object>> {
-        private final List<String> targetColumns;
+    private class FiswebCallImportHandler implements Handler<Message<XBRLFiling>> {
+        private final FiswebTableRouter router;
+        private final FiswebUpdateBatcher updates;
+        private final FiswebMergeWriter merge;
+        private final FilingDigestStore digests;
+        private final boolean changedColumnsOnly;
         final MySQLPool fiswebPool;
+        private Throwable unresolved;
 
         /**
          * Write data items to fisweb as they come through.
@@ -114,75 +113,109 @@ public class FiswebCALLImportVerticle extends XBRLImportVerticle {
          * @param message
          */
         @Override
-        public void handle(Message message) {
-            final Tuple parms = Tuple.tuple();
-            final JsonObject messageJson = new JsonObject(message.body().toString());
-            if (messageJson.getBoolean("flush", false)) {
+        public void handle(Message<XBRLFiling> message) {
+            final XBRLFiling filing = message.body();
+            if (filing.isFlush()) {
+                // acknowledge the zip once every update queued for it has been executed, after waiting for any
+                // table whose columns are still being read; filings of a table that couldn't be read fail the flush
+                router.ready()
+                        .compose(v -> {
+                            final List<FilingDigestStore.Staged> staged = digests == null ? null : digests.drain();
+                            return router.flush()
+                                    .compose(flushed -> {
+                                        final Throwable failure = unresolved;
+                                        unresolved = null;
+                                        return failure == null ? Future.<Void>succeededFuture() : Future.<Void>failedFuture(failure);
+                                    })
+                                    .compose(flushed -> commitDigests(staged));
+                        })
+                        .onSuccess(v -> message.reply(null))
+                        .onFailure(fail -> message.fail(500, fail.toString()));
                 return;
             }
+            filingConsumed();
+            final LocalDate dataDate;
             try {
-                final JsonObject call = messageJson.getJsonObject("call");
-                final JsonObject divisors = messageJson.getJsonObject("divisors");
-                final LocalDate dataDate = LocalDate.parse(call.getString(XBRLImportConfig.RCON_9999), DateTimeFormatter.ofPattern("yyyyMMdd"));
-                final String query = generateUpdate(dataDate, targetColumns, call, divisors, parms);
-                if (query.length() > 0) {
-                    fiswebPool.preparedQuery(query).execute(parms).onFailure(t -> {
-                        logger.error("Query failed: " + t);
+                dataDate = LocalDate.parse(String.valueOf(filing.getValue(XBRLImportConfig.RCON_9999)), DateTimeFormatter.ofPattern("yyyyMMdd"));
+            } catch (Exception e) {
+                logger.error("Proccessing " + filing.getPath() + ": " + e);
+                return;
+            }
+            router.route(dataDate)
+                    .onSuccess(route -> write(filing, route))
+                    .onFailure(fail -> {
+                        if (unresolved == null) {
+                            unresolved = fail;
+                        }
                     });
+        }
+
+        private void write(XBRLFiling filing, FiswebTableRouter.Route route) {
+            final Object cert = filing.getValue(XBRLImportConfig.RSSD_9050);
+            if (cert == null) {
+                logger.error("Missing RSSD9050 in " + filing.getPath());
+                return;
+            }
+            final int id = ((Number) cert).intValue();
+            BitSet changed = null;
+            if (digests != null) {
+                changed = digests.track(filing, changedColumnsOnly ? route.getColumns() : null);
+                if (changed != null && changed.isEmpty()) {
+                    logger.debug("Unchanged: " + filing.getPath());
+                    return;
                 }
-            } catch (Exception e) {
-                logger.error("Proccessing " + messageJson.getString("path"));
-                logger.error("Caught: " + e.toString());
-                logger.error("Message: " + e.getMessage());
             }
+            router.write(route, id, filing, changed);
         }
 
-        public FiswebCallImportHandler(MySQLPool fiswebPool, List<String> targetColumns) {
+        public FiswebCallImportHandler(MySQLPool fiswebPool, FiswebSchemaCatalog catalog) {
             this.fiswebPool = fiswebPool;
-            this.targetColumns = targetColumns;
+            this.updates = new FiswebUpdateBatcher(vertx, fiswebPool, config().getInteger(XBRLImportConfig.CFG_FISWEBBATCHSIZE, 200));
+            if (XBRLImportConfig.FISWEBINGEST_MERGE.equals(config().getString(XBRLImportConfig.CFG_FISWEBINGESTMODE, XBRLImportConfig.FISWEBINGEST_UPDATE))) {
+                logger.info("Merging fisweb updates through a staging table");
+                this.merge = new FiswebMergeWriter(fiswebPool, "bankdata2017q2");
+            } else {
+                this.merge = null;
+            }
+            this.router = new FiswebTableRouter(catalog,
+                    FiswebTableRouter.tableTypes(config().getString(XBRLImportConfig.CFG_FISWEBTABLES, "b")),
+                    (type, date) -> generateTable("b", type, date), updates, merge, FiswebCALLImportVerticle.this::generateUpdate);
+            this.digests = getDigestStore();
+            this.changedColumnsOnly = config().getBoolean(XBRLImportConfig.CFG_FISWEBCHANGEDCOLUMNS, false);
         }
     }
 
     /**
-     * Generate a fisweb UPDATE statement and Tuple by iterating through columns, appending assignment placeholders
-     * to the query and filling Tuple t with values.
+     * Generate a fisweb UPDATE statement and Tuple by walking the filing's facts through the table's column mapping,
+     * appending assignment placeholders to the query and filling Tuple t with values.
      * <p>
+     * Filings with the same columns present get the same statement instance from the statement cache.
      * This is for banks but could be generalized.
      *
-     * @param dataDate   Date of table name and content
-     * @param columns    List of columns for update
-     * @param callReport Column values
+     * @param table      Target table and its columns
+     * @param callReport Column values and divisors
+     * @param id         Fisweb id of the bank, its RSSD9050 cert
      * @param t          OUT: Tuple of values for update
      * @return query
      */
-    public String generateUpdate(LocalDate dataDate, List<String> columns, JsonObject callReport, JsonObject divisors, Tuple t) {
-        StringBuffer query = new StringBuffer(8196);
+    public String generateUpdate(FiswebSchemaCatalog.TableSchema table, XBRLFiling callReport, int id, Tuple t) {
+        return generateUpdate(table, callReport, id, t, null);
+    }
 
-        // ERROR LOG we don't even have rssdid in the record
-        if (!(columns.size() > 0 && callReport.containsKey(XBRLImportConfig.RSSD_9050))) {
-            logger.error("Missing columns and/or RSSD9050");
+    /**
+     * Generate a fisweb UPDATE statement for only some of the columns
+     *
+     * @param only Positions in the table's columns to update, null for all
+     * @see #generateUpdate(FiswebSchemaCatalog.TableSchema, XBRLFiling, int, Tuple)
+     */
+    public String generateUpdate(FiswebSchemaCatalog.TableSchema table, XBRLFiling callReport, int id, Tuple t, BitSet only) {
+        final int[] shape = new int[table.getColumns().size() * 2];
+        final int n = table.shape(callReport, only, shape, t);
+        if (n == 0) {
             return "";
-        } else {
-            // TODO at time of writing only columns in B table need to be updated
-            // TODO OBVIOUSLY THIS IS A HARDCODED HACK TO BE FIXED IF THIS CODE NEEDS MORE THAN 1 ROLE
-            String tableName = generateTable("b", "b", dataDate);
-            query.append("UPDATE bankdata2017q2.").append(tableName).append(" SET ");
-            List<String> ihatejavasometimes = new ArrayList<>();
-            columns.forEach(col -> {
-                if (callReport.containsKey(col)) {
-                    ihatejavasometimes.add(col + "=?/" + divisors.getInteger(col, 1));
-                    t.addValue(callReport.getValue(col));
-                }
-            });
-
-            String setvals = String.join(",", ihatejavasometimes);
-            query.append(setvals).append(" WHERE id=?");
-            t.addValue(callReport.getInteger(XBRLImportConfig.RSSD_9050));
-            if (ihatejavasometimes.size() == 0) {
-                return "";
-            }
-            return query.toString();
         }
+        t.addValue(id);
+        return statements.update(table.getTable(), table.getColumns(), shape, n, "id");
     }
 
     public FiswebCALLImportVerticle(String busAddress) {
@@ -0,0 +1,215 @@
+package com.fedfis.ops;
+
+import io.vertx.core.Future;
+import io.vertx.mysqlclient.MySQLPool;
+import io.vertx.sqlclient.SqlConnection;
+import io.vertx.sqlclient.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers fisweb updates until flush, then applies them with a staging table and one UPDATE ... JOIN per table
+ * <p>
+ * On flush each target table's rows are loaded into a temporary table of TEXT columns with multi-row INSERTs,
+ * then merged with a single set-based UPDATE. A column missing from a filing is staged as NULL and keeps its
+ * current value, just as it was left out of the per-row UPDATE. A value with a divisor is divided as a BigDecimal
+ * when it is buffered, by the divisor of its own fact, so the result doesn't go through a double. When a bank is
+ * added twice before a flush, later values win column by column. Each table is written with the columns of its
+ * FiswebSchemaCatalog.TableSchema. Each staging and merge round is timed as fisweb.merge, tagged with the table.
+ * Every method must be called from the owning verticle's context.
+ */
+public class FiswebMergeWriter {
+    private static final Logger logger = LoggerFactory.getLogger(FiswebMergeWriter.class.getName());
+    private static final int MAX_PLACEHOLDERS = 65535;// MySQL prepared statement limit
+    private static final int MAX_ROWS_PER_INSERT = 1000;
+    private static final int MAX_STAGE_COLUMNS = 500;// well under InnoDB's 1017 columns per table
+    private static final String STAGE_TABLE = "xbrl_stage";
+
+    protected final MySQLPool pool;
+    protected final String schema;
+    private final Map<String, TableRows> tables = new LinkedHashMap<>();
+
+    /**
+     * @param pool   Fisweb pool
+     * @param schema Schema of the target tables
+     */
+    public FiswebMergeWriter(MySQLPool pool, String schema) {
+        this.pool = pool;
+        this.schema = schema;
+    }
+
+    /**
+     * Buffer the columns of a table a filing has for one row of it
+     *
+     * @param table  Target table
+     * @param id     Value of the table's id column
+     * @param filing Filing holding the column values
+     */
+    public void add(FiswebSchemaCatalog.TableSchema table, int id, XBRLFiling filing) {
+        add(table, id, filing, null);
+    }
+
+    /**
+     * Buffer some of the columns of a table a filing has for one row of it
+     *
+     * @param only Positions in the table's columns to merge, null for all
+     */
+    public void add(FiswebSchemaCatalog.TableSchema table, int id, XBRLFiling filing, BitSet only) {
+        final TableRows rows = tables.computeIfAbsent(table.getTable(), name -> new TableRows(table));
+        final int[] columnOf = table.columnOf(filing);
+        String[] values = rows.rows.get(id);
+        for (int i = 0; i < filing.size(); i++) {
+            final int conceptId = filing.conceptId(i);
+            final int c = conceptId < columnOf.length ? columnOf[conceptId] : -1;
+            if (c < 0 || (only != null && !only.get(c))) {
+                continue;
+            }
+            if (values == null) {
+                values = new String[rows.columns.size()];
+                rows.rows.put(id, values);
+            }
+            values[c] = text(filing.value(i), filing.divisor(i));
+            rows.present.set(c);
+        }
+    }
+
+    private static String text(Object value, int divisor) {
+        if (divisor != 1 && (value instanceof Long || value instanceof BigDecimal)) {
+            final BigDecimal decimal = value instanceof Long ? BigDecimal.valueOf((Long) value) : (BigDecimal) value;
+            return decimal.divide(BigDecimal.valueOf(divisor), MathContext.DECIMAL128).toPlainString();
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? "1" : "0";
+        } else if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * Rows buffered for the next flush
+     */
+    public int pending() {
+        int n = 0;
+        for (TableRows rows : tables.values()) {
+            n += rows.rows.size();
+        }
+        return n;
+    }
+
+    /**
+     * Merge everything buffered into the target tables
+     *
+     * @return Future completing once every table has been updated
+     */
+    public Future<Void> flush() {
+        if (tables.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        final List<TableRows> batch = new ArrayList<>(tables.values());
+        tables.clear();
+        return pool.withConnection(connection -> {
+            Future<Void> merged = Future.succeededFuture();
+            for (TableRows rows : batch) {
+                final int[] present = rows.present.stream().toArray();
+                for (int from = 0; from < present.length; from += MAX_STAGE_COLUMNS) {
+                    final int[] stageColumns = Arrays.copyOfRange(present, from, Math.min(present.length, from + MAX_STAGE_COLUMNS));
+                    merged = merged.compose(v -> merge(connection, rows, stageColumns));
+                }
+            }
+            return merged;
+        });
+    }
+
+    private Future<Void> merge(SqlConnection connection, TableRows rows, int[] stageColumns) {
+        final long started = System.currentTimeMillis();
+        final StringBuilder create = new StringBuilder("CREATE TEMPORARY TABLE " + STAGE_TABLE + " (id INT PRIMARY KEY");
+        final StringBuilder update = new StringBuilder("UPDATE " + schema + "." + rows.table + " t JOIN " + STAGE_TABLE + " s ON t.id = s.id SET ");
+        for (int c = 0; c < stageColumns.length; c++) {
+            final String column = rows.columns.get(stageColumns[c]);
+            create.append(", ").append(column).append(" TEXT");
+            if (c > 0) {
+                update.append(", ");
+            }
+            update.append("t.").append(column).append(" = COALESCE(s.").append(column).append(", t.").append(column).append(")");
+        }
+        create.append(")");
+
+        return connection.query("DROP TEMPORARY TABLE IF EXISTS " + STAGE_TABLE).execute()
+                .compose(v -> connection.query(create.toString()).execute())
+                .compose(v -> stage(connection, rows, stageColumns))
+                .compose(v -> connection.query(update.toString()).execute())
+                .compose(result -> {
+                    logger.info("Merged " + rows.rows.size() + " rows x " + stageColumns.length + " columns into "
+                            + rows.table + " in " + (System.currentTimeMillis() - started) + "ms, " + result.rowCount() + " changed");
+                    return connection.query("DROP TEMPORARY TABLE " + STAGE_TABLE).execute();
+                })
+                .onComplete(ar -> ImportMetrics.registry()
+                        .timer("fisweb.merge", "table", rows.table, "outcome", ar.succeeded() ? "success" : "failure")
+                        .record(System.currentTimeMillis() - started, TimeUnit.MILLISECONDS))
+                .mapEmpty();
+    }
+
+    /**
+     * Load the rows into the staging table with INSERTs of as many rows as the placeholder limit allows
+     */
+    private Future<Void> stage(SqlConnection connection, TableRows rows, int[] stageColumns) {
+        final int rowsPerInsert = Math.max(1, Math.min(MAX_ROWS_PER_INSERT, MAX_PLACEHOLDERS / (stageColumns.length + 1)));
+        final List<Tuple> chunk = new ArrayList<>(rowsPerInsert);
+        Future<Void> staged = Future.succeededFuture();
+        for (Map.Entry<Integer, String[]> row : rows.rows.entrySet()) {
+            final Tuple values = Tuple.tuple().addInteger(row.getKey());
+            for (int column : stageColumns) {
+                values.addString(row.getValue()[column]);
+            }
+            chunk.add(values);
+            if (chunk.size() == rowsPerInsert) {
+                staged = insert(staged, connection, rows, stageColumns, new ArrayList<>(chunk));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            staged = insert(staged, connection, rows, stageColumns, chunk);
+        }
+        return staged;
+    }
+
+    private Future<Void> insert(Future<Void> previous, SqlConnection connection, TableRows table, int[] stageColumns, List<Tuple> rows) {
+        final StringBuilder insert = new StringBuilder("INSERT INTO " + STAGE_TABLE + " (id");
+        for (int column : stageColumns) {
+            insert.append(", ").append(table.columns.get(column));
+        }
+        insert.append(") VALUES ");
+        final String placeholders = "(?" + ", ?".repeat(stageColumns.length) + ")";
+        final Tuple parms = Tuple.tuple();
+        for (int r = 0; r < rows.size(); r++) {
+            insert.append(r == 0 ? "" : ",").append(placeholders);
+            final Tuple row = rows.get(r);
+            for (int i = 0; i < row.size(); i++) {
+                parms.addValue(row.getValue(i));
+            }
+        }
+        return previous.compose(v -> connection.preparedQuery(insert.toString()).execute(parms)).mapEmpty();
+    }
+
+    private static class TableRows {
+        final String table;
+        final List<String> columns;
+        final Map<Integer, String[]> rows = new LinkedHashMap<>();
+        final BitSet present = new BitSet();
+
+        TableRows(FiswebSchemaCatalog.TableSchema schema) {
+            this.table = schema.getTable();
+            this.columns = schema.getColumns();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.fedfis.ops;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.mysqlclient.MySQLPool;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Discovers the columns of fisweb tables on first use and maps each source's concept ids straight to them
+ * <p>
+ * A table's columns are read from information_schema the first time a filing needs it, keeping those the column
+ * filter accepts, and cached for the life of the catalog; filings arriving while it is read wait for the same read.
+ * A table that is missing or has no wanted columns gets a schema without columns, so it can be left out of the tables
+ * a filing is written to; a read that fails is tried again on the table's next use. Each TableSchema keeps
+ * a concept-id to column-index array for the dictionary of the filings it is used with, so a row is built by one
+ * walk over the filing's facts instead of a lookup per column. Every method must be called from the owning
+ * verticle's context.
+ */
+public class FiswebSchemaCatalog {
+    private static final Logger logger = LoggerFactory.getLogger(FiswebSchemaCatalog.class.getName());
+
+    protected final MySQLPool pool;
+    protected final String schema;
+    protected final Predicate<String> columnFilter;
+    private final Map<String, Future<TableSchema>> tables = new HashMap<>();
+
+    /**
+     * @param pool         Fisweb pool
+     * @param schema       Schema of the tables
+     * @param columnFilter Upper-case column names to write
+     */
+    public FiswebSchemaCatalog(MySQLPool pool, String schema, Predicate<String> columnFilter) {
+        this.pool = pool;
+        this.schema = schema;
+        this.columnFilter = columnFilter;
+    }
+
+    /**
+     * Get a table's schema, reading its columns if it isn't cached
+     *
+     * @param table Unqualified table name, as from generateTable()
+     * @return Future of the schema, with no columns if the table doesn't exist or has none of the wanted ones; fails
+     * if the table couldn't be read
+     */
+    public Future<TableSchema> table(String table) {
+        final Future<TableSchema> cached = tables.get(table);
+        if (cached != null && !cached.failed()) {
+            return cached;
+        }
+        final Future<TableSchema> loading = load(table);
+        tables.put(table, loading);
+        return loading;
+    }
+
+    /**
+     * @return Future completing once every table being read has been read or failed, after the handlers already
+     * waiting on them
+     */
+    public Future<Void> ready() {
+        final List<Future<?>> loading = new ArrayList<>();
+        tables.values().forEach(table -> {
+            if (!table.isComplete()) {
+                loading.add(table);
+            }
+        });
+        return loading.isEmpty() ? Future.succeededFuture() : CompositeFuture.join(List.copyOf(loading)).mapEmpty();
+    }
+
+    private Future<TableSchema> load(String table) {
+        return pool.preparedQuery("SELECT upper(c.column_name) FROM information_schema.columns c\nWHERE c.TABLE_SCHEMA = ?\n\tAND c.TABLE_NAME = ?\n" +
+                "ORDER BY c.ORDINAL_POSITION").execute(Tuple.of(schema, table)).map(rows -> {
+            final List<String> columns = new ArrayList<>();
+            for (Row row : rows) {
+                final String column = row.getString(0);
+                if (columnFilter.test(column)) {
+                    columns.add(column);
+                }
+            }
+            logger.info("Importing " + columns.size() + " of " + rows.size() + " columns of " + schema + "." + table);
+            return new TableSchema(table, columns);
+        }).onFailure(fail -> logger.error("Reading columns of " + schema + "." + table + ": " + fail.getMessage()));
+    }
+
+    /**
+     * The columns of one table to write, and how a source's concepts map to them
+     */
+    public static final class TableSchema {
+        private final String table;
+        private final List<String> columns;
+        private ConceptDictionary dictionary;
+        private int[] columnOf = new int[0];
+        private int[] conceptIds = new int[0];
+
+        /**
+         * @param table   Unqualified table name
+         * @param columns Upper-case columns to write, in the order positions refer to
+         */
+        public TableSchema(String table, List<String> columns) {
+            this.table = table;
+            this.columns = Collections.unmodifiableList(new ArrayList<>(columns));
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        public boolean isEmpty() {
+            return columns.isEmpty();
+        }
+
+        /**
+         * Column position of each of a filing's facts; -1 for facts this table doesn't have
+         * <p>
+         * The mapping is compiled for the filing's dictionary on first use and again once the dictionary has grown
+         * past it, since a concept first seen later may name one of the columns.
+         *
+         * @param filing Filing whose facts are mapped
+         * @return column positions indexed by concept id; ids past its end aren't columns
+         */
+        public int[] columnOf(XBRLFiling filing) {
+            final ConceptDictionary filingDictionary = filing.getDictionary();
+            if (filingDictionary != dictionary || columnOf.length < filingDictionary.size()) {
+                compile(filingDictionary);
+            }
+            return columnOf;
+        }
+
+        private void compile(ConceptDictionary filingDictionary) {
+            // concepts added while compiling get ids past the end, so they are picked up next time
+            final int[] mapping = new int[filingDictionary.size()];
+            Arrays.fill(mapping, -1);
+            final int[] ids = new int[columns.size()];
+            int n = 0;
+            for (int c = 0; c < columns.size(); c++) {
+                final int id = filingDictionary.lookup(columns.get(c));
+                if (id >= 0 && id < mapping.length) {
+                    mapping[id] = c;
+                    ids[n++] = id;
+                }
+            }
+            Arrays.sort(ids, 0, n);
+            dictionary = filingDictionary;
+            columnOf = mapping;
+            conceptIds = Arrays.copyOf(ids, n);
+        }
+
+        /**
+         * Collect the columns of this table a filing has, in fact order
+         * <p>
+         * Walks the filing's facts, or for a table with far fewer columns than the filing has facts looks up each
+         * column's fact instead; facts are sorted by concept id, so both give the same order.
+         *
+         * @param filing Filing holding the values
+         * @param only   Column positions to take, null for all
+         * @param shape  OUT: pairs of (column position, divisor); must hold 2 * columns.size() ints
+         * @param t      OUT: the values, in the same order; null to skip them
+         * @return number of ints of shape used
+         */
+        public int shape(XBRLFiling filing, BitSet only, int[] shape, Tuple t) {
+            final int[] mapping = columnOf(filing);
+            int n = 0;
+            if (conceptIds.length * 8 < filing.size()) {
+                for (int id : conceptIds) {
+                    final int i = filing.indexOf(id);
+                    final int c = mapping[id];
+                    if (i >= 0 && (only == null || only.get(c))) {
+                        shape[n++] = c;
+                        shape[n++] = filing.divisor(i);
+                        if (t != null) {
+                            t.addValue(filing.value(i));
+                        }
+                    }
+                }
+                return n;
+            }
+            for (int i = 0; i < filing.size(); i++) {
+                final int id = filing.conceptId(i);
+                final int c = id < mapping.length ? mapping[id] : -1;
+                if (c >= 0 && (only == null || only.get(c))) {
+                    shape[n++] = c;
+                    shape[n++] = filing.divisor(i);
+                    if (t != null) {
+                        t.addValue(filing.value(i));
+                    }
+                }
+            }
+            return n;
+        }
+    }
+}
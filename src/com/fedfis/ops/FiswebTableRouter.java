@@ -0,0 +1,226 @@
+package com.fedfis.ops;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Splits each filing across every fisweb table of its quarter that has columns for its facts
+ * <p>
+ * A quarter's route is the tables of the configured types whose FiswebSchemaCatalog schema has columns, resolved
+ * once per report date; tables that don't exist or have none of the wanted columns are left out, and a quarter with
+ * no table left fails. Each filing is walked once per table through the table's concept mapping, and its rows go to
+ * the same FiswebUpdateBatcher or FiswebMergeWriter, which group them per statement or per table, so a parse of the
+ * zip feeds every table type instead of one. Every table is keyed by the bank's fisweb id. Every method must be
+ * called from the owning verticle's context.
+ */
+public class FiswebTableRouter {
+    private static final Logger logger = LoggerFactory.getLogger(FiswebTableRouter.class.getName());
+
+    /**
+     * Builds one table's UPDATE for a filing, as the fisweb verticles' generateUpdate()
+     */
+    @FunctionalInterface
+    public interface UpdateGenerator {
+        String generate(FiswebSchemaCatalog.TableSchema table, XBRLFiling filing, int id, Tuple t, BitSet only);
+    }
+
+    protected final FiswebSchemaCatalog catalog;
+    protected final List<String> tableTypes;
+    protected final BiFunction<String, LocalDate, String> tables;
+    protected final FiswebUpdateBatcher updates;
+    protected final FiswebMergeWriter merge;
+    protected final UpdateGenerator generator;
+    private final Map<LocalDate, Future<Route>> routes = new HashMap<>();
+    private long filingsQueued; // filings that queued at least one UPDATE
+    private long rowsQueued; // UPDATEs they queued, for turning the batcher's backlog back into filings
+
+    /**
+     * @param catalog    Columns of the tables
+     * @param tableTypes Table types to write, as generateTable() takes them
+     * @param tables     Unqualified table of a type and report date
+     * @param updates    Batcher for UPDATEs, used when merge is null
+     * @param merge      Merge writer, or null to write with UPDATEs
+     * @param generator  Builds a table's UPDATE for a filing
+     */
+    public FiswebTableRouter(FiswebSchemaCatalog catalog, List<String> tableTypes, BiFunction<String, LocalDate, String> tables,
+                             FiswebUpdateBatcher updates, FiswebMergeWriter merge, UpdateGenerator generator) {
+        this.catalog = catalog;
+        this.tableTypes = List.copyOf(tableTypes);
+        this.tables = tables;
+        this.updates = updates;
+        this.merge = merge;
+        this.generator = generator;
+    }
+
+    /**
+     * Parse the fiswebTables setting: comma separated table types, or "all" for every type
+     */
+    public static List<String> tableTypes(String setting) {
+        if ("all".equals(setting.trim())) {
+            return XBRLImportVerticle.TABLE_TYPES;
+        }
+        final List<String> types = new ArrayList<>();
+        for (String type : setting.split(",")) {
+            if (!type.isBlank() && !types.contains(type.trim())) {
+                types.add(type.trim());
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Get the tables filings of a report date are written to, resolving them if they aren't cached
+     *
+     * @param date Report date
+     * @return Future of the route; fails if a table couldn't be read or none has columns to write
+     */
+    public Future<Route> route(LocalDate date) {
+        final Future<Route> cached = routes.get(date);
+        if (cached != null && !cached.failed()) {
+            return cached;
+        }
+        final List<Future<?>> resolving = new ArrayList<>(tableTypes.size());
+        for (String type : tableTypes) {
+            resolving.add(catalog.table(tables.apply(type, date)));
+        }
+        final Future<Route> route = CompositeFuture.all(List.copyOf(resolving)).compose(resolved -> {
+            final List<FiswebSchemaCatalog.TableSchema> targets = new ArrayList<>();
+            for (int t = 0; t < resolved.size(); t++) {
+                final FiswebSchemaCatalog.TableSchema table = resolved.resultAt(t);
+                if (!table.isEmpty()) {
+                    targets.add(table);
+                }
+            }
+            if (targets.isEmpty()) {
+                return Future.failedFuture("No columns to import for " + date + " in tables " + tableTypes);
+            }
+            final Route r = new Route(targets);
+            logger.info("Routing " + date + " filings to " + r);
+            return Future.succeededFuture(r);
+        });
+        routes.put(date, route);
+        return route;
+    }
+
+    /**
+     * @return Future completing once every route being resolved has been resolved or failed, after the handlers
+     * already waiting on them
+     */
+    public Future<Void> ready() {
+        final List<Future<?>> resolving = new ArrayList<>();
+        routes.values().forEach(route -> {
+            if (!route.isComplete()) {
+                resolving.add(route);
+            }
+        });
+        return resolving.isEmpty() ? Future.succeededFuture() : CompositeFuture.join(List.copyOf(resolving)).mapEmpty();
+    }
+
+    /**
+     * Queue a filing's rows for every table of its route
+     *
+     * @param route  Route of the filing's report date
+     * @param id     Fisweb id of the bank
+     * @param filing Filing holding the values
+     * @param only   Positions in route.getColumns() to write, null for all
+     */
+    public void write(Route route, int id, XBRLFiling filing, BitSet only) {
+        int queued = 0;
+        for (int t = 0; t < route.tables.size(); t++) {
+            final FiswebSchemaCatalog.TableSchema table = route.tables.get(t);
+            final BitSet tableOnly = only == null ? null : only.get(route.offsets[t], route.offsets[t] + table.getColumns().size());
+            if (tableOnly != null && tableOnly.isEmpty()) {
+                continue;
+            }
+            if (merge != null) {
+                merge.add(table, id, filing, tableOnly);
+                continue;
+            }
+            final Tuple parms = Tuple.tuple();
+            final String query = generator.generate(table, filing, id, parms, tableOnly);
+            if (query.length() > 0) {
+                updates.add(query, parms);
+                queued++;
+            }
+        }
+        if (queued > 0) {
+            filingsQueued++;
+            rowsQueued += queued;
+        }
+    }
+
+    /**
+     * Filings whose UPDATEs are cut into batches but not yet written
+     * <p>
+     * The batcher counts rows, and a filing queues one per table of its route, so its backlog is scaled by the
+     * filings per row queued so far, rounding up. Merged rows are only buffered until the flush and aren't counted.
+     */
+    public int backlog() {
+        final int rows = updates.backlog();
+        if (rows == 0 || rowsQueued == 0) {
+            return rows;
+        }
+        return (int) ((rows * filingsQueued + rowsQueued - 1) / rowsQueued);
+    }
+
+    /**
+     * Send everything queued to every table
+     *
+     * @return Future completing once every row written so far has been executed
+     */
+    public Future<Void> flush() {
+        return merge != null ? merge.flush() : updates.flush();
+    }
+
+    /**
+     * The tables of one report date, and their columns laid end to end for digest tracking
+     */
+    public static final class Route {
+        private final List<FiswebSchemaCatalog.TableSchema> tables;
+        private final List<String> columns;
+        private final int[] offsets;
+
+        Route(List<FiswebSchemaCatalog.TableSchema> tables) {
+            this.tables = Collections.unmodifiableList(tables);
+            this.offsets = new int[tables.size()];
+            final List<String> all = new ArrayList<>();
+            for (int t = 0; t < tables.size(); t++) {
+                offsets[t] = all.size();
+                all.addAll(tables.get(t).getColumns());
+            }
+            this.columns = Collections.unmodifiableList(all);
+        }
+
+        public List<FiswebSchemaCatalog.TableSchema> getTables() {
+            return tables;
+        }
+
+        /**
+         * Every table's columns in route order; a column in several tables appears once for each
+         */
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder s = new StringBuilder();
+            for (FiswebSchemaCatalog.TableSchema table : tables) {
+                s.append(s.length() == 0 ? "" : ", ").append(table.getTable()).append(" (").append(table.getColumns().size()).append(" columns)");
+            }
+            return s.toString();
+        }
+    }
+}
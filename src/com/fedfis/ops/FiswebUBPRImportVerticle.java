@@ -1,11 +1,12 @@
 package com.fedfis.ops;
 
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Promise;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.eventbus.Message;
-import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.JsonArray;
 import io.vertx.mysqlclient.MySQLConnectOptions;
 import io.vertx.mysqlclient.MySQLPool;
 import io.vertx.sqlclient.PoolOptions;
@@ -19,19 +20,20 @@ import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
 
 /**
  * This is for importing UBPR to FisWeb. It makes a few assumptions that may not hold for CALL data.
  */
 public class FiswebUBPRImportVerticle extends XBRLImportVerticle {
     private static final Logger logger = LoggerFactory.getLogger(FiswebUBPRImportVerticle.class.getName());
+    protected final UpdateStatementCache statements = new UpdateStatementCache("bankdata2017q2", 256);
+    private FiswebBankImport bankImport;
 
     @Override
     protected SimpleFileVisitor<Path> getPublishingVisitor() {
-        final String glob = "glob:/*.xml";
+        final String glob = "glob:/**.xml";
         final PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher(glob);
         return new UBPRPublishingVisitor(pathMatcher, vertx.eventBus(), listenerAddress);
     }
@@ -45,51 +47,49 @@ public class FiswebUBPRImportVerticle extends XBRLImportVerticle {
      */
     @Override
     public void start(Promise p) {
-        final MySQLConnectOptions connectOptions = new MySQLConnectOptions().setPort(config().getInteger("fiswebConnectionPort", 13306)).setHost(config().getString("fiswebConectionHost", "localhost")).setDatabase(config().getString("fiswebConnectionDb", "fis_common")).setUser(config().getString("fiswebConnectionUser", "admin")).setPassword(config().getString("fiswebConnectionPassword", "HARDCODED_PASSWORD"));
+        final MySQLConnectOptions connectOptions = new MySQLConnectOptions().setPort(config().getInteger("fiswebConnectionPort", 13306)).setHost(config().getString("fiswebConectionHost", "localhost")).setDatabase(config().getString("fiswebConnectionDb", "fis_common")).setUser(config().getString("fiswebConnectionUser", "admin")).setPassword(config().getString("fiswebConnectionPassword", "HARDCODED_PASSWORD")).setCachePreparedStatements(true);
         final MySQLPool fiswebPool = MySQLPool.pool(vertx, connectOptions, new PoolOptions().setMaxSize(8));
 
         final EventBus eb = vertx.eventBus();
 
-        String dmTable = "b2021q4dm";
-        // TODO need table name in here but don't even have a date to work with until later
-        String bTable = "b2019q1b";
-
-        List<String> targetColumns = new ArrayList<>();
-        Map<Integer, Integer> idrssd_cert = new HashMap<>(5000);
-
-        eb.consumer(busAddress, getURIHandler());
+        // fisweb ids come from each quarter's dm table, read when its first filing arrives
+        final RssdCertCache idrssd_cert = new RssdCertCache(fiswebPool, "bankdata2017q2", date -> generateTable("b", "dm", date),
+                config().getInteger(XBRLImportConfig.CFG_FISWEBRSSDQUARTERS, 8),
+                config().getLong(XBRLImportConfig.CFG_FISWEBRSSDREFRESHMS, 600_000L));
+        // and columns from the quarter's fiswebTables tables (b by default); only UBPR columns are imported
+        final FiswebSchemaCatalog catalog = new FiswebSchemaCatalog(fiswebPool, "bankdata2017q2", column -> column.startsWith("UBPR"));
 
         // fisweb import setup
 
         // setup: listen for parsed UBPR blocks
         // this is all of the FISWEB import implementation
-        eb.consumer(listenerAddress, new FiswebBankImport(fiswebPool, targetColumns, idrssd_cert));
-
-        // setup: load idsrrd and ubprColumns
-        fiswebPool.preparedQuery("SELECT rssd9001,id FROM bankdata2017q2." + dmTable).execute().compose(result -> {
-            result.forEach(row -> idrssd_cert.put(row.getInteger(0), row.getInteger(1)));
-            return Future.succeededFuture();
-        }).compose(_foo -> {
-            // The constraint on c.COLUMN_NAME means only UBPR will be imported
-            return fiswebPool.preparedQuery("SELECT upper(c.column_name) FROM information_schema.columns c\nWHERE c.TABLE_SCHEMA='bankdata2017q2'\n\tAND c.TABLE_NAME = ?\n" + // try not to inject m4lw4r3 into ur own sql
-                    "\tAND upper(c.COLUMN_NAME) LIKE 'UBPR%'\nORDER BY c.TABLE_NAME DESC").execute(Tuple.of(bTable));
-        }).compose(p_cols -> {
-            p_cols.forEach(row -> targetColumns.add(row.getString(0)));
-            p.complete();
-            return Future.succeededFuture();
-        }).onFailure(t -> {
-            logger.error(t.getMessage());
-            p.fail(t);
-        });
+        bankImport = new FiswebBankImport(fiswebPool, catalog, idrssd_cert);
+        eb.localConsumer(listenerAddress, bankImport);
+        listenForZips();
+        p.complete();
+    }
+
+    /**
+     * UPDATE batches waiting or executing; merged rows are only written on flush, so they don't count
+     */
+    @Override
+    protected int writerBacklog() {
+        return bankImport == null ? 0 : bankImport.router.backlog();
     }
 
     /**
      * This could be absorbed into start() but it made some sense to isolate it here
      */
-    private class FiswebBankImport implements Handler<Message<Object>> {
-        private final List<String> targetColumns;
-        private final Map<Integer, Integer> idrssd_cert;
+    private class FiswebBankImport implements Handler<Message<XBRLFiling>> {
+        private final FiswebTableRouter router;
+        private final RssdCertCache idrssd_cert;
+        private final FiswebUpdateBatcher updates;
+        private final FiswebMergeWriter merge;
+        private final FilingDigestStore digests;
+        private final boolean changedColumnsOnly;
         final MySQLPool fiswebPool;
+        private Throwable unresolved;
+        private List<String> missed = new ArrayList<>(); // filings whose RSSD isn't in their quarter's dm table
 
         /**
          * Write data items to fisweb as they come through.
@@ -99,62 +99,115 @@ public class FiswebUBPRImportVerticle extends XBRLImportVerticle {
          * @param message
          */
         @Override
-        public void handle(Message message) {
-            final Tuple parms = Tuple.tuple();
-            final JsonObject messageJson = new JsonObject(message.body().toString());
-            if (messageJson.getBoolean("flush", false)) {
+        public void handle(Message<XBRLFiling> message) {
+            final XBRLFiling filing = message.body();
+            if (filing.isFlush()) {
+                // acknowledge the zip once every update queued for it has been executed, after waiting for any
+                // quarter whose ids or columns are still being read; filings of a quarter that couldn't be read
+                // fail the flush, and filings of banks missing from dm are answered as not stored, so the manifest
+                // walks them again once the quarter has been read again
+                CompositeFuture.join(idrssd_cert.ready(), router.ready())
+                        .compose(v -> {
+                            final List<FilingDigestStore.Staged> staged = digests == null ? null : digests.drain();
+                            final List<String> unstored = missed;
+                            missed = new ArrayList<>();
+                            return router.flush()
+                                    .compose(flushed -> {
+                                        final Throwable failure = unresolved;
+                                        unresolved = null;
+                                        return failure == null ? Future.<Void>succeededFuture() : Future.<Void>failedFuture(failure);
+                                    })
+                                    .compose(flushed -> commitDigests(staged))
+                                    .map(committed -> unstored.isEmpty() ? null : new JsonArray(unstored));
+                        })
+                        .onSuccess(message::reply)
+                        .onFailure(fail -> message.fail(500, fail.toString()));
+                return;
+            }
+            filingConsumed();
+            final LocalDate dataDate = LocalDate.parse(String.valueOf(filing.getValue(XBRLImportConfig.UBPR_9999)));
+            final Future<RssdCertCache.Quarter> quarter = idrssd_cert.quarter(dataDate);
+            final Future<FiswebTableRouter.Route> route = router.route(dataDate);
+            CompositeFuture.all(quarter, route)
+                    .onSuccess(resolved -> write(filing, quarter.result(), route.result()))
+                    .onFailure(fail -> {
+                        if (unresolved == null) {
+                            unresolved = fail;
+                        }
+                    });
+        }
+
+        private void write(XBRLFiling filing, RssdCertCache.Quarter quarter, FiswebTableRouter.Route route) {
+            final Object rssd = filing.getValue(XBRLImportConfig.RSSD_9001);
+            if (rssd == null) {
+                logger.error("Missing RSSD9001 in " + filing.getPath());
                 return;
             }
-            final JsonObject ubpr = messageJson.getJsonObject("ubpr");
-            final JsonObject divisors = messageJson.getJsonObject("divisors");
-            final LocalDate dataDate = LocalDate.parse(ubpr.getString(XBRLImportConfig.UBPR_9999));
-            final String query = generateUpdate(dataDate, targetColumns, ubpr, divisors, idrssd_cert, parms);
-            fiswebPool.preparedQuery(query).execute(parms);
+            final int id = quarter.id(((Number) rssd).intValue(), filing.getPath());
+            if (id == RssdCertCache.MISSING) {
+                missed.add(filing.getPath());
+                return;
+            }
+            BitSet changed = null;
+            if (digests != null) {
+                changed = digests.track(filing, changedColumnsOnly ? route.getColumns() : null);
+                if (changed != null && changed.isEmpty()) {
+                    logger.debug("Unchanged: " + filing.getPath());
+                    return;
+                }
+            }
+            router.write(route, id, filing, changed);
         }
 
-        public FiswebBankImport(MySQLPool fiswebPool, List<String> targetColumns, Map<Integer, Integer> idrssd_cert) {
+        public FiswebBankImport(MySQLPool fiswebPool, FiswebSchemaCatalog catalog, RssdCertCache idrssd_cert) {
             this.fiswebPool = fiswebPool;
-            this.targetColumns = targetColumns;
             this.idrssd_cert = idrssd_cert;
+            this.updates = new FiswebUpdateBatcher(vertx, fiswebPool, config().getInteger(XBRLImportConfig.CFG_FISWEBBATCHSIZE, 200));
+            if (XBRLImportConfig.FISWEBINGEST_MERGE.equals(config().getString(XBRLImportConfig.CFG_FISWEBINGESTMODE, XBRLImportConfig.FISWEBINGEST_UPDATE))) {
+                logger.info("Merging fisweb updates through a staging table");
+                this.merge = new FiswebMergeWriter(fiswebPool, "bankdata2017q2");
+            } else {
+                this.merge = null;
+            }
+            this.router = new FiswebTableRouter(catalog,
+                    FiswebTableRouter.tableTypes(config().getString(XBRLImportConfig.CFG_FISWEBTABLES, "b")),
+                    (type, date) -> generateTable("b", type, date), updates, merge, FiswebUBPRImportVerticle.this::generateUpdate);
+            this.digests = getDigestStore();
+            this.changedColumnsOnly = config().getBoolean(XBRLImportConfig.CFG_FISWEBCHANGEDCOLUMNS, false);
         }
     }
 
     /**
-     * Generate a fisweb UPDATE statement and Tuple by iterating through columns, appending assignment placeholders
-     * to the query and filling Tuple t with values.
+     * Generate a fisweb UPDATE statement and Tuple by walking the filing's facts through the table's column mapping,
+     * appending assignment placeholders to the query and filling Tuple t with values.
      * <p>
+     * Filings with the same columns present get the same statement instance from the statement cache.
      * This is for banks but could be generalized.
      *
-     * @param dataDate Date of table name and content
-     * @param columns  List of columns for update
-     * @param ubpr     Column values
-     * @param idrssd   Map of idrssd:cert
-     * @param t        OUT: Tuple of values for update
+     * @param table Target table and its columns
+     * @param ubpr  Column values and divisors
+     * @param id    Fisweb id of the bank
+     * @param t     OUT: Tuple of values for update
      * @return query
      */
-    public String generateUpdate(LocalDate dataDate, List<String> columns, JsonObject ubpr, JsonObject divisors, Map<Integer, Integer> idrssd, Tuple t) {
-        StringBuffer query = new StringBuffer(8196);
+    public String generateUpdate(FiswebSchemaCatalog.TableSchema table, XBRLFiling ubpr, int id, Tuple t) {
+        return generateUpdate(table, ubpr, id, t, null);
+    }
 
-        // ERROR LOG we don't even have rssdid in the record
-        if (!(columns.size() > 0 && ubpr.containsKey(XBRLImportConfig.RSSD_9001))) {
-            logger.error("Missing columns and/or RSSD9001");
+    /**
+     * Generate a fisweb UPDATE statement for only some of the columns
+     *
+     * @param only Positions in the table's columns to update, null for all
+     * @see #generateUpdate(FiswebSchemaCatalog.TableSchema, XBRLFiling, int, Tuple)
+     */
+    public String generateUpdate(FiswebSchemaCatalog.TableSchema table, XBRLFiling ubpr, int id, Tuple t, BitSet only) {
+        final int[] shape = new int[table.getColumns().size() * 2];
+        final int n = table.shape(ubpr, only, shape, t);
+        if (n == 0) {
             return "";
-        } else {
-            String tableName = generateTable("b", "b", dataDate);
-            query.append("UPDATE bankdata2017q2.").append(tableName).append(" SET ");
-            List<String> ihatejavasometimes = new ArrayList<>();
-            columns.forEach(col -> {
-                if (ubpr.containsKey(col)) {
-                    ihatejavasometimes.add(col + "=?/" + divisors.getInteger(col,1));
-                    t.addValue(ubpr.getValue(col));
-                }
-            });
-
-            String setvals = String.join(",", ihatejavasometimes);
-            query.append(setvals).append(" WHERE id=?");
-            t.addValue(idrssd.get(ubpr.getInteger(XBRLImportConfig.RSSD_9001)));
-            return query.toString();
         }
+        t.addValue(id);
+        return statements.update(table.getTable(), table.getColumns(), shape, n, "id");
     }
 
     public FiswebUBPRImportVerticle(String busAddress) {
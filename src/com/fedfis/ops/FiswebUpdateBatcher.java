@@ -0,0 +1,90 @@
+package com.fedfis.ops;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.mysqlclient.MySQLPool;
+import io.vertx.sqlclient.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups fisweb UPDATEs of the same statement text and sends each group with executeBatch
+ * <p>
+ * Each statement gets its own BatchFlusher, so a group is prepared once per connection and its rows are sent in
+ * batches that adapt to MySQL's latency. Statement texts should come from an UpdateStatementCache so filings of
+ * the same shape land in the same group. Each group's flusher is named after its table and a hash of its text,
+ * which is logged at debug level when the group is created. Every method must be called from the owning
+ * verticle's context.
+ */
+public class FiswebUpdateBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(FiswebUpdateBatcher.class.getName());
+    protected final Vertx vertx;
+    protected final MySQLPool pool;
+    protected final int batchSize;
+    private final Map<String, BatchFlusher<Tuple>> groups = new HashMap<>();
+
+    /**
+     * @param vertx     Vertx instance
+     * @param pool      Fisweb pool
+     * @param batchSize Initial rows per executeBatch
+     */
+    public FiswebUpdateBatcher(Vertx vertx, MySQLPool pool, int batchSize) {
+        this.vertx = vertx;
+        this.pool = pool;
+        this.batchSize = batchSize;
+    }
+
+    public void add(String query, Tuple values) {
+        groups.computeIfAbsent(query, q -> {
+                    final String name = statementName(q);
+                    logger.debug(name + ": " + q);
+                    return new BatchFlusher<>(vertx, name, batch -> pool.preparedQuery(q).executeBatch(batch),
+                            batchSize, 1, batchSize * 10, 2, 1000L, 3);
+                })
+                .add(values);
+    }
+
+    /**
+     * Short, stable name for a statement, so each one's latency and failures can be told apart in the metrics
+     */
+    static String statementName(String query) {
+        final int table = query.indexOf('.');
+        final int end = query.indexOf(' ', table);
+        return "fisweb " + (table < 0 || end < 0 ? "update" : query.substring(table + 1, end)) + "#" + Integer.toHexString(query.hashCode());
+    }
+
+    /**
+     * Send every buffered update
+     *
+     * @return Future completing once every update added so far has been executed
+     */
+    public Future<Void> flush() {
+        final List<Future<?>> flushed = new ArrayList<>(groups.size());
+        groups.values().forEach(group -> flushed.add(group.flush()));
+        return CompositeFuture.join(List.copyOf(flushed)).mapEmpty();
+    }
+
+    /**
+     * Updates cut into batches but not yet executed, across every statement
+     */
+    public int backlog() {
+        int n = 0;
+        for (BatchFlusher<Tuple> group : groups.values()) {
+            n += group.backlog();
+        }
+        return n;
+    }
+
+    /**
+     * Number of distinct statements seen
+     */
+    public int statements() {
+        return groups.size();
+    }
+}
@@ -0,0 +1,333 @@
+package com.fedfis.ops;
+
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persistent record of which zips and XML entries each sink has imported
+ * <p>
+ * For every zip the manifest keeps its size, mtime and SHA-256, the size, mtime and CRC of each XML entry, and per
+ * sink the import status and the entries that sink stored. A zip whose size and mtime match the manifest (or whose
+ * hash does, if only the mtime moved) and that the sink finished is skipped without being opened. In a changed zip
+ * only new or changed entries are walked. Entries are only recorded once the walk's flush has been acknowledged,
+ * and only those whose filing was published, so a failed or interrupted import is redone in full next time and an
+ * entry that was left out is walked again. A zip some of whose published filings the sink couldn't store is recorded
+ * as partial: the entries it did store are kept and the zip is walked again next time for the rest.
+ * <p>
+ * The manifest is a JSON file with a journal beside it: each change appends the record of its zip to the journal,
+ * and once the journal outgrows the file the whole manifest is rewritten atomically and the journal started over.
+ * Instances are shared per file, so every verticle in the JVM records into the same manifest. Records are
+ * synchronized; zips are hashed outside the lock, once per size and mtime however many sinks begin them.
+ */
+public class ImportManifest {
+    private static final Logger logger = LoggerFactory.getLogger(ImportManifest.class.getName());
+    private static final ConcurrentHashMap<Path, ImportManifest> manifests = new ConcurrentHashMap<>();
+    private static final long MIN_COMPACT_BYTES = 1 << 20;
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+    public static final String PARTIAL = "partial";
+
+    protected final Path file;
+    protected final Path journal;
+    private final JsonObject zips;
+    private final ConcurrentHashMap<String, Hash> hashes = new ConcurrentHashMap<>();
+    private long fileBytes;
+    private long journalBytes;
+
+    private ImportManifest(Path file, JsonObject zips, long fileBytes, long journalBytes) {
+        this.file = file;
+        this.journal = journalOf(file);
+        this.zips = zips;
+        this.fileBytes = fileBytes;
+        this.journalBytes = journalBytes;
+    }
+
+    /**
+     * The shared manifest kept in file, loaded on first use with its journal; a missing file is an empty manifest
+     */
+    public static ImportManifest open(Path file) {
+        return manifests.computeIfAbsent(file.toAbsolutePath(), path -> {
+            try {
+                final JsonObject json = Files.exists(path) ? new JsonObject(Files.readString(path)) : new JsonObject();
+                final JsonObject zips = json.getJsonObject("zips", new JsonObject());
+                final Path journal = journalOf(path);
+                int replayed = 0;
+                if (Files.exists(journal)) {
+                    for (String line : Files.readAllLines(journal)) {
+                        try {
+                            final JsonObject change = new JsonObject(line);
+                            zips.put(change.getString("zip"), change.getJsonObject("record"));
+                            replayed++;
+                        } catch (RuntimeException e) {
+                            // the last append was cut short; what it recorded is redone
+                            logger.warn("Ignoring the rest of " + journal + ": " + e.getMessage());
+                            break;
+                        }
+                    }
+                }
+                logger.info("Import manifest " + path + " has " + zips.size() + " zips, " + replayed + " changes journalled");
+                return new ImportManifest(path, zips, Files.exists(path) ? Files.size(path) : 0L,
+                        Files.exists(journal) ? Files.size(journal) : 0L);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static Path journalOf(Path file) {
+        return file.resolveSibling(file.getFileName() + ".journal");
+    }
+
+    /**
+     * Start importing a zip for a sink
+     *
+     * @param sink Name of the sink
+     * @param zip  Path of the zip on the default filesystem
+     * @return the walk to record entries into, or null if the sink already imported this exact zip
+     */
+    public Walk begin(String sink, Path zip) throws IOException {
+        final BasicFileAttributes attrs = Files.readAttributes(zip, BasicFileAttributes.class);
+        final long mtime = attrs.lastModifiedTime().toMillis();
+        final String key = zip.toAbsolutePath().toString();
+        synchronized (this) {
+            final JsonObject record = zips.getJsonObject(key);
+            if (sameStat(record, attrs.size(), mtime)) {
+                return walk(sink, key, record);
+            }
+        }
+
+        final String sha256 = sha256(key, zip, attrs.size(), mtime);
+        synchronized (this) {
+            JsonObject record = zips.getJsonObject(key);
+            if (!sameStat(record, attrs.size(), mtime)) {
+                if (record == null || !sha256.equals(record.getString("sha256"))) {
+                    // new or changed content: keep what sinks stored, entries are compared one by one during the walk
+                    final JsonObject sinks = record == null ? new JsonObject() : record.getJsonObject("sinks", new JsonObject());
+                    sinks.fieldNames().forEach(s -> sinks.getJsonObject(s).put("status", FAILED));
+                    record = new JsonObject().put("sha256", sha256).put("entries", record == null ? new JsonObject() : record.getJsonObject("entries")).put("sinks", sinks);
+                    zips.put(key, record);
+                }
+                record.put("size", attrs.size()).put("mtime", mtime);
+                // so the zip isn't hashed again for this size and mtime after a restart
+                save(key);
+            }
+            return walk(sink, key, record);
+        }
+    }
+
+    private static boolean sameStat(JsonObject record, long size, long mtime) {
+        return record != null && record.getLong("size", -1L) == size && record.getLong("mtime", -1L) == mtime;
+    }
+
+    private Walk walk(String sink, String key, JsonObject record) {
+        final JsonObject sinkRecord = record.getJsonObject("sinks").getJsonObject(sink);
+        if (sinkRecord != null && DONE.equals(sinkRecord.getString("status"))) {
+            return null;
+        }
+        return new Walk(sink, key, sinkRecord == null ? new JsonObject() : sinkRecord.getJsonObject("entries", new JsonObject()).copy());
+    }
+
+    private synchronized void commit(Walk walk) {
+        final JsonObject record = zips.getJsonObject(walk.zip);
+        final JsonObject entries = record.getJsonObject("entries");
+        final JsonObject stored = walk.stored;
+        walk.published.forEach(name -> {
+            final JsonObject entry = walk.seen.get(name);
+            if (entry != null) {
+                entries.put(name, entry);
+                stored.put(name, fingerprint(entry));
+            }
+        });
+        record.getJsonObject("sinks").put(walk.sink, new JsonObject().put("status", walk.partial ? PARTIAL : DONE).put("entries", stored));
+        save(walk.zip);
+    }
+
+    private synchronized void fail(Walk walk) {
+        final JsonObject record = zips.getJsonObject(walk.zip);
+        final JsonObject sinks = record.getJsonObject("sinks");
+        final JsonObject sinkRecord = sinks.getJsonObject(walk.sink, new JsonObject().put("entries", new JsonObject()));
+        sinks.put(walk.sink, sinkRecord.put("status", FAILED));
+        save(walk.zip);
+    }
+
+    /**
+     * Journal the record of a zip, rewriting the whole manifest instead once the journal is larger than it
+     */
+    private void save(String zip) {
+        try {
+            if (journalBytes > Math.max(fileBytes, MIN_COMPACT_BYTES)) {
+                final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                final byte[] json = new JsonObject().put("zips", zips).encode().getBytes(StandardCharsets.UTF_8);
+                Files.write(tmp, json);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                // the manifest now holds every journalled change, so replaying any of them again is harmless
+                Files.deleteIfExists(journal);
+                fileBytes = json.length;
+                journalBytes = 0;
+                return;
+            }
+            final byte[] line = (new JsonObject().put("zip", zip).put("record", zips.getJsonObject(zip)).encode() + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            Files.write(journal, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            journalBytes += line.length;
+        } catch (IOException e) {
+            logger.error("Saving import manifest " + file + ": " + e);
+        }
+    }
+
+    /**
+     * SHA-256 of a zip as it is at size and mtime, read once however many sinks ask for it at the same time
+     */
+    private String sha256(String key, Path zip, long size, long mtime) throws IOException {
+        final Hash hash = hashes.compute(key, (k, current) -> current != null && current.size == size && current.mtime == mtime
+                ? current : new Hash(size, mtime));
+        if (hash.reading.compareAndSet(false, true)) {
+            try {
+                hash.sha256.complete(sha256(zip));
+            } catch (IOException | RuntimeException e) {
+                hashes.remove(key, hash);
+                hash.sha256.completeExceptionally(e);
+            }
+        }
+        try {
+            return hash.sha256.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Hashing " + zip + ": " + e.getCause(), e.getCause());
+        }
+    }
+
+    private static String sha256(Path zip) throws IOException {
+        try (InputStream in = Files.newInputStream(zip)) {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String fingerprint(JsonObject entry) {
+        return entry.getLong("size") + ":" + entry.getLong("mtime") + ":" + entry.getLong("crc");
+    }
+
+    /**
+     * A zip's SHA-256 for one size and mtime, being read or read
+     */
+    private static final class Hash {
+        final long size;
+        final long mtime;
+        final AtomicBoolean reading = new AtomicBoolean();
+        final CompletableFuture<String> sha256 = new CompletableFuture<>();
+
+        Hash(long size, long mtime) {
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    /**
+     * One sink's import of one zip
+     * <p>
+     * changed() and published() may be called from several parser threads.
+     */
+    public class Walk {
+        final String sink;
+        final String zip;
+        final JsonObject stored;
+        final Map<String, JsonObject> seen = new ConcurrentHashMap<>();
+        final Set<String> published = ConcurrentHashMap.newKeySet();
+        volatile boolean partial = false;
+
+        private Walk(String sink, String zip, JsonObject stored) {
+            this.sink = sink;
+            this.zip = zip;
+            this.stored = stored;
+        }
+
+        /**
+         * Check an entry of the zip against what the sink stored
+         *
+         * @param entry Path inside the zip filesystem, or as walked by MappedZipFile
+         * @param attrs Its attributes
+         * @return true if the sink hasn't stored this entry as it is now
+         */
+        public boolean changed(Path entry, BasicFileAttributes attrs) {
+            long crc = -1L;
+            final MappedZipFile.Entry zipEntry = MappedZipFile.entryOf(attrs);
+            if (zipEntry != null) {
+                crc = zipEntry.getCrc();
+            } else {
+                try {
+                    final Object zipCrc = Files.readAttributes(entry, "zip:crc").get("crc");
+                    if (zipCrc instanceof Number) {
+                        crc = ((Number) zipCrc).longValue();
+                    }
+                } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+                    logger.debug("No CRC for " + entry + ": " + e);
+                }
+            }
+            final JsonObject fingerprint = new JsonObject()
+                    .put("size", attrs.size())
+                    .put("mtime", attrs.lastModifiedTime().toMillis())
+                    .put("crc", crc);
+            final String name = entry.toString();
+            seen.put(name, fingerprint);
+            return crc == -1L || !fingerprint(fingerprint).equals(stored.getString(name));
+        }
+
+        /**
+         * Note that an entry's filing was published to the sink; only these entries are recorded by commit()
+         *
+         * @param entry Path of the entry, as given to changed()
+         */
+        public void published(String entry) {
+            published.add(entry);
+        }
+
+        /**
+         * Note that the sink acknowledged the flush without storing an entry's filing, so it is walked again next time
+         *
+         * @param entry Path of the entry, as given to published()
+         */
+        public void unstored(String entry) {
+            published.remove(entry);
+            partial = true;
+        }
+
+        /**
+         * Record every entry published and not unstored as stored by the sink, and the zip as done or, if some
+         * weren't stored, partial
+         */
+        public void commit() {
+            ImportManifest.this.commit(this);
+        }
+
+        /**
+         * Record the zip as failed for the sink; nothing from this walk is remembered
+         */
+        public void fail() {
+            ImportManifest.this.fail(this);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.fedfis.ops;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.jmx.JmxConfig;
+import io.micrometer.jmx.JmxMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.micrometer.Label;
+import io.vertx.micrometer.MicrometerMetricsOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumSet;
+
+/**
+ * The meter registry every stage of the import records into, exported to Prometheus and JMX
+ * <p>
+ * Meters can be created at any time; until enable() is called the registry has no backends and recording is a
+ * no-op, so code that runs without Launcher (benchmarks, the pipeline harness) needs no setup. Vert.x's own
+ * metrics, including per-address event bus counts, and JVM metrics go to the same registry.
+ * <p>
+ * Meter names, all tagged by sink, source or flusher:
+ * <ul>
+ * <li>xbrl.zip.open, xbrl.zip.walk: time to open a zip filesystem and to walk all of it</li>
+ * <li>xbrl.zip.queued, xbrl.zip.running: zips waiting for and being walked by the ZipScheduler</li>
+ * <li>xbrl.entry.parse, xbrl.filing.facts: getEntries() time and facts per filing</li>
+ * <li>xbrl.batch.*: BatchFlusher rows pending, batches in flight, batch size, rows per batch, write latency,
+ * retries and lost rows; fisweb UPDATE statements each have their own flusher</li>
+ * <li>vertx.eventbus.*: published, delivered and pending messages per bus address</li>
+ * </ul>
+ */
+public final class ImportMetrics {
+    private static final Logger logger = LoggerFactory.getLogger(ImportMetrics.class.getName());
+    public static final String JMX_DOMAIN = "crxmlimport";
+    private static final CompositeMeterRegistry registry = new CompositeMeterRegistry();
+    private static PrometheusMeterRegistry prometheus;
+
+    private ImportMetrics() {
+    }
+
+    public static MeterRegistry registry() {
+        return registry;
+    }
+
+    /**
+     * Add the Prometheus and JMX backends
+     *
+     * @return options to create Vertx with, so Vert.x and JVM metrics are recorded too
+     */
+    public static synchronized MicrometerMetricsOptions enable() {
+        if (prometheus == null) {
+            prometheus = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+            registry.add(prometheus);
+            registry.add(new JmxMeterRegistry(new JmxConfig() {
+                @Override
+                public String get(String key) {
+                    return null;
+                }
+
+                @Override
+                public String domain() {
+                    return JMX_DOMAIN;
+                }
+            }, Clock.SYSTEM));
+        }
+        return new MicrometerMetricsOptions()
+                .setEnabled(true)
+                .setMicrometerRegistry(registry)
+                .setJvmMetricsEnabled(true)
+                .setLabels(EnumSet.of(Label.EB_ADDRESS, Label.EB_SIDE, Label.EB_FAILURE, Label.POOL_TYPE, Label.POOL_NAME));
+    }
+
+    /**
+     * Serve the Prometheus text format at http://host:port/metrics
+     *
+     * @param port Port to listen on; 0 or less serves nothing
+     * @return Future completing once the server listens, with null if nothing is served
+     */
+    public static Future<HttpServer> serve(Vertx vertx, int port) {
+        final PrometheusMeterRegistry scraped;
+        synchronized (ImportMetrics.class) {
+            scraped = prometheus;
+        }
+        if (port <= 0 || scraped == null) {
+            return Future.succeededFuture();
+        }
+        return vertx.createHttpServer()
+                .requestHandler(request -> {
+                    if ("/metrics".equals(request.path())) {
+                        request.response().putHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8").end(scraped.scrape());
+                    } else {
+                        request.response().setStatusCode(404).end();
+                    }
+                })
+                .listen(port)
+                .onSuccess(server -> logger.info("Metrics at http://localhost:" + server.actualPort() + "/metrics"));
+    }
+}
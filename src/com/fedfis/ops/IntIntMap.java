@@ -0,0 +1,112 @@
+package com.fedfis.ops;
+
+/**
+ * A map of int keys to int values without boxing
+ * <p>
+ * Open addressing with linear probing over parallel int arrays; the table doubles once it is half full. Key 0 marks
+ * a free slot, so it is kept on the side. Not thread safe.
+ */
+public class IntIntMap {
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+    private boolean hasZero = false;
+    private int zeroValue;
+
+    /**
+     * @param expected Entries expected, to size the table without growing
+     */
+    public IntIntMap(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return the value for key, or missing if there is none
+     */
+    public int get(int key, int missing) {
+        if (key == 0) {
+            return hasZero ? zeroValue : missing;
+        }
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            final int k = keys[slot];
+            if (k == key) {
+                return values[slot];
+            } else if (k == 0) {
+                return missing;
+            }
+        }
+    }
+
+    public boolean containsKey(int key) {
+        if (key == 0) {
+            return hasZero;
+        }
+        for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+            final int k = keys[slot];
+            if (k == key) {
+                return true;
+            } else if (k == 0) {
+                return false;
+            }
+        }
+    }
+
+    public void put(int key, int value) {
+        if (key == 0) {
+            if (!hasZero) {
+                hasZero = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+        int slot = slot(key);
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int slot(int key) {
+        final int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void grow() {
+        final int[] oldKeys = keys;
+        final int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            final int key = oldKeys[i];
+            if (key != 0) {
+                int slot = slot(key);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -1,25 +1,34 @@
 package com.fedfis.ops;
 
 import io.vertx.config.ConfigRetriever;
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
 import io.vertx.core.json.JsonObject;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Launcher {
 
     public static void main(String[] args) {
         Logger logger = LoggerFactory.getLogger(Launcher.class.getName());
 
-        Vertx vertx = Vertx.vertx();
-
         boolean p_launchFisdbImport = false;
         boolean p_launchFiswebImport = false;
         boolean p_launchFiswebCallImport = false;
+        boolean p_launchArrowExport = false;
+        boolean p_watch = false;
+        boolean p_parse = false;
+        boolean p_replay = false;
+        String p_cluster = null;
 
 //        CommandBuilder builder = CommandBuilder.command("import-ubpr-files");
 //        builder.processHandler(process -> {
@@ -55,6 +64,27 @@ public class Launcher {
                 case "fiswebcall":
                     logger.info(lvalue);
                     p_launchFiswebCallImport = true;
+                    break;
+                case "arrow":
+                    logger.info(lvalue);
+                    p_launchArrowExport = true;
+                    break;
+                case "watch":
+                    logger.info(lvalue);
+                    p_watch = true;
+                    break;
+                case "parse":
+                    logger.info(lvalue);
+                    p_parse = true;
+                    break;
+                case "replay":
+                    logger.info(lvalue);
+                    p_replay = true;
+                    break;
+                case "cluster":
+                    logger.info(arg);
+                    p_cluster = rvalue;
+                    break;
                 default:
                     break;
             }
@@ -63,47 +93,198 @@ public class Launcher {
         final boolean launchFisdbImport = p_launchFisdbImport;
         final boolean launchFiswebImport = p_launchFiswebImport;
         final boolean launchFiswebCallImport = p_launchFiswebCallImport;
+        final boolean launchArrowExport = p_launchArrowExport;
+        final boolean watch = p_watch;
+        final boolean parse = p_parse;
+        final boolean replay = p_replay;
         final String uriAddress = "xbrl.uri.listen";// publish file:jar:/f/ffiec/FFIEC ... .XBRL.zip
 
+        final VertxOptions options = new VertxOptions().setMetricsOptions(ImportMetrics.enable());
+        final Future<Vertx> started;
+        if (p_cluster == null) {
+            started = Future.succeededFuture(Vertx.vertx(options));
+        } else {
+            // joins with conf in -Dvertx.hazelcast.config, default-cluster.xml (multicast) if unset
+            if (!p_cluster.isEmpty()) {
+                options.getEventBusOptions().setHost(p_cluster);
+            }
+            started = Vertx.clusteredVertx(options.setClusterManager(new HazelcastClusterManager()));
+        }
+        final boolean clustered = p_cluster != null;
+
         // TODO move this launcher into a verticle, launch with vertx cli
-        ConfigRetriever.create(vertx)
-                .getConfig(json -> {
-                    JsonObject result = json.result();
-                    String env = System.getenv("FISBOX");
-                    env = env == null ? "fisdev" : env;// default config: matt's laptop
-                    JsonObject config = result
-                            .getJsonObject(env);
-                    config.put("FISBOX", env);
-
-                    Future<String> f = Future.succeededFuture();
-
-                    if (launchFisdbImport)
-                        f = vertx.deployVerticle(new FisdbUBPRImportVerticle(uriAddress), new DeploymentOptions().setConfig(config));
-                    if (launchFiswebImport)
-                        f = vertx.deployVerticle(new FiswebUBPRImportVerticle(uriAddress), new DeploymentOptions().setConfig(config));
-                    if (launchFiswebCallImport)
-                        f = vertx.deployVerticle(new FiswebCALLImportVerticle(uriAddress), new DeploymentOptions().setConfig(config));
-
-                    // TODO redesign
-                    // launch each verticle with separate bus address stem
-                    // each verticle adds (standard) channel names to address stem to derive CALL/UBPR/XBRL ZIP addresses
-                    //
-                    f.compose(verticleId -> {
-                        try (FileSystem fs = FileSystems.getDefault()) {
-                            // TODO WARNING this config is entirely out of hand -- watch out
-                            final String path = launchFiswebCallImport ? config.getString("callPath") : config.getString("ubprPath");
-                            final String pathGlob = "glob:" + path + "/*.zip";
-                            final PathMatcher pathMatcher = fs.getPathMatcher(pathGlob);
-                            final Path fsroot = fs.getPath(path);
-                            Files.walkFileTree(fsroot, new ZipURIPublishingVisitor(pathMatcher, vertx.eventBus(), uriAddress));
-                        } catch (Exception e) {
-                            return Future.failedFuture("Couldn't publish ZIP URI: " + e.toString());
+        started.onFailure(fail -> logger.error("Couldn't join the cluster: " + fail.getMessage())).onSuccess(vertx -> {
+            XBRLFilingCodec.register(vertx);
+            ConfigRetriever.create(vertx)
+                    .getConfig(json -> {
+                        JsonObject result = json.result();
+                        String env = System.getenv("FISBOX");
+                        env = env == null ? "fisdev" : env;// default config: matt's laptop
+                        JsonObject config = result
+                                .getJsonObject(env);
+                        config.put("FISBOX", env);
+                        // zip entries go to the XBRLParseVerticles, paced by the sinks' credits; remoteParse=false parses
+                        // them in process on the sinks' parserWorkers threads instead
+                        config.put(XBRLImportConfig.CFG_REMOTEPARSE, config.getBoolean(XBRLImportConfig.CFG_REMOTEPARSE, true));
+                        // each zip is parsed once per source for all of its sinks, and a sink that falls behind drains
+                        // its own spool; fanOut=false has every sink walk and parse every zip itself
+                        final boolean fanOut = config.getBoolean(XBRLImportConfig.CFG_FANOUT, true);
+                        config.put(XBRLImportConfig.CFG_FANOUT, fanOut);
+                        ImportMetrics.serve(vertx, config.getInteger(XBRLImportConfig.CFG_METRICSPORT, 9464))
+                                .onFailure(fail -> logger.error("Metrics endpoint: " + fail.getMessage()));
+
+                        // without fanOut each verticle gets its own zip channel so every importer sees every zip
+                        final List<Future<?>> deployments = new ArrayList<>();
+                        final List<String> ubprChannels = new ArrayList<>();
+                        final List<String> callChannels = new ArrayList<>();
+                        final List<String> sources = new ArrayList<>();
+
+                        // writers and parsers scale separately: sink instances share a zip channel and take turns at zips
+                        final DeploymentOptions sinkOptions = new DeploymentOptions().setConfig(config)
+                                .setInstances(config.getInteger(XBRLImportConfig.CFG_SINKINSTANCES, 1));
+
+                        if (launchFisdbImport) {
+                            ubprChannels.add(uriAddress + ".fisdb");
+                            deployments.add(vertx.deployVerticle(() -> new FisdbUBPRImportVerticle(uriAddress + ".fisdb"), sinkOptions));
+                        }
+                        if (launchFiswebImport) {
+                            ubprChannels.add(uriAddress + ".fisweb");
+                            deployments.add(vertx.deployVerticle(() -> new FiswebUBPRImportVerticle(uriAddress + ".fisweb"), sinkOptions));
                         }
-                        return Future.succeededFuture();
-                    }).onFailure(throwable -> {
-                        logger.error(throwable.getMessage());
+                        if (launchFiswebCallImport) {
+                            callChannels.add(uriAddress + ".fiswebcall");
+                            deployments.add(vertx.deployVerticle(() -> new FiswebCALLImportVerticle(uriAddress + ".fiswebcall"), sinkOptions));
+                        }
+                        if (launchArrowExport) {
+                            // one instance per source: each writes the files of its quarters
+                            ubprChannels.add(uriAddress + ".arrow." + XBRLFiling.UBPR);
+                            deployments.add(vertx.deployVerticle(new ArrowExportVerticle(uriAddress + ".arrow." + XBRLFiling.UBPR, XBRLFiling.UBPR),
+                                    new DeploymentOptions().setConfig(config)));
+                            callChannels.add(uriAddress + ".arrow." + XBRLFiling.CALL);
+                            deployments.add(vertx.deployVerticle(new ArrowExportVerticle(uriAddress + ".arrow." + XBRLFiling.CALL, XBRLFiling.CALL),
+                                    new DeploymentOptions().setConfig(config)));
+                        }
+                        // every parsed quarter is also kept in quarterPath, unless this run is loading from there
+                        final String quarterPath = config.getString(XBRLImportConfig.CFG_QUARTERPATH);
+                        if (quarterPath != null && !replay) {
+                            if (!ubprChannels.isEmpty()) {
+                                ubprChannels.add(uriAddress + ".quarters." + XBRLFiling.UBPR);
+                                deployments.add(vertx.deployVerticle(new QuarterFileVerticle(uriAddress + ".quarters." + XBRLFiling.UBPR, XBRLFiling.UBPR),
+                                        new DeploymentOptions().setConfig(config)));
+                            }
+                            if (!callChannels.isEmpty()) {
+                                callChannels.add(uriAddress + ".quarters." + XBRLFiling.CALL);
+                                deployments.add(vertx.deployVerticle(new QuarterFileVerticle(uriAddress + ".quarters." + XBRLFiling.CALL, XBRLFiling.CALL),
+                                        new DeploymentOptions().setConfig(config)));
+                            }
+                        }
+                        if (fanOut) {
+                            // the sinks register with their source's parse stage, which takes the zips instead
+                            if (!ubprChannels.isEmpty()) {
+                                sources.add(XBRLFiling.UBPR);
+                                ubprChannels.clear();
+                                ubprChannels.add(uriAddress + "." + XBRLFiling.UBPR);
+                            }
+                            if (!callChannels.isEmpty()) {
+                                sources.add(XBRLFiling.CALL);
+                                callChannels.clear();
+                                callChannels.add(uriAddress + "." + XBRLFiling.CALL);
+                            }
+                        }
+                        // a standalone node runs the parse pool for its own sinks; clustered sinks use the nodes started with parse
+                        if (parse || (!clustered && config.getBoolean(XBRLImportConfig.CFG_REMOTEPARSE))) {
+                            deployments.add(vertx.deployVerticle(XBRLParseVerticle::new, new DeploymentOptions().setConfig(config).setWorker(true)
+                                    .setInstances(config.getInteger(XBRLImportConfig.CFG_PARSEINSTANCES, Runtime.getRuntime().availableProcessors()))));
+                        }
+
+                        CompositeFuture.all(List.copyOf(deployments)).compose(deployed -> {
+                            // sources once every sink is registered, so no zip is walked without them
+                            final List<Future<?>> sourceDeployments = new ArrayList<>();
+                            for (String source : sources) {
+                                sourceDeployments.add(vertx.deployVerticle(new XBRLSourceVerticle(uriAddress + "." + source, source),
+                                        new DeploymentOptions().setConfig(config)));
+                            }
+                            return CompositeFuture.all(List.copyOf(sourceDeployments));
+                        }).compose(deployed -> {
+                            if (replay) {
+                                try {
+                                    return CompositeFuture.all(
+                                            publishQuarters(vertx, quarterPath, XBRLFiling.UBPR, ubprChannels),
+                                            publishQuarters(vertx, quarterPath, XBRLFiling.CALL, callChannels));
+                                } catch (Exception e) {
+                                    return Future.failedFuture("Couldn't publish quarter files: " + e.toString());
+                                }
+                            }
+                            if (watch) {
+                                return CompositeFuture.all(
+                                        watchZips(vertx, config, config.getString("ubprPath"), ubprChannels),
+                                        watchZips(vertx, config, config.getString("callPath"), callChannels));
+                            }
+                            try {
+                                return CompositeFuture.all(
+                                        publishZips(vertx, config.getString("ubprPath"), ubprChannels),
+                                        publishZips(vertx, config.getString("callPath"), callChannels));
+                            } catch (Exception e) {
+                                return Future.failedFuture("Couldn't publish ZIP URI: " + e.toString());
+                            }
+                        }).onSuccess(published -> {
+                            logger.info(replay ? "All quarter files queued for import" : watch ? "Watching for zips" : "All zips queued for import");
+                        }).onFailure(throwable -> {
+                            logger.error(throwable.getMessage());
+                        });
                     });
-                });
+        });
+    }
+
+    /**
+     * Send every zip in path to each of the zip channels; call from a Vert.x context
+     *
+     * @return Future completing when every zip has been admitted by every channel
+     */
+    public static Future<Void> publishZips(Vertx vertx, String path, List<String> zipChannels) throws IOException {
+        return publishFiles(vertx, path, "*.zip", zipChannels);
+    }
+
+    /**
+     * Send every QuarterFile of a source in quarterPath to each of the source's zip channels, to be replayed instead
+     * of parsing its zips again; call from a Vert.x context
+     *
+     * @return Future completing when every file has been admitted by every channel
+     */
+    public static Future<Void> publishQuarters(Vertx vertx, String quarterPath, String source, List<String> zipChannels) throws IOException {
+        if (quarterPath == null && !zipChannels.isEmpty()) {
+            throw new IOException("replay needs " + XBRLImportConfig.CFG_QUARTERPATH);
+        }
+        return publishFiles(vertx, quarterPath, source + "-*" + QuarterFile.EXTENSION, zipChannels);
+    }
+
+    private static Future<Void> publishFiles(Vertx vertx, String path, String glob, List<String> zipChannels) throws IOException {
+        if (zipChannels.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        final FileSystem fs = FileSystems.getDefault();
+        final PathMatcher pathMatcher = fs.getPathMatcher("glob:" + path + "/" + glob);
+        final ZipURIPublishingVisitor visitor = new ZipURIPublishingVisitor(pathMatcher, vertx, zipChannels);
+        Files.walkFileTree(fs.getPath(path), visitor);
+        return visitor.finish();
+    }
+
+    /**
+     * Keep sending zips that appear in path to each of the zip channels, starting with the ones already there
+     *
+     * @return Future completing once the watch has started
+     */
+    private static Future<Void> watchZips(Vertx vertx, JsonObject config, String path, List<String> zipChannels) {
+        if (zipChannels.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        final FileSystem fs = FileSystems.getDefault();
+        final PathMatcher pathMatcher = fs.getPathMatcher("glob:" + path + "/*.zip");
+        final ZipURIPublishingVisitor publisher = new ZipURIPublishingVisitor(pathMatcher, vertx, zipChannels);
+        return new ZipDirectoryWatcher(vertx, fs.getPath(path), pathMatcher, publisher,
+                config.getLong(XBRLImportConfig.CFG_WATCHQUIETMS, 5000L),
+                config.getLong(XBRLImportConfig.CFG_WATCHPOLLMS, 10000L),
+                config.getBoolean(XBRLImportConfig.CFG_WATCHPOLLING, false)).start();
     }
 
 }
@@ -0,0 +1,62 @@
+package com.fedfis.ops;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.BiPredicate;
+
+/**
+ * A Path visitor that only hands the delegate the zip entries an ImportManifest walk reports as changed
+ * <p>
+ * With several sinks fed by one walk, the check is whether any of their walks reports the entry as changed.
+ */
+public class ManifestFilteringVisitor extends SimpleFileVisitor<Path> {
+    protected final SimpleFileVisitor<Path> delegate;
+    protected final BiPredicate<Path, BasicFileAttributes> changed;
+    private int skipped = 0;
+
+    public ManifestFilteringVisitor(SimpleFileVisitor<Path> delegate, ImportManifest.Walk walk) {
+        this(delegate, walk::changed);
+    }
+
+    /**
+     * @param changed Whether an entry needs importing, as ImportManifest.Walk.changed()
+     */
+    public ManifestFilteringVisitor(SimpleFileVisitor<Path> delegate, BiPredicate<Path, BasicFileAttributes> changed) {
+        this.delegate = delegate;
+        this.changed = changed;
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        return delegate.preVisitDirectory(dir, attrs);
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (changed.test(file, attrs)) {
+            return delegate.visitFile(file, attrs);
+        }
+        skipped++;
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+        return delegate.visitFileFailed(file, exc);
+    }
+
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        return delegate.postVisitDirectory(dir, exc);
+    }
+
+    /**
+     * Entries left out because the sink already stored them
+     */
+    public int skipped() {
+        return skipped;
+    }
+}
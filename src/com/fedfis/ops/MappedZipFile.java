@@ -0,0 +1,680 @@
+package com.fedfis.ops;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only zip file memory-mapped once and indexed from its central directory
+ * <p>
+ * Entry data is fed from the mapping straight into an Inflater (or copied, for stored entries) with no
+ * intermediate buffers or locks, so any number of threads can read entries at once. Zip64 archives larger than a
+ * single mapping are handled by mapping them in 1GB segments. Stored nested zips are read in place from the outer
+ * mapping; deflated ones are inflated to a temporary file first. CRCs are checked as each entry is read to the end.
+ * <p>
+ * walk() drives a FileVisitor over the entries as Files.walkFileTree does over a zip filesystem, with the same
+ * "/name" paths. The attributes handed to visitFile() carry the entry as their fileKey(); entryOf() recovers it, so
+ * visitors read the entry from the mapping rather than through the path.
+ */
+public class MappedZipFile implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MappedZipFile.class.getName());
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int ZIP64_END_HEADER = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final Charset CP437 = charset("IBM437");
+
+    protected final String name;
+    private final ByteBuffer[] segments;
+    private final long base;
+    private final long length;
+    private final List<Entry> entries;
+    private final Map<String, Entry> byName = new HashMap<>();
+    private final Map<String, MappedZipFile> nested = new HashMap<>();
+    private final Path temporary;
+
+    private MappedZipFile(String name, ByteBuffer[] segments, long base, long length, Path temporary) throws IOException {
+        this.name = name;
+        this.segments = segments;
+        this.base = base;
+        this.length = length;
+        this.temporary = temporary;
+        this.entries = Collections.unmodifiableList(readCentralDirectory());
+        for (Entry entry : entries) {
+            byName.putIfAbsent(entry.name, entry);
+        }
+    }
+
+    /**
+     * Map a zip and read its central directory
+     */
+    public static MappedZipFile open(Path zip) throws IOException {
+        return open(zip, zip.toString(), null);
+    }
+
+    private static MappedZipFile open(Path zip, String name, Path temporary) throws IOException {
+        try (FileChannel channel = FileChannel.open(zip, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final ByteBuffer[] segments = new ByteBuffer[(int) Math.max(1, (size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+            for (int s = 0; s < segments.length; s++) {
+                final long from = (long) s << SEGMENT_BITS;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(SEGMENT_SIZE, size - from))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+            // the mapping stays valid after the channel is closed
+            return new MappedZipFile(name, segments, 0, size, temporary);
+        }
+    }
+
+    /**
+     * Entries in central directory order
+     */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * @return the entry, or null if there is none by that name
+     */
+    public Entry getEntry(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * The zip entry behind attributes handed out by walk(), or null for attributes from elsewhere
+     */
+    public static Entry entryOf(BasicFileAttributes attrs) {
+        return attrs != null && attrs.fileKey() instanceof Entry ? (Entry) attrs.fileKey() : null;
+    }
+
+    /**
+     * Open a zip stored in this one, or get the one already opened; it is closed with this zip
+     */
+    public synchronized MappedZipFile openNested(Entry entry) throws IOException {
+        MappedZipFile zip = nested.get(entry.name);
+        if (zip != null) {
+            return zip;
+        }
+        final String nestedName = name + "!/" + entry.name;
+        if (entry.method == STORED) {
+            zip = new MappedZipFile(nestedName, segments, base + entry.dataOffset(), entry.size, null);
+        } else {
+            final Path inflated = Files.createTempFile("xbrl-nested", ".zip");
+            try (InputStream in = entry.open()) {
+                Files.copy(in, inflated, StandardCopyOption.REPLACE_EXISTING);
+                zip = open(inflated, nestedName, inflated);
+            } catch (IOException e) {
+                Files.deleteIfExists(inflated);
+                throw e;
+            }
+        }
+        nested.put(entry.name, zip);
+        return zip;
+    }
+
+    /**
+     * Find an entry by the path walk() visited it under, descending into nested zips
+     *
+     * @param path "/name", or "/outer.zip/name" for an entry of a nested zip
+     * @return the entry, or null if there is none at that path
+     */
+    public Entry find(String path) throws IOException {
+        final String name = path.startsWith("/") ? path.substring(1) : path;
+        final Entry entry = getEntry(name);
+        if (entry != null) {
+            return entry;
+        }
+        int at = -1;
+        while ((at = name.toLowerCase(Locale.ROOT).indexOf(".zip/", at + 1)) > 0) {
+            final Entry zipEntry = getEntry(name.substring(0, at + 4));
+            if (zipEntry != null) {
+                return openNested(zipEntry).find(name.substring(at + 5));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Visit every entry as Files.walkFileTree visits a zip filesystem
+     * <p>
+     * The walk is flat: the root directory, then every file entry as "/name". A nested zip is visited as a
+     * directory named after its entry, holding its own entries. Directory entries are not visited.
+     */
+    public void walk(FileVisitor<? super Path> visitor) throws IOException {
+        final Path root = Path.of("/");
+        final FileVisitResult result = visitor.preVisitDirectory(root, new DirectoryAttributes());
+        if (result == FileVisitResult.CONTINUE) {
+            walk(visitor, root);
+        }
+        if (result != FileVisitResult.TERMINATE) {
+            visitor.postVisitDirectory(root, null);
+        }
+    }
+
+    private boolean walk(FileVisitor<? super Path> visitor, Path dir) throws IOException {
+        for (Entry entry : entries) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            final Path path = dir.resolve(entry.name);
+            if (entry.isZip()) {
+                final MappedZipFile zip;
+                try {
+                    zip = openNested(entry);
+                } catch (IOException e) {
+                    if (visitor.visitFileFailed(path, e) == FileVisitResult.TERMINATE) {
+                        return false;
+                    }
+                    continue;
+                }
+                final FileVisitResult result = visitor.preVisitDirectory(path, new DirectoryAttributes());
+                if (result == FileVisitResult.TERMINATE || result == FileVisitResult.CONTINUE && !zip.walk(visitor, path)) {
+                    return false;
+                }
+                if (result == FileVisitResult.CONTINUE && visitor.postVisitDirectory(path, null) == FileVisitResult.TERMINATE) {
+                    return false;
+                }
+            } else if (visitor.visitFile(path, entry.attributes) == FileVisitResult.TERMINATE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Release nested zips. Entries already being read can still be read to the end.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (MappedZipFile zip : nested.values()) {
+            zip.close();
+        }
+        nested.clear();
+        if (temporary != null) {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        final long end = findEndHeader();
+        long count = u16(end + 10);
+        long directorySize = u32(end + 12);
+        long directoryOffset = u32(end + 16);
+        if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+            final long locator = end - 20;
+            if (locator < 0 || u32(locator) != ZIP64_LOCATOR) {
+                throw new ZipException(name + ": zip64 end header locator missing");
+            }
+            final long zip64End = u64(locator + 8);
+            if (u32(zip64End) != ZIP64_END_HEADER) {
+                throw new ZipException(name + ": zip64 end header missing");
+            }
+            count = u64(zip64End + 32);
+            directorySize = u64(zip64End + 40);
+            directoryOffset = u64(zip64End + 48);
+        }
+        if (directoryOffset + directorySize > length) {
+            throw new ZipException(name + ": central directory past end of file");
+        }
+
+        final List<Entry> read = new ArrayList<>((int) Math.min(count, 1 << 20));
+        long pos = directoryOffset;
+        for (long n = 0; n < count; n++) {
+            if (u32(pos) != CENTRAL_HEADER) {
+                throw new ZipException(name + ": bad central directory header at " + pos);
+            }
+            final int flags = u16(pos + 8);
+            final int method = u16(pos + 10);
+            final long dosTime = u32(pos + 12);
+            final long crc = u32(pos + 16);
+            long compressedSize = u32(pos + 20);
+            long size = u32(pos + 24);
+            final int nameLength = u16(pos + 28);
+            final int extraLength = u16(pos + 30);
+            final int commentLength = u16(pos + 32);
+            long localOffset = u32(pos + 42);
+            final String entryName = new String(bytes(pos + 46, nameLength), (flags & 0x800) != 0 ? StandardCharsets.UTF_8 : CP437);
+
+            long mtime = dosToMillis(dosTime);
+            long extra = pos + 46 + nameLength;
+            final long extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                final int tag = u16(extra);
+                final int tagSize = u16(extra + 2);
+                long field = extra + 4;
+                if (tag == 0x0001) {// zip64 sizes and offset, present only where the header says 0xFFFFFFFF
+                    if (size == 0xFFFFFFFFL) {
+                        size = u64(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = u64(field);
+                        field += 8;
+                    }
+                    if (localOffset == 0xFFFFFFFFL) {
+                        localOffset = u64(field);
+                    }
+                } else if (tag == 0x5455 && tagSize >= 5 && (u8(field) & 1) != 0) {// extended timestamp
+                    mtime = u32(field + 1) * 1000L;
+                } else if (tag == 0x000A && tagSize >= 32 && u16(field + 4) == 1) {// NTFS times, 100ns since 1601
+                    mtime = u64(field + 8) / 10_000L - 11_644_473_600_000L;
+                }
+                extra += 4 + tagSize;
+            }
+            read.add(new Entry(entryName, method, flags, crc, compressedSize, size, localOffset, mtime));
+            pos = extraEnd + commentLength;
+        }
+        logger.debug("Indexed " + read.size() + " entries of " + name);
+        return read;
+    }
+
+    private long findEndHeader() throws ZipException {
+        final long stop = Math.max(0, length - 22 - 0xFFFF);
+        for (long pos = length - 22; pos >= stop; pos--) {
+            if (u32(pos) == END_HEADER && pos + 22 + u16(pos + 20) <= length) {
+                return pos;
+            }
+        }
+        throw new ZipException(name + ": not a zip file, no end of central directory");
+    }
+
+    private static long dosToMillis(long dosTime) {
+        if (dosTime == 0) {
+            return 0L;
+        }
+        final LocalDateTime time = LocalDateTime.of((int) ((dosTime >> 25) & 0x7f) + 1980, (int) Math.max(1, (dosTime >> 21) & 0x0f),
+                (int) Math.max(1, (dosTime >> 16) & 0x1f), (int) ((dosTime >> 11) & 0x1f) % 24, (int) ((dosTime >> 5) & 0x3f) % 60,
+                (int) ((dosTime << 1) & 0x3e) % 60);
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static Charset charset(String name) {
+        try {
+            return Charset.forName(name);
+        } catch (Exception e) {
+            return StandardCharsets.ISO_8859_1;
+        }
+    }
+
+    private int u8(long pos) {
+        final long at = base + pos;
+        return segments[(int) (at >>> SEGMENT_BITS)].get((int) (at & (SEGMENT_SIZE - 1))) & 0xff;
+    }
+
+    private int u16(long pos) {
+        return u8(pos) | u8(pos + 1) << 8;
+    }
+
+    private long u32(long pos) {
+        if (pos < 0 || pos + 4 > length) {
+            return -1L;
+        }
+        final long at = base + pos;
+        final int offset = (int) (at & (SEGMENT_SIZE - 1));
+        if (offset + 4 <= SEGMENT_SIZE) {
+            return segments[(int) (at >>> SEGMENT_BITS)].getInt(offset) & 0xFFFFFFFFL;
+        }
+        return u16(pos) | (long) u16(pos + 2) << 16;
+    }
+
+    private long u64(long pos) {
+        return u32(pos) | u32(pos + 4) << 32;
+    }
+
+    private byte[] bytes(long pos, int count) {
+        final byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            bytes[i] = (byte) u8(pos + i);
+        }
+        return bytes;
+    }
+
+    /**
+     * A view of [pos, pos + max) within one segment; shorter where the range crosses a segment boundary
+     */
+    private ByteBuffer chunk(long pos, long max) {
+        final long at = base + pos;
+        final int offset = (int) (at & (SEGMENT_SIZE - 1));
+        final ByteBuffer segment = segments[(int) (at >>> SEGMENT_BITS)];
+        return segment.slice(offset, (int) Math.min(max, segment.limit() - offset));
+    }
+
+    /**
+     * One entry of the central directory
+     */
+    public final class Entry {
+        final String name;
+        final int method;
+        final int flags;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localOffset;
+        final long mtime;
+        final BasicFileAttributes attributes = new EntryAttributes(this);
+        private volatile long dataOffset = -1;
+
+        Entry(String name, int method, int flags, long crc, long compressedSize, long size, long localOffset, long mtime) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localOffset = localOffset;
+            this.mtime = mtime;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getLastModified() {
+            return mtime;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public boolean isZip() {
+            return name.regionMatches(true, name.length() - 4, ".zip", 0, 4);
+        }
+
+        public BasicFileAttributes attributes() {
+            return attributes;
+        }
+
+        /**
+         * Open the entry's uncompressed data; may be called from any thread, any number of times
+         */
+        public InputStream open() throws IOException {
+            if ((flags & 1) != 0) {
+                throw new ZipException(MappedZipFile.this.name + ": " + name + " is encrypted");
+            }
+            if (method != STORED && method != DEFLATED) {
+                throw new ZipException(MappedZipFile.this.name + ": " + name + " uses unsupported compression method " + method);
+            }
+            final long from = dataOffset();
+            if (from + compressedSize > length) {
+                throw new ZipException(MappedZipFile.this.name + ": " + name + " runs past end of file");
+            }
+            return new EntryInputStream(this, from, from + compressedSize);
+        }
+
+        /**
+         * Start of the entry's data; the local header's name and extra field can differ from the central one's
+         */
+        long dataOffset() throws ZipException {
+            long offset = dataOffset;
+            if (offset < 0) {
+                if (u32(localOffset) != LOCAL_HEADER) {
+                    throw new ZipException(MappedZipFile.this.name + ": bad local header for " + name);
+                }
+                offset = localOffset + 30 + u16(localOffset + 26) + u16(localOffset + 28);
+                dataOffset = offset;
+            }
+            return offset;
+        }
+
+        @Override
+        public String toString() {
+            return MappedZipFile.this.name + "!/" + name;
+        }
+    }
+
+    /**
+     * Reads an entry from the mapping, inflating straight from mapped memory, and checks its CRC at the end
+     */
+    private final class EntryInputStream extends InputStream {
+        private final Entry entry;
+        private final long end;
+        private final Inflater inflater;
+        private final CRC32 crc = new CRC32();
+        private long pos;
+        private long produced = 0;
+        private boolean eof = false;
+
+        EntryInputStream(Entry entry, long from, long end) {
+            this.entry = entry;
+            this.pos = from;
+            this.end = end;
+            this.inflater = entry.method == DEFLATED ? new Inflater(true) : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (inflater == null) {
+                if (pos >= end) {
+                    finish();
+                    return -1;
+                }
+                final ByteBuffer chunk = chunk(pos, Math.min(len, end - pos));
+                final int n = chunk.remaining();
+                chunk.get(b, off, n);
+                pos += n;
+                return produced(b, off, n);
+            }
+            try {
+                while (true) {
+                    final int n = inflater.inflate(b, off, len);
+                    if (n > 0) {
+                        return produced(b, off, n);
+                    }
+                    if (inflater.finished()) {
+                        finish();
+                        return -1;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new ZipException(entry + ": needs a preset dictionary");
+                    }
+                    if (inflater.needsInput()) {
+                        if (pos >= end) {
+                            throw new EOFException(entry + ": unexpected end of compressed data");
+                        }
+                        final ByteBuffer chunk = chunk(pos, end - pos);
+                        pos += chunk.remaining();
+                        inflater.setInput(chunk);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(entry + ": " + e.getMessage());
+            }
+        }
+
+        private int produced(byte[] b, int off, int n) {
+            crc.update(b, off, n);
+            produced += n;
+            return n;
+        }
+
+        private void finish() throws ZipException {
+            eof = true;
+            if (produced != entry.size) {
+                throw new ZipException(entry + ": size " + produced + ", expected " + entry.size);
+            }
+            if (crc.getValue() != entry.crc) {
+                throw new ZipException(entry + ": invalid entry CRC");
+            }
+        }
+
+        @Override
+        public int available() {
+            return eof ? 0 : (int) Math.min(Integer.MAX_VALUE, entry.size - produced);
+        }
+
+        @Override
+        public void close() {
+            eof = true;
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static final class EntryAttributes implements BasicFileAttributes {
+        private final Entry entry;
+
+        EntryAttributes(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return FileTime.from(entry.mtime, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return lastModifiedTime();
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return !entry.isDirectory();
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return entry.isDirectory();
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return entry.size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return entry;
+        }
+    }
+
+    private static final class DirectoryAttributes implements BasicFileAttributes {
+        private static final FileTime EPOCH = FileTime.fromMillis(0);
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return EPOCH;
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return EPOCH;
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return EPOCH;
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return false;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return true;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return 0;
+        }
+
+        @Override
+        public Object fileKey() {
+            return null;
+        }
+    }
+}
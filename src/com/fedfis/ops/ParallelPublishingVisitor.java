@@ -0,0 +1,121 @@
+package com.fedfis.ops;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A Path visitor that hands each visited file to a delegate visitor on a pool of parser threads.
+ * <p>
+ * At most parallelism files are handed over at a time: the walk waits for a parser to finish before it hands over
+ * the next one, so entries don't queue up ahead of the parsers. The delegate's postVisitDirectory() is only called
+ * once, for the root of the walk, after every file handed to the pool has been visited. For the publishing visitors
+ * this means the flush message goes out exactly once per zip and only after every XML entry has been published.
+ * If the delegate failed to visit a file, no more files are handed over and, as with RemoteParsingVisitor, the walk
+ * fails with the first failure instead of being flushed.
+ */
+public class ParallelPublishingVisitor extends SimpleFileVisitor<Path> {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelPublishingVisitor.class.getName());
+    protected final SimpleFileVisitor<Path> delegate;
+    protected final ExecutorService parserPool;
+    private final Semaphore running;
+    private final List<CompletableFuture<FileVisitResult>> pending = new ArrayList<>();
+    private volatile IOException failure;
+    private int depth = 0;
+
+    /**
+     * @param delegate    Visitor that does the parsing and publishing, must be safe to call from several threads
+     * @param parserPool  Threads to run delegate.visitFile() on
+     * @param parallelism Files handed to the pool at once, the number of its threads
+     */
+    public ParallelPublishingVisitor(SimpleFileVisitor<Path> delegate, ExecutorService parserPool, int parallelism) {
+        this.delegate = delegate;
+        this.parserPool = parserPool;
+        this.running = new Semaphore(Math.max(1, parallelism));
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        depth++;
+        return delegate.preVisitDirectory(dir, attrs);
+    }
+
+    /**
+     * Hand a file to the pool once a parser is free
+     */
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+        try {
+            running.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a parser for " + path);
+        }
+        if (failure != null) {
+            running.release();
+            return FileVisitResult.CONTINUE;
+        }
+        pending.removeIf(CompletableFuture::isDone);
+        pending.add(CompletableFuture.supplyAsync(() -> {
+            try {
+                return delegate.visitFile(path, attrs);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Visiting " + path + ": " + e);
+                failed(e instanceof IOException ? (IOException) e : new IOException("Visiting " + path + ": " + e, e));
+                return FileVisitResult.CONTINUE;
+            } finally {
+                running.release();
+            }
+        }, parserPool));
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+        return delegate.visitFileFailed(file, exc);
+    }
+
+    /**
+     * Wait for every file handed to the pool, then let the delegate finish the root directory
+     *
+     * @throws IOException the first failure of a file; the zip is then not flushed or recorded as imported
+     */
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException ioe) throws IOException {
+        if (--depth > 0) {
+            return FileVisitResult.CONTINUE;
+        }
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        } catch (Exception e) {
+            failed(new IOException("Parser failed in " + dir + ": " + e, e));
+        } finally {
+            pending.clear();
+        }
+        final IOException failed = failure;
+        failure = null;
+        if (failed != null) {
+            throw failed;
+        }
+        return delegate.postVisitDirectory(dir, ioe);
+    }
+
+    private synchronized void failed(IOException e) {
+        if (failure == null) {
+            failure = e;
+        } else {
+            failure.addSuppressed(e);
+        }
+    }
+}
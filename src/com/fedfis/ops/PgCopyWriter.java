@@ -0,0 +1,169 @@
+package com.fedfis.ops;
+
+import io.vertx.pgclient.PgConnectOptions;
+import io.vertx.sqlclient.Tuple;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk loads scratchpad.ubpr rows with binary COPY into a temporary staging table, then merges the staging table
+ * into scratchpad.ubpr with one upsert per batch.
+ * <p>
+ * The Vert.x pg client doesn't speak COPY, so this uses the PostgreSQL JDBC driver and blocks: call write() from
+ * a worker thread. Up to maxConnections batches can be written at once, each on its own connection with its own
+ * staging table.
+ */
+public class PgCopyWriter {
+    private static final Logger logger = LoggerFactory.getLogger(PgCopyWriter.class.getName());
+    private static final byte[] COPY_SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+    private static final long PG_EPOCH_DAY = LocalDate.of(2000, 1, 1).toEpochDay();
+
+    protected final String jdbcUrl;
+    protected final String user;
+    protected final String password;
+    private final ArrayBlockingQueue<Connection> idle;
+    private final int maxConnections;
+    private int opened = 0;
+    private volatile String ubprType;
+
+    /**
+     * @param pgConnectionUri postgresql:// URI as used for the PgPool
+     * @param maxConnections  Batches that may be written at once
+     */
+    public PgCopyWriter(String pgConnectionUri, int maxConnections) {
+        final PgConnectOptions options = PgConnectOptions.fromUri(pgConnectionUri);
+        this.jdbcUrl = "jdbc:postgresql://" + options.getHost() + ":" + options.getPort() + "/" + options.getDatabase();
+        this.user = options.getUser();
+        this.password = options.getPassword();
+        this.maxConnections = maxConnections;
+        this.idle = new ArrayBlockingQueue<>(maxConnections);
+    }
+
+    /**
+     * COPY rows into the staging table and merge them into scratchpad.ubpr in one transaction
+     *
+     * @param rows Tuples of (rssd_id Integer, ubpr JsonObject, reported_on LocalDate) as queued for the INSERT path
+     */
+    public void write(List<Tuple> rows) throws SQLException, IOException, InterruptedException {
+        final Connection connection = acquire();
+        boolean healthy = false;
+        try {
+            try (PGCopyOutputStream copy = new PGCopyOutputStream(connection.unwrap(PGConnection.class),
+                    "COPY ubpr_stage (seq, rssd_id, ubpr, reported_on) FROM STDIN (FORMAT binary)", 1 << 16);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(copy, 1 << 16))) {
+                out.write(COPY_SIGNATURE);
+                out.writeInt(0);// flags
+                out.writeInt(0);// header extension length
+                long seq = 0;
+                for (Tuple row : rows) {
+                    final byte[] ubpr = row.getJsonObject(1).encode().getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(4);
+                    out.writeInt(8);
+                    out.writeLong(seq++);
+                    out.writeInt(4);
+                    out.writeInt(row.getInteger(0));
+                    out.writeInt(ubpr.length);
+                    out.write(ubpr);
+                    out.writeInt(4);
+                    out.writeInt((int) (row.getLocalDate(2).toEpochDay() - PG_EPOCH_DAY));
+                }
+                out.writeShort(-1);// trailer
+            }
+            try (Statement statement = connection.createStatement()) {
+                // a batch may hold the same bank and date twice; the row queued last wins, as it did with INSERT
+                statement.executeUpdate("INSERT INTO scratchpad.ubpr (rssd_id, ubpr, reported_on) " +
+                        "SELECT DISTINCT ON (rssd_id, reported_on) rssd_id, ubpr::" + ubprType + ", reported_on FROM ubpr_stage " +
+                        "ORDER BY rssd_id, reported_on, seq DESC " +
+                        "ON CONFLICT (rssd_id, reported_on) DO UPDATE SET ubpr=EXCLUDED.ubpr");
+            }
+            connection.commit();
+            healthy = true;
+        } finally {
+            release(connection, healthy);
+        }
+    }
+
+    private Connection acquire() throws SQLException, InterruptedException {
+        Connection connection = idle.poll();
+        while (connection == null) {
+            synchronized (this) {
+                if (opened < maxConnections) {
+                    opened++;
+                    try {
+                        return open();
+                    } catch (SQLException e) {
+                        opened--;
+                        throw e;
+                    }
+                }
+            }
+            // every connection is busy; wait for one, but recheck in case a broken one was dropped
+            connection = idle.poll(1, TimeUnit.SECONDS);
+        }
+        return connection;
+    }
+
+    private Connection open() throws SQLException {
+        final Connection connection = DriverManager.getConnection(jdbcUrl, user, password);
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TEMPORARY TABLE ubpr_stage (seq int8, rssd_id int4, ubpr text, reported_on date) ON COMMIT DELETE ROWS");
+            if (ubprType == null) {
+                // stage as text and cast on merge, so this works whether scratchpad.ubpr.ubpr is json or jsonb
+                try (ResultSet rs = statement.executeQuery("SELECT format_type(a.atttypid, a.atttypmod) FROM pg_attribute a " +
+                        "WHERE a.attrelid = 'scratchpad.ubpr'::regclass AND a.attname = 'ubpr'")) {
+                    ubprType = rs.next() ? rs.getString(1) : "jsonb";
+                }
+            }
+        }
+        connection.commit();
+        logger.debug("Opened COPY connection " + opened + " to " + jdbcUrl);
+        return connection;
+    }
+
+    private void release(Connection connection, boolean healthy) {
+        if (healthy) {
+            idle.add(connection);
+            return;
+        }
+        try {
+            connection.rollback();
+            idle.add(connection);
+        } catch (SQLException e) {
+            logger.warn("Dropping broken COPY connection: " + e.getMessage());
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+            synchronized (this) {
+                opened--;
+            }
+        }
+    }
+
+    /**
+     * Close idle connections. Call once no more batches are being written.
+     */
+    public void close() {
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.debug(e.getMessage());
+            }
+        }
+    }
+}
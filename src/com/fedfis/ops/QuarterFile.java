@@ -0,0 +1,509 @@
+package com.fedfis.ops;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One quarter of one FFIEC source as parsed: every bank's filing in a compact binary file, memory-mapped to read
+ * <p>
+ * QuarterFileVerticle writes one per source and report date as zips are parsed, so a database can be loaded again
+ * or a fisweb table rebuilt without reading the XBRL. replay() hands each filing to a publishing visitor as a zip
+ * walk would, rebuilt straight from the mapping's primitive columns. The layout, little-endian:
+ * <pre>
+ *   int     magic, int version
+ *   per filing, 8-byte aligned and never across a 1GB segment:
+ *     long[n] values, int[n] concept ids, int[n] divisors, byte[n] kinds, byte[n] scales
+ *     int     object count, then per object: int fact, byte tag, value
+ *   footer:
+ *     string  source
+ *     int     concept count, then per concept id: string name, string unit (empty: none)
+ *     int     filing count, then per filing: string path, long reported_on epoch day, long offset, int fact count
+ *   long    footer offset, int version, int magic
+ * </pre>
+ * Concept ids are the writer's ConceptDictionary ids, so facts are still sorted by them; the reader maps them to its
+ * own by name. Strings are an unsigned short byte length followed by UTF-8, as in XBRLFilingCodec. Object tags are
+ * B, a decimal that doesn't fit a long (int scale, int length, big-endian two's complement unscaled value), and S,
+ * a string (int length, UTF-8). Version 1 files, without per-fact divisors, are still read: they have an int
+ * divisor after each concept's unit, which every fact of the concept gets. Filings may be read from any number of
+ * threads at once.
+ */
+public class QuarterFile implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(QuarterFile.class.getName());
+    public static final String EXTENSION = ".xbq";
+    private static final int MAGIC = 0x51425846;// "FXBQ"
+    private static final int VERSION = 2;
+    private static final int VERSION_CONCEPT_DIVISORS = 1;
+    private static final int HEADER = 8;
+    private static final int TRAILER = 16;
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    protected final Path path;
+    private final ByteBuffer[] segments;
+    private final String source;
+    private final int[] conceptIds;// file id to this JVM's id
+    private final int[] conceptDivisors;// version 1: divisor of every fact of a file concept
+    private final String[] paths;
+    private final long[] reportedOn;
+    private final long[] offsets;
+    private final int[] sizes;
+
+    private QuarterFile(Path path, ByteBuffer[] segments, int version, ByteBuffer footer) throws IOException {
+        this.path = path;
+        this.segments = segments;
+        this.source = getString(footer);
+        final ConceptDictionary dictionary = ConceptDictionary.forSource(source);
+        conceptIds = new int[footer.getInt()];
+        conceptDivisors = version == VERSION_CONCEPT_DIVISORS ? new int[conceptIds.length] : null;
+        for (int c = 0; c < conceptIds.length; c++) {
+            final int id = dictionary.idOf(getString(footer));
+            final String unit = getString(footer);
+            if (conceptDivisors != null) {
+                conceptDivisors[c] = footer.getInt();
+            }
+            if (!unit.isEmpty()) {
+                dictionary.setUnit(id, unit);
+            }
+            conceptIds[c] = id;
+        }
+        final int count = footer.getInt();
+        paths = new String[count];
+        reportedOn = new long[count];
+        offsets = new long[count];
+        sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = getString(footer);
+            reportedOn[i] = footer.getLong();
+            offsets[i] = footer.getLong();
+            sizes[i] = footer.getInt();
+        }
+    }
+
+    /**
+     * Name of the file holding a source's quarter
+     */
+    public static String fileName(String source, LocalDate reportedOn) {
+        return source + "-" + reportedOn + EXTENSION;
+    }
+
+    public static boolean isQuarterFile(Path path) {
+        return path.getFileName() != null && path.getFileName().toString().endsWith(EXTENSION);
+    }
+
+    /**
+     * Map a quarter file and read its footer, adding its concepts to the source's dictionary
+     */
+    public static QuarterFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER + TRAILER) {
+                throw new IOException(path + ": not a quarter file");
+            }
+            final ByteBuffer header = read(channel, 0, HEADER);
+            final ByteBuffer trailer = read(channel, size - TRAILER, TRAILER);
+            final long footerOffset = trailer.getLong();
+            final int version = trailer.getInt();
+            if (header.getInt() != MAGIC || trailer.getInt() != MAGIC || footerOffset < HEADER || footerOffset > size - TRAILER) {
+                throw new IOException(path + ": not a quarter file");
+            }
+            if (version != VERSION && version != VERSION_CONCEPT_DIVISORS) {
+                throw new IOException(path + ": unsupported quarter file version " + version);
+            }
+            final ByteBuffer footer = read(channel, footerOffset, (int) (size - TRAILER - footerOffset));
+            final ByteBuffer[] segments = new ByteBuffer[(int) Math.max(1, (footerOffset + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+            for (int s = 0; s < segments.length; s++) {
+                final long from = (long) s << SEGMENT_BITS;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(SEGMENT_SIZE, footerOffset - from))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+            }
+            // the mapping stays valid after the channel is closed
+            return new QuarterFile(path, segments, version, footer);
+        } catch (RuntimeException e) {
+            throw new IOException(path + ": bad footer: " + e, e);
+        }
+    }
+
+    /**
+     * Start writing a quarter file; nothing appears at path until the writer is committed
+     *
+     * @param path   File to write, replaced on commit
+     * @param source XBRLFiling.UBPR or XBRLFiling.CALL
+     */
+    public static Writer writer(Path path, String source) throws IOException {
+        return new Writer(path, source);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Number of filings
+     */
+    public int size() {
+        return paths.length;
+    }
+
+    public String path(int i) {
+        return paths[i];
+    }
+
+    public LocalDate reportedOn(int i) {
+        return LocalDate.ofEpochDay(reportedOn[i]);
+    }
+
+    /**
+     * Rebuild the i'th filing from the mapping
+     *
+     * @throws IOException if its block is corrupt
+     */
+    public XBRLFiling filing(int i) throws IOException {
+        final int n = sizes[i];
+        final long offset = offsets[i];
+        final ByteBuffer segment = segments[(int) (offset >>> SEGMENT_BITS)];
+        final int at = (int) (offset & (SEGMENT_SIZE - 1));
+        try {
+            final ByteBuffer block = segment.slice(at, segment.limit() - at).order(ByteOrder.LITTLE_ENDIAN);
+            final long[] values = new long[n];
+            final int[] ids = new int[n];
+            final int[] divisors = new int[n];
+            final byte[] kinds = new byte[n];
+            final byte[] scales = new byte[n];
+            block.asLongBuffer().get(values);
+            block.position(8 * n);
+            block.asIntBuffer().get(ids);
+            block.position(12 * n);
+            if (conceptDivisors == null) {
+                block.asIntBuffer().get(divisors);
+                block.position(16 * n);
+            } else {
+                for (int f = 0; f < n; f++) {
+                    divisors[f] = conceptDivisors[ids[f]];
+                }
+            }
+            block.get(kinds).get(scales);
+
+            Object[] objects = null;
+            final int objectCount = block.getInt();
+            for (int o = 0; o < objectCount; o++) {
+                if (objects == null) {
+                    objects = new Object[n];
+                }
+                final int fact = block.getInt();
+                if (block.get() == 'B') {
+                    final int scale = block.getInt();
+                    final byte[] unscaled = new byte[block.getInt()];
+                    block.get(unscaled);
+                    objects[fact] = new BigDecimal(new BigInteger(unscaled), scale);
+                } else {
+                    final byte[] text = new byte[block.getInt()];
+                    block.get(text);
+                    objects[fact] = new String(text, StandardCharsets.UTF_8);
+                }
+            }
+
+            final XBRLFiling.Builder filing = XBRLFiling.builder(source, LocalDate.ofEpochDay(reportedOn[i]), paths[i], n);
+            for (int f = 0; f < n; f++) {
+                filing.add(conceptIds[ids[f]], kinds[f], values[f], scales[f], divisors[f], objects == null ? null : objects[f]);
+            }
+            return filing.build();
+        } catch (RuntimeException e) {
+            throw new IOException(path + ": bad block for " + paths[i] + " at " + offset + ": " + e, e);
+        }
+    }
+
+    /**
+     * Publish every filing through a visitor, taking a credit for each as a walk would, then flush
+     *
+     * @param visitor Publishing visitor of the sink or sinks to feed; must be on a worker thread
+     * @throws IOException if a filing couldn't be read or the flush failed
+     */
+    public void replay(XBRLPublishingVisitor visitor) throws IOException {
+        for (int i = 0; i < paths.length; i++) {
+            final Path entry = Path.of(paths[i]);
+            visitor.acquireCredit(entry);
+            final XBRLFiling filing;
+            try {
+                filing = filing(i);
+            } catch (IOException e) {
+                visitor.releaseCredit(entry);
+                throw e;
+            }
+            visitor.publish(filing);
+        }
+        visitor.postVisitDirectory(path, null);
+    }
+
+    /**
+     * Nothing to release: the mapping is dropped with the last reference to it
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Appends filings to a temporary file next to the quarter file and puts it in place on commit()
+     * <p>
+     * A filing appended again under the same path replaces the earlier one. Not thread safe.
+     */
+    public static final class Writer implements Closeable {
+        private final Path path;
+        private final Path temporary;
+        private final String source;
+        private final ConceptDictionary dictionary;
+        private final FileChannel channel;
+        private final Map<String, Integer> slots = new HashMap<>();
+        private final List<String> paths = new ArrayList<>();
+        private long[] index = new long[3 * 1024];// reported_on, offset, fact count per filing
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private long position = HEADER;
+        private boolean committed = false;
+
+        private Writer(Path path, String source) throws IOException {
+            this.path = path;
+            this.temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            this.source = source;
+            this.dictionary = ConceptDictionary.forSource(source);
+            this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            buffer(HEADER).putInt(MAGIC).putInt(VERSION);
+            write(0);
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Number of distinct filings appended
+         */
+        public int size() {
+            return paths.size();
+        }
+
+        public boolean contains(String filingPath) {
+            return slots.containsKey(filingPath);
+        }
+
+        /**
+         * Append a filing of the writer's source
+         */
+        public void append(XBRLFiling filing) throws IOException {
+            if (!source.equals(filing.getSource())) {
+                throw new IllegalArgumentException("A " + filing.getSource() + " filing in a " + source + " quarter file");
+            }
+            final int n = filing.size();
+            int objectCount = 0;
+            int length = 18 * n + 4;
+            final byte[][] encoded = new byte[n][];
+            for (int f = 0; f < n; f++) {
+                final Object object = filing.object(f);
+                if (object instanceof BigDecimal) {
+                    encoded[f] = ((BigDecimal) object).unscaledValue().toByteArray();
+                    length += 13 + encoded[f].length;
+                    objectCount++;
+                } else if (object != null) {
+                    encoded[f] = object.toString().getBytes(StandardCharsets.UTF_8);
+                    length += 9 + encoded[f].length;
+                    objectCount++;
+                }
+            }
+
+            position = (position + 7) & ~7L;
+            if (length > SEGMENT_SIZE) {
+                throw new IOException(filing.getPath() + " is too big for a quarter file: " + length + " bytes");
+            }
+            if (position >>> SEGMENT_BITS != (position + length - 1) >>> SEGMENT_BITS) {
+                position = (position >>> SEGMENT_BITS) + 1 << SEGMENT_BITS;
+            }
+            final ByteBuffer block = buffer(length);
+            for (int f = 0; f < n; f++) {
+                block.putLong(filing.longValue(f));
+            }
+            for (int f = 0; f < n; f++) {
+                block.putInt(filing.conceptId(f));
+            }
+            for (int f = 0; f < n; f++) {
+                block.putInt(filing.divisor(f));
+            }
+            for (int f = 0; f < n; f++) {
+                block.put((byte) filing.kind(f));
+            }
+            for (int f = 0; f < n; f++) {
+                block.put((byte) filing.scale(f));
+            }
+            block.putInt(objectCount);
+            for (int f = 0; f < n; f++) {
+                if (encoded[f] == null) {
+                    continue;
+                }
+                block.putInt(f);
+                if (filing.object(f) instanceof BigDecimal) {
+                    block.put((byte) 'B').putInt(((BigDecimal) filing.object(f)).scale());
+                } else {
+                    block.put((byte) 'S');
+                }
+                block.putInt(encoded[f].length).put(encoded[f]);
+            }
+            final long offset = position;
+            write(offset);
+            position += length;
+
+            Integer slot = slots.get(filing.getPath());
+            if (slot == null) {
+                slot = paths.size();
+                slots.put(filing.getPath(), slot);
+                paths.add(filing.getPath());
+                if (3 * paths.size() > index.length) {
+                    index = Arrays.copyOf(index, index.length * 2);
+                }
+            }
+            index[3 * slot] = filing.getReportedOn().toEpochDay();
+            index[3 * slot + 1] = offset;
+            index[3 * slot + 2] = n;
+        }
+
+        /**
+         * Append every filing of an earlier version of the quarter that hasn't been appended since
+         *
+         * @return number of filings carried over
+         */
+        public int carryOver(QuarterFile previous) throws IOException {
+            if (!source.equals(previous.getSource())) {
+                throw new IOException(previous + " holds " + previous.getSource() + " filings, not " + source);
+            }
+            int carried = 0;
+            for (int i = 0; i < previous.size(); i++) {
+                if (!contains(previous.path(i))) {
+                    append(previous.filing(i));
+                    carried++;
+                }
+            }
+            return carried;
+        }
+
+        /**
+         * Write the footer, force the file to disk and move it into place
+         */
+        public void commit() throws IOException {
+            final int concepts = dictionary.size();
+            final List<byte[]> strings = new ArrayList<>(2 * concepts + paths.size() + 1);
+            int length = 8;
+            final byte[] sourceName = utf8(source);
+            length += 2 + sourceName.length;
+            for (int c = 0; c < concepts; c++) {
+                final byte[] name = utf8(dictionary.nameOf(c));
+                final String unit = dictionary.unitOf(c);
+                final byte[] unitName = utf8(unit == null ? "" : unit);
+                strings.add(name);
+                strings.add(unitName);
+                length += 2 + name.length + 2 + unitName.length;
+            }
+            for (String filingPath : paths) {
+                final byte[] name = utf8(filingPath);
+                strings.add(name);
+                length += 2 + name.length + 20;
+            }
+
+            final long footerOffset = position;
+            final ByteBuffer footer = buffer(length + TRAILER);
+            putString(footer, sourceName);
+            footer.putInt(concepts);
+            int s = 0;
+            for (int c = 0; c < concepts; c++) {
+                putString(footer, strings.get(s++));
+                putString(footer, strings.get(s++));
+            }
+            footer.putInt(paths.size());
+            for (int i = 0; i < paths.size(); i++) {
+                putString(footer, strings.get(s++));
+                footer.putLong(index[3 * i]).putLong(index[3 * i + 1]).putInt((int) index[3 * i + 2]);
+            }
+            footer.putLong(footerOffset).putInt(VERSION).putInt(MAGIC);
+            write(footerOffset);
+            channel.force(true);
+            channel.close();
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            logger.debug("Wrote " + paths.size() + " filings to " + path);
+        }
+
+        /**
+         * Abandon the file unless it was committed
+         */
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private ByteBuffer buffer(int length) {
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            buffer.clear().limit(length);
+            return buffer;
+        }
+
+        private void write(long at) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, at + buffer.position());
+            }
+        }
+
+        private static byte[] utf8(String s) {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("Too long for a quarter file: " + s.substring(0, 64) + "...");
+            }
+            return bytes;
+        }
+
+        private static void putString(ByteBuffer buffer, byte[] bytes) {
+            buffer.putShort((short) bytes.length).put(bytes);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.fedfis.ops;
+
+import io.vertx.core.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A sink that keeps every parsed quarter of its source as a QuarterFile in quarterPath
+ * <p>
+ * Filings are appended to the file of their report date as they arrive, on a worker thread, and each flush commits
+ * every file written to since the last one. Filings of a quarter that weren't sent again, because a manifest found
+ * their entries unchanged, are carried over from the quarter's previous file, so the file always holds the whole
+ * quarter. Quarter files of quarterPath sent to the sink's zip channel are ignored: they are what it writes.
+ * Subclasses may keep the files elsewhere and do more with each once it is committed.
+ */
+public class QuarterFileVerticle extends XBRLImportVerticle {
+    private static final Logger logger = LoggerFactory.getLogger(QuarterFileVerticle.class.getName());
+
+    protected final String source;
+    private final Map<LocalDate, QuarterFile.Writer> writers = new HashMap<>();// only touched by ordered blocking tasks
+    private final AtomicInteger pending = new AtomicInteger();
+    private IOException failure;// of an append since the last flush, only touched by ordered blocking tasks
+    private Path quarterPath;
+
+    /**
+     * @param busAddress Zip channel
+     * @param source     XBRLFiling.UBPR or XBRLFiling.CALL
+     */
+    public QuarterFileVerticle(String busAddress, String source) {
+        super(busAddress);
+        this.source = source;
+    }
+
+    @Override
+    protected SimpleFileVisitor<Path> getPublishingVisitor() {
+        final PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher("glob:/**.xml");
+        return XBRLFiling.UBPR.equals(source)
+                ? new UBPRPublishingVisitor(pathMatcher, vertx.eventBus(), listenerAddress)
+                : new CALLPublishingVisitor(pathMatcher, vertx.eventBus(), listenerAddress);
+    }
+
+    @Override
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public void start(Promise<Void> p) {
+        quarterPath = getQuarterPath();
+        try {
+            Files.createDirectories(quarterPath);
+        } catch (IOException e) {
+            p.fail(e);
+            return;
+        }
+        vertx.eventBus().<XBRLFiling>localConsumer(listenerAddress, message -> {
+            final XBRLFiling filing = message.body();
+            if (filing.isFlush()) {
+                vertx.<Void>executeBlocking(promise -> {
+                    try {
+                        commit();
+                        promise.complete();
+                    } catch (IOException e) {
+                        promise.fail(e);
+                    }
+                }, true).onSuccess(v -> message.reply(null)).onFailure(fail -> message.fail(500, fail.toString()));
+                return;
+            }
+            pending.incrementAndGet();
+            filingConsumed();
+            vertx.<Void>executeBlocking(promise -> {
+                try {
+                    append(filing);
+                    promise.complete();
+                } catch (IOException | RuntimeException e) {
+                    failure = new IOException("Writing " + filing.getPath() + ": " + e.getMessage(), e);
+                    promise.fail(failure);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }, true).onFailure(fail -> logger.error(fail.getMessage()));
+        });
+        listenForZips();
+        logger.info("Writing " + source + " quarters to " + quarterPath);
+        p.complete();
+    }
+
+    /**
+     * Directory the quarter files are kept in
+     */
+    protected Path getQuarterPath() {
+        return Path.of(config().getString(XBRLImportConfig.CFG_QUARTERPATH));
+    }
+
+    /**
+     * Called on a worker thread once a quarter file has been committed, before the flush is acknowledged
+     *
+     * @param quarter The committed file
+     * @throws IOException to fail the flush
+     */
+    protected void committed(Path quarter) throws IOException {
+    }
+
+    /**
+     * Filings waiting to be appended
+     */
+    @Override
+    protected int writerBacklog() {
+        return pending.get();
+    }
+
+    /**
+     * Quarter files of this sink's quarterPath are its output, not something to import
+     */
+    @Override
+    protected void walkFileTreeImpl(URI uri) {
+        final Path path = Path.of(URI.create(uri.getRawSchemeSpecificPart()));
+        if (QuarterFile.isQuarterFile(path) && path.toAbsolutePath().startsWith(quarterPath.toAbsolutePath())) {
+            logger.info("Not replaying a quarter into its own writer: " + uri);
+            return;
+        }
+        super.walkFileTreeImpl(uri);
+    }
+
+    @Override
+    public void stop(Promise<Void> stopPromise) {
+        final Promise<Void> stopped = Promise.promise();
+        super.stop(stopped);
+        stopped.future().compose(v -> vertx.<Void>executeBlocking(promise -> {
+            // whatever wasn't flushed is incomplete
+            writers.values().forEach(writer -> {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    logger.warn("Abandoning " + writer.getPath() + ": " + e);
+                }
+            });
+            writers.clear();
+            promise.complete();
+        }, true)).onComplete(stopPromise);
+    }
+
+    private void append(XBRLFiling filing) throws IOException {
+        QuarterFile.Writer writer = writers.get(filing.getReportedOn());
+        if (writer == null) {
+            writer = QuarterFile.writer(quarterPath.resolve(QuarterFile.fileName(source, filing.getReportedOn())), source);
+            writers.put(filing.getReportedOn(), writer);
+        }
+        writer.append(filing);
+    }
+
+    /**
+     * Carry over what each open file's previous version has that wasn't sent again, and commit it; if a filing
+     * couldn't be appended since the last flush, abandon every open file instead
+     *
+     * @throws IOException if a filing or a file couldn't be written; the other files are still committed
+     */
+    private void commit() throws IOException {
+        IOException failed = failure;
+        failure = null;
+        if (failed != null) {
+            for (QuarterFile.Writer writer : writers.values()) {
+                writer.close();
+            }
+            writers.clear();
+            throw failed;
+        }
+        for (QuarterFile.Writer writer : writers.values()) {
+            final long started = System.nanoTime();
+            try (writer) {
+                int carried = 0;
+                if (Files.exists(writer.getPath())) {
+                    try (QuarterFile previous = QuarterFile.open(writer.getPath())) {
+                        carried = writer.carryOver(previous);
+                    } catch (IOException e) {
+                        logger.warn("Not carrying over " + writer.getPath() + ": " + e.getMessage());
+                    }
+                }
+                writer.commit();
+                committed(writer.getPath());
+                logger.info("Wrote " + writer.size() + " filings to " + writer.getPath() + ", " + carried + " carried over");
+                ImportMetrics.registry().timer("xbrl.quarter.commit", "sink", busAddress, "source", source)
+                        .record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            } catch (IOException e) {
+                logger.error("Committing " + writer.getPath() + ": " + e.getMessage());
+                failed = e;
+            }
+        }
+        writers.clear();
+        if (failed != null) {
+            throw failed;
+        }
+    }
+}
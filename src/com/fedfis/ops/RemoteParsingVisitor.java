@@ -0,0 +1,130 @@
+package com.fedfis.ops;
+
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.ReplyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A Path visitor that has each visited file parsed by the XBRLParseVerticles of this node or the cluster
+ * <p>
+ * Entries are sent point-to-point to XBRLParseVerticle.PARSE_ADDRESS for the delegate's source with at most window
+ * requests outstanding, and each filing that comes back is published to the sink through the delegate. Like
+ * ParallelPublishingVisitor, the delegate's postVisitDirectory() is only called for the root of the walk, once
+ * every entry has come back, so the flush still goes out once per zip after every filing. The zip is then published
+ * on XBRLParseVerticle.DONE_ADDRESS, so the parse verticles close it.
+ * <p>
+ * Each entry takes one of the delegate's FilingCredits before it is sent, and gives it back if it isn't a filing or
+ * can't be parsed, so parse workers only run ahead of the sink by as many filings as it hands out credits for.
+ * <p>
+ * Walking must happen on a worker thread: visitFile() blocks while window requests are outstanding or no credit is
+ * left.
+ */
+public class RemoteParsingVisitor extends SimpleFileVisitor<Path> {
+    private static final Logger logger = LoggerFactory.getLogger(RemoteParsingVisitor.class.getName());
+    protected final XBRLPublishingVisitor delegate;
+    protected final EventBus eventBus;
+    protected final Path zip;
+    protected final String zipReader;
+    protected final int window;
+    protected final DeliveryOptions deliveryOptions;
+    private final Semaphore slots;
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+    private int depth = 0;
+
+    /**
+     * @param delegate  Visitor whose source the entries are parsed for and through which filings are published
+     * @param eventBus  Event bus, clustered or not
+     * @param zip       Path of the zip being walked, the same on every node
+     * @param zipReader How the zip is walked, as XBRLImportConfig.CFG_ZIPREADER; entries are opened the same way
+     * @param window    Entries being parsed at once
+     * @param timeoutMs How long to wait for one entry to be parsed
+     */
+    public RemoteParsingVisitor(XBRLPublishingVisitor delegate, EventBus eventBus, Path zip, String zipReader, int window, long timeoutMs) {
+        this.delegate = delegate;
+        this.eventBus = eventBus;
+        this.zip = zip;
+        this.zipReader = zipReader;
+        this.window = Math.max(1, window);
+        this.deliveryOptions = new DeliveryOptions().setSendTimeout(timeoutMs);
+        this.slots = new Semaphore(this.window);
+    }
+
+    @Override
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        depth++;
+        return delegate.preVisitDirectory(dir, attrs);
+    }
+
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+        delegate.acquireCredit(path);
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            delegate.releaseCredit(path);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted sending " + path + " to be parsed");
+        }
+        eventBus.<XBRLFiling>request(XBRLParseVerticle.PARSE_ADDRESS + delegate.getSource(),
+                XBRLParseVerticle.request(zip, path, zipReader), deliveryOptions).onComplete(ar -> {
+            try {
+                if (ar.succeeded()) {
+                    delegate.publish(ar.result().body());
+                } else if (ar.cause() instanceof ReplyException && ((ReplyException) ar.cause()).failureCode() == XBRLParseVerticle.NOT_XBRL) {
+                    delegate.releaseCredit(path);
+                    logger.info("Skipping: " + path);
+                } else {
+                    delegate.releaseCredit(path);
+                    logger.error("Parsing " + path + " of " + zip + " failed: " + ar.cause().getMessage());
+                    failed.incrementAndGet();
+                    firstFailure.compareAndSet(null, ar.cause());
+                }
+            } finally {
+                slots.release();
+            }
+        });
+        return FileVisitResult.CONTINUE;
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+        return delegate.visitFileFailed(file, exc);
+    }
+
+    /**
+     * Wait for every entry sent to be parsed, then let the delegate finish the root directory
+     *
+     * @throws IOException if some entries couldn't be parsed; the zip is then not flushed or recorded as imported
+     */
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException ioe) throws IOException {
+        if (--depth > 0) {
+            return FileVisitResult.CONTINUE;
+        }
+        try {
+            slots.acquire(window);
+            slots.release(window);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for entries of " + zip + " to be parsed");
+        }
+        eventBus.publish(XBRLParseVerticle.DONE_ADDRESS, zip.toString());
+        if (failed.get() > 0) {
+            throw new IOException(failed.get() + " entries of " + zip + " couldn't be parsed: " + firstFailure.get().getMessage(), firstFailure.get());
+        }
+        return delegate.postVisitDirectory(dir, ioe);
+    }
+}
@@ -0,0 +1,161 @@
+package com.fedfis.ops;
+
+import io.micrometer.core.instrument.Counter;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.mysqlclient.MySQLPool;
+import io.vertx.sqlclient.Row;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Resolves bank RSSD ids to fisweb ids, per quarter, from that quarter's dm table
+ * <p>
+ * A quarter's table is read on first use into an IntIntMap; filings arriving while it loads wait for the same read.
+ * The maxQuarters most recently used quarters are kept, so a backfill across many quarters reads each table once
+ * while it is being imported rather than holding every table. An RSSD id missing from its quarter is logged and
+ * counted as fisweb.rssd.misses, tagged with the table. A quarter that had misses is read again on its next use
+ * after refreshMs, to pick up banks added since; each read gets the next version number. Every method must be
+ * called from the owning verticle's context.
+ */
+public class RssdCertCache {
+    private static final Logger logger = LoggerFactory.getLogger(RssdCertCache.class.getName());
+    public static final int MISSING = Integer.MIN_VALUE;
+
+    protected final MySQLPool pool;
+    protected final String schema;
+    protected final Function<LocalDate, String> tables;
+    protected final int maxQuarters;
+    protected final long refreshMs;
+    private final Map<String, Future<Quarter>> quarters;
+    private final Map<String, Integer> versions = new LinkedHashMap<>();
+
+    /**
+     * @param pool        Fisweb pool
+     * @param schema      Schema of the dm tables
+     * @param tables      Unqualified dm table of a quarter's date
+     * @param maxQuarters Quarters kept
+     * @param refreshMs   Age after which a quarter with misses is read again
+     */
+    public RssdCertCache(MySQLPool pool, String schema, Function<LocalDate, String> tables, int maxQuarters, long refreshMs) {
+        this.pool = pool;
+        this.schema = schema;
+        this.tables = tables;
+        this.maxQuarters = Math.max(1, maxQuarters);
+        this.refreshMs = refreshMs;
+        this.quarters = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Future<Quarter>> eldest) {
+                if (size() > RssdCertCache.this.maxQuarters && eldest.getValue().isComplete()) {
+                    logger.debug("Evicting fisweb ids of " + eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the ids of a quarter, reading its table if it isn't cached
+     *
+     * @param date Report date of the quarter
+     * @return Future of the quarter's ids; fails if the table couldn't be read
+     */
+    public Future<Quarter> quarter(LocalDate date) {
+        final String table = tables.apply(date);
+        final Future<Quarter> cached = quarters.get(table);
+        if (cached != null && !(cached.failed() || stale(cached.result()))) {
+            return cached;
+        }
+        final Future<Quarter> loading = load(table);
+        quarters.put(table, loading);
+        return loading;
+    }
+
+    /**
+     * @return Future completing once every table being read has been read or failed, after the handlers already
+     * waiting on them
+     */
+    public Future<Void> ready() {
+        final List<Future<?>> loading = new ArrayList<>();
+        quarters.values().forEach(quarter -> {
+            if (!quarter.isComplete()) {
+                loading.add(quarter);
+            }
+        });
+        return loading.isEmpty() ? Future.succeededFuture() : CompositeFuture.join(List.copyOf(loading)).mapEmpty();
+    }
+
+    private boolean stale(Quarter quarter) {
+        return quarter != null && quarter.misses > 0 && System.currentTimeMillis() - quarter.loadedAt > refreshMs;
+    }
+
+    private Future<Quarter> load(String table) {
+        final int version = versions.merge(table, 1, Integer::sum);
+        final long started = System.currentTimeMillis();
+        return pool.preparedQuery("SELECT rssd9001,id FROM " + schema + "." + table).execute().map(rows -> {
+            final IntIntMap ids = new IntIntMap(rows.size());
+            for (Row row : rows) {
+                final Integer rssd = row.getInteger(0);
+                final Integer id = row.getInteger(1);
+                if (rssd != null && id != null) {
+                    ids.put(rssd, id);
+                }
+            }
+            logger.info("Read " + ids.size() + " fisweb ids from " + table + " v" + version + " in " + (System.currentTimeMillis() - started) + "ms");
+            return new Quarter(table, version, ids);
+        }).onFailure(fail -> logger.error("Reading fisweb ids from " + table + ": " + fail.getMessage()));
+    }
+
+    /**
+     * One read of a quarter's dm table
+     */
+    public static final class Quarter {
+        final String table;
+        final int version;
+        final IntIntMap ids;
+        final long loadedAt = System.currentTimeMillis();
+        final Counter missCounter;
+        int misses = 0;
+
+        Quarter(String table, int version, IntIntMap ids) {
+            this.table = table;
+            this.version = version;
+            this.ids = ids;
+            this.missCounter = Counter.builder("fisweb.rssd.misses").description("RSSD ids with no fisweb id in their quarter")
+                    .tag("table", table).register(ImportMetrics.registry());
+        }
+
+        /**
+         * @return the fisweb id of a bank, or MISSING after logging and counting the miss
+         */
+        public int id(int rssd, String path) {
+            final int id = ids.get(rssd, MISSING);
+            if (id == MISSING) {
+                misses++;
+                missCounter.increment();
+                logger.warn("No fisweb id for RSSD9001 " + rssd + " in " + table + " v" + version + ": " + path);
+            }
+            return id;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public int size() {
+            return ids.size();
+        }
+    }
+}
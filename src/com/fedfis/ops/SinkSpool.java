@@ -0,0 +1,304 @@
+package com.fedfis.ops;
+
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.EventBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The buffer between a fan-out parse stage and one sink instance: filings the sink has no credit for are spooled to
+ * disk and drained into it as it grants credits back
+ * <p>
+ * While nothing is spooled, an entry takes one of the sink's FilingCredits and its filing is sent straight to the
+ * sink, as without fan-out. Once the sink runs out of credits, filings are appended to a spool file instead, with
+ * XBRLFilingCodec's wire layout behind an int length, and a thread of the spool's own sends them on in order, each
+ * once the sink grants a credit. Entries keep going to the spool until it is drained, so a lagging sink catches up
+ * from disk without holding back the parse, and without any zip being parsed again for it. A zip's flush marker
+ * queues behind the filings spooled before it and goes out once they have all been sent.
+ * <p>
+ * The spool holds at most maxBytes of filings not yet sent; past that, reserve() reports the sink as full. The file
+ * is created in the spool directory when first needed, emptied each time the spool drains, and deleted on close().
+ */
+public class SinkSpool {
+    private static final Logger logger = LoggerFactory.getLogger(SinkSpool.class.getName());
+    private static final DeliveryOptions LOCAL = new DeliveryOptions().setLocalOnly(true);
+    private static final DeliveryOptions FLUSH = new DeliveryOptions().setSendTimeout(XBRLPublishingVisitor.FLUSH_TIMEOUT_MS).setLocalOnly(true);
+
+    /**
+     * How an entry reaches the sink: straight away on a credit, through the spool, or not at all while both are used up
+     */
+    public enum Slot {LIVE, SPOOL, FULL}
+
+    protected final EventBus eventBus;
+    protected final String listenerAddress;
+    protected final FilingCredits credits;
+    protected final Path directory;
+    protected final long maxBytes;
+    private final XBRLFilingCodec codec = new XBRLFilingCodec();
+    private final Deque<Marker> markers = new ArrayDeque<>();
+    private ExecutorService drainer;
+    private Path file;
+    private FileChannel channel;
+    private long writePos = 0;
+    private long readPos = 0;
+    private boolean draining = false;
+    private boolean closed = false;
+
+    /**
+     * @param eventBus        Bus to send filings and flushes on
+     * @param listenerAddress Address of the sink instance's filings
+     * @param credits         The sink instance's credits
+     * @param directory       Where the spool file is created
+     * @param maxBytes        Spooled filings not yet sent before the sink counts as full
+     */
+    public SinkSpool(EventBus eventBus, String listenerAddress, FilingCredits credits, Path directory, long maxBytes) {
+        this.eventBus = eventBus;
+        this.listenerAddress = listenerAddress;
+        this.credits = credits;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Decide how an entry about to be parsed reaches the sink, taking a credit for it if it goes straight there
+     *
+     * @param path Entry, for the message if interrupted
+     */
+    public synchronized Slot reserve(Path path) throws InterruptedIOException {
+        if (!spooling() && credits.tryAcquire(path, 0)) {
+            return Slot.LIVE;
+        }
+        return pending() < maxBytes ? Slot.SPOOL : Slot.FULL;
+    }
+
+    /**
+     * reserve(), waiting at most timeoutMs for a credit or room in the spool
+     *
+     * @return Slot.FULL if neither turned up in time
+     */
+    public synchronized Slot awaitReserve(Path path, long timeoutMs) throws InterruptedIOException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        Slot slot;
+        while ((slot = reserve(path)) == Slot.FULL && !closed) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                // credits come back without a notify, so look again every RECHECK_MS
+                wait(Math.min(remaining, FilingCredits.RECHECK_MS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for room to parse " + path);
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Send a filing reserved Slot.LIVE
+     */
+    public void send(XBRLFiling filing) {
+        eventBus.send(listenerAddress, filing, LOCAL);
+    }
+
+    /**
+     * Append a filing reserved Slot.SPOOL, to be sent once the ones before it have been
+     */
+    public void spool(XBRLFiling filing) throws IOException {
+        final Buffer record = Buffer.buffer().appendInt(0);
+        codec.encodeToWire(record, filing);
+        record.setInt(0, record.length() - 4);
+        final ByteBuffer bytes = record.getByteBuf().nioBuffer();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Spool of " + listenerAddress + " is closed");
+            }
+            if (channel == null) {
+                Files.createDirectories(directory);
+                file = Files.createTempFile(directory, "xbrl-", ".spool");
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            long at = writePos;
+            while (bytes.hasRemaining()) {
+                at += channel.write(bytes, at);
+            }
+            writePos = at;
+            startDraining();
+        }
+        ImportMetrics.registry().counter("xbrl.spool.filings", "sink", listenerAddress).increment();
+    }
+
+    /**
+     * Send a zip's flush marker once everything spooled before it has been sent
+     *
+     * @param source XBRLFiling.UBPR or XBRLFiling.CALL
+     * @param reply  Completed with the body of the sink's answer
+     * @return true if the marker is queued behind the spool, false if it was sent straight away
+     */
+    public synchronized boolean flush(String source, Promise<Object> reply) {
+        final Marker marker = new Marker(writePos, source, reply);
+        if (!spooling()) {
+            send(marker);
+            return false;
+        }
+        if (closed) {
+            reply.fail("Spool of " + listenerAddress + " is closed");
+            return false;
+        }
+        markers.add(marker);
+        startDraining();
+        return true;
+    }
+
+    /**
+     * Bytes of filings spooled but not yet sent
+     */
+    public synchronized long pending() {
+        return writePos - readPos;
+    }
+
+    /**
+     * Stop draining and delete the spool; flushes still queued fail, so their zips are walked again next time
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (drainer != null) {
+                drainer.shutdownNow();
+            }
+            notifyAll();
+        }
+        reset(new IOException("Spool of " + listenerAddress + " closed"));
+        synchronized (this) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                logger.warn("Couldn't delete " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean spooling() {
+        return writePos > readPos || !markers.isEmpty();
+    }
+
+    private void startDraining() {
+        if (draining || closed) {
+            return;
+        }
+        if (drainer == null) {
+            drainer = Executors.newSingleThreadExecutor();
+        }
+        draining = true;
+        drainer.execute(this::drain);
+    }
+
+    private void send(Marker marker) {
+        eventBus.request(listenerAddress, XBRLFiling.flush(marker.source), FLUSH).onComplete(ar -> {
+            if (ar.succeeded()) {
+                marker.reply.complete(ar.result().body());
+            } else {
+                marker.reply.fail(ar.cause());
+            }
+        });
+    }
+
+    /**
+     * Send spooled filings in order, each on a credit, and the flushes queued between them, until the spool is empty
+     */
+    private void drain() {
+        try {
+            final ByteBuffer length = ByteBuffer.allocate(4);
+            while (true) {
+                final long at;
+                synchronized (this) {
+                    while (!markers.isEmpty() && markers.peek().position <= readPos) {
+                        send(markers.poll());
+                    }
+                    if (readPos == writePos || closed) {
+                        draining = false;
+                        writePos = readPos = 0;
+                        if (channel != null) {
+                            channel.truncate(0);
+                        }
+                        notifyAll();
+                        return;
+                    }
+                    at = readPos;
+                }
+                length.clear();
+                read(length, at);
+                final byte[] record = new byte[length.getInt(0)];
+                read(ByteBuffer.wrap(record), at + 4);
+                final XBRLFiling filing = codec.decodeFromWire(0, Buffer.buffer(record));
+                credits.acquire(Path.of(filing.getPath()));
+                send(filing);
+                synchronized (this) {
+                    readPos = at + 4 + record.length;
+                    notifyAll();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                logger.error("Draining the spool of " + listenerAddress + " failed: " + e);
+            }
+            reset(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    private void read(ByteBuffer into, long at) throws IOException {
+        while (into.hasRemaining()) {
+            final int read = channel.read(into, at + into.position());
+            if (read < 0) {
+                throw new EOFException("Spool of " + listenerAddress + " ends at " + (at + into.position()));
+            }
+        }
+    }
+
+    /**
+     * Drop whatever is spooled and fail the flushes waiting on it
+     */
+    private synchronized void reset(IOException cause) {
+        draining = false;
+        writePos = readPos = 0;
+        Marker marker;
+        while ((marker = markers.poll()) != null) {
+            marker.reply.fail(cause);
+        }
+        notifyAll();
+    }
+
+    /**
+     * A flush to send once the spool has been read up to position
+     */
+    private static final class Marker {
+        final long position;
+        final String source;
+        final Promise<Object> reply;
+
+        Marker(long position, String source, Promise<Object> reply) {
+            this.position = position;
+            this.source = source;
+            this.reply = reply;
+        }
+    }
+}
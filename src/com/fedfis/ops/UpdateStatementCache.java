@@ -0,0 +1,95 @@
+package com.fedfis.ops;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the text of fisweb UPDATE statements by shape: target table plus which columns are set and their divisors
+ * <p>
+ * Filings for one quarter mostly have the same columns present, so a handful of statement texts cover thousands
+ * of banks. Reusing the exact same text lets the MySQL client's prepared statement cache and executeBatch do
+ * their job instead of preparing one statement per bank. The cache keeps the most recently used maxStatements.
+ */
+public class UpdateStatementCache {
+    protected final String schema;
+    private final Map<Shape, String> statements;
+
+    /**
+     * @param schema        Schema qualifying the table names
+     * @param maxStatements Statement texts kept
+     */
+    public UpdateStatementCache(String schema, int maxStatements) {
+        this.schema = schema;
+        this.statements = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Shape, String> eldest) {
+                return size() > maxStatements;
+            }
+        };
+    }
+
+    /**
+     * Get the UPDATE statement for a shape, building it on first use
+     * <p>
+     * Parameters are the set columns in shape order, then the key column.
+     *
+     * @param table     Unqualified table name
+     * @param columns   Columns the shape indexes into; must be the same list on every call
+     * @param shape     Pairs of (index into columns, divisor) for the columns to set
+     * @param length    Number of ints of shape in use
+     * @param keyColumn Column of the WHERE clause
+     * @return statement text, the same String instance for every filing of the same shape
+     */
+    public String update(String table, List<String> columns, int[] shape, int length, String keyColumn) {
+        final Shape key = new Shape(table, Arrays.copyOf(shape, length));
+        synchronized (statements) {
+            return statements.computeIfAbsent(key, k -> build(k, columns, keyColumn));
+        }
+    }
+
+    private String build(Shape key, List<String> columns, String keyColumn) {
+        final StringBuilder query = new StringBuilder(64 + key.shape.length * 12);
+        query.append("UPDATE ").append(schema).append('.').append(key.table).append(" SET ");
+        for (int i = 0; i < key.shape.length; i += 2) {
+            if (i > 0) {
+                query.append(',');
+            }
+            query.append(columns.get(key.shape[i])).append("=?/").append(key.shape[i + 1]);
+        }
+        return query.append(" WHERE ").append(keyColumn).append("=?").toString();
+    }
+
+    public int size() {
+        synchronized (statements) {
+            return statements.size();
+        }
+    }
+
+    private static final class Shape {
+        final String table;
+        final int[] shape;
+        final int hash;
+
+        Shape(String table, int[] shape) {
+            this.table = table;
+            this.shape = shape;
+            this.hash = 31 * table.hashCode() + Arrays.hashCode(shape);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Shape)) {
+                return false;
+            }
+            final Shape other = (Shape) o;
+            return hash == other.hash && table.equals(other.table) && Arrays.equals(shape, other.shape);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.fedfis.ops;
+
+import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.XMLStreamReader2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Pulls the facts for one report date out of an XBRL instance document
+ * <p>
+ * A fact is any element in one of the taxonomy's namespaces whose contextRef ends with the report date.
+ * Values are typed by XBRLValueClassifier and stored without boxing in an XBRLFiling.Builder.
+ * The extractor is stateless and safe to share between parser threads; the Woodstox factory is configured once
+ * and reused for every document.
+ */
+public class XBRLFactExtractor {
+    private static final Logger logger = LoggerFactory.getLogger(XBRLFactExtractor.class.getName());
+    private static final XMLInputFactory2 xmlInputFactory = newInputFactory();
+
+    protected final XBRLTaxonomy taxonomy;
+
+    public XBRLFactExtractor(XBRLTaxonomy taxonomy) {
+        this.taxonomy = taxonomy;
+    }
+
+    private static XMLInputFactory2 newInputFactory() {
+        final XMLInputFactory2 factory = (XMLInputFactory2) XMLInputFactory2.newInstance();
+        factory.configureForSpeed();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory2.P_INTERN_NS_URIS, true);
+        factory.setProperty(XMLInputFactory2.P_LAZY_PARSING, true);
+        return factory;
+    }
+
+    /**
+     * Read facts from an XBRL document. The stream is closed when done.
+     *
+     * @param in         XBRL instance document
+     * @param reportedOn Report date of the document; facts for other contexts are skipped
+     * @param filing     OUT: facts and the divisors of their units are added to this builder; units go to its concept
+     *                   dictionary
+     */
+    public void extract(InputStream in, LocalDate reportedOn, XBRLFiling.Builder filing) throws IOException, XMLStreamException {
+        final String contextRef = reportedOn.format(DateTimeFormatter.ISO_DATE);
+        final XBRLValueClassifier classifier = new XBRLValueClassifier();
+        final ConceptDictionary dictionary = filing.getDictionary();
+
+        try (InputStream xbrl = in) {
+            final XMLStreamReader2 xmlStreamReader = (XMLStreamReader2) xmlInputFactory.createXMLStreamReader(xbrl);
+            try {
+                while (xmlStreamReader.hasNext()) {
+                    if (xmlStreamReader.next() != XMLStreamConstants.START_ELEMENT
+                            || !taxonomy.accepts(xmlStreamReader.getNamespaceURI())) {
+                        continue;
+                    }
+                    // tag must also contain a contextRef attribute that ends with target filing date
+                    final String context = xmlStreamReader.getAttributeValue(null, "contextRef");
+                    if (context == null || !context.endsWith(contextRef)) {
+                        continue;
+                    }
+
+                    final String unit = xmlStreamReader.getAttributeValue(null, "unitRef");
+                    final int conceptId = dictionary.idOf(xmlStreamReader.getLocalName());
+                    dictionary.setUnit(conceptId, unit);
+                    classifier.classify(xmlStreamReader.getElementText());
+                    filing.add(conceptId, classifier, ConceptDictionary.divisorFor(unit));
+                }
+            } finally {
+                xmlStreamReader.close();
+            }
+        }
+    }
+
+    public XBRLTaxonomy getTaxonomy() {
+        return taxonomy;
+    }
+}
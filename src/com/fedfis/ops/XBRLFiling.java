@@ -0,0 +1,426 @@
+package com.fedfis.ops;
+
+import io.vertx.core.json.JsonObject;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+
+/**
+ * One parsed XBRL document (a single bank's filing for a single report date), or the flush marker sent after
+ * the last filing of a zip.
+ * <p>
+ * Facts are held in primitive arrays sorted by concept id from the source's ConceptDictionary: the value kind
+ * (see XBRLValueClassifier), a long holding the boolean, the long or the unscaled decimal, and the decimal's
+ * scale, and the fisweb divisor of the fact's own unit. Only string facts and decimals too big for a long are kept
+ * as objects. getFacts() and getDivisors()
+ * build the old JsonObject shapes on demand for the sinks that need JSON.
+ * <p>
+ * Filings travel over the event bus as-is through XBRLFilingCodec, so every local consumer shares the same
+ * instance. Filings are immutable once built.
+ */
+public class XBRLFiling {
+    public static final String UBPR = "ubpr";
+    public static final String CALL = "call";
+
+    private final String source;
+    private final LocalDate reportedOn;
+    private final String path;
+    private final boolean flush;
+
+    private final ConceptDictionary dictionary;
+    private final int[] conceptIds;
+    private final byte[] kinds;
+    private final byte[] scales;
+    private final long[] values;
+    private final int[] divisors;
+    private final Object[] objects;// null unless some fact is a string or a decimal that doesn't fit a long
+    private final BitSet present;
+    private volatile JsonObject facts;
+
+    private XBRLFiling(String source, LocalDate reportedOn, String path, boolean flush, ConceptDictionary dictionary,
+                       int[] conceptIds, byte[] kinds, byte[] scales, long[] values, int[] divisors, Object[] objects,
+                       BitSet present) {
+        this.source = source;
+        this.reportedOn = reportedOn;
+        this.path = path;
+        this.flush = flush;
+        this.dictionary = dictionary;
+        this.conceptIds = conceptIds;
+        this.kinds = kinds;
+        this.scales = scales;
+        this.values = values;
+        this.divisors = divisors;
+        this.objects = objects;
+        this.present = present;
+    }
+
+    /**
+     * The marker published after every filing of a zip has been published
+     */
+    public static XBRLFiling flush(String source) {
+        return new XBRLFiling(source, null, null, true, ConceptDictionary.forSource(source),
+                new int[0], new byte[0], new byte[0], new long[0], new int[0], null, new BitSet());
+    }
+
+    /**
+     * Start building a filing whose concepts come from the source's shared dictionary
+     */
+    public static Builder builder(String source, LocalDate reportedOn, String path) {
+        return new Builder(source, reportedOn, path, 256);
+    }
+
+    /**
+     * Start building a filing expected to hold about facts facts
+     */
+    static Builder builder(String source, LocalDate reportedOn, String path, int facts) {
+        return new Builder(source, reportedOn, path, Math.max(16, facts));
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public LocalDate getReportedOn() {
+        return reportedOn;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isFlush() {
+        return flush;
+    }
+
+    public ConceptDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Number of facts
+     */
+    public int size() {
+        return conceptIds.length;
+    }
+
+    public int conceptId(int i) {
+        return conceptIds[i];
+    }
+
+    public String name(int i) {
+        return dictionary.nameOf(conceptIds[i]);
+    }
+
+    /**
+     * XBRLValueClassifier kind of the i'th fact
+     */
+    public int kind(int i) {
+        return kinds[i];
+    }
+
+    public boolean booleanValue(int i) {
+        return values[i] != 0;
+    }
+
+    /**
+     * Value of a LONG fact, or the unscaled value of a DECIMAL that fits a long
+     */
+    public long longValue(int i) {
+        return values[i];
+    }
+
+    public int scale(int i) {
+        return scales[i];
+    }
+
+    /**
+     * Divisor fisweb applies to the i'th value, from the unit it was reported in
+     */
+    public int divisor(int i) {
+        return divisors[i];
+    }
+
+    /**
+     * The i'th value boxed as Boolean, Long, BigDecimal or String
+     */
+    public Object value(int i) {
+        switch (kinds[i]) {
+            case XBRLValueClassifier.BOOLEAN:
+                return values[i] != 0;
+            case XBRLValueClassifier.LONG:
+                return values[i];
+            case XBRLValueClassifier.DECIMAL:
+                return objects != null && objects[i] != null ? objects[i] : BigDecimal.valueOf(values[i], scales[i]);
+            default:
+                return objects[i];
+        }
+    }
+
+    /**
+     * The i'th value if it is held as an object, a string or a decimal that doesn't fit a long; otherwise null
+     */
+    Object object(int i) {
+        return objects == null ? null : objects[i];
+    }
+
+    public boolean has(int conceptId) {
+        return conceptId >= 0 && present.get(conceptId);
+    }
+
+    /**
+     * Position of a concept's fact, or -1 if the filing doesn't have it
+     */
+    public int indexOf(int conceptId) {
+        return has(conceptId) ? Arrays.binarySearch(conceptIds, conceptId) : -1;
+    }
+
+    public int indexOf(String name) {
+        return indexOf(dictionary.lookup(name));
+    }
+
+    /**
+     * Value of a named fact boxed as by value(int), or null if the filing doesn't have it
+     */
+    public Object getValue(String name) {
+        final int i = indexOf(name);
+        return i < 0 ? null : value(i);
+    }
+
+    /**
+     * JSON view of the facts: concept name to Boolean, Long, BigDecimal or String value
+     * <p>
+     * Built on first use and cached; callers must not modify it.
+     */
+    public JsonObject getFacts() {
+        JsonObject view = facts;
+        if (view == null) {
+            view = new JsonObject(new LinkedHashMap<>(size() * 2));
+            for (int i = 0; i < size(); i++) {
+                view.put(name(i), value(i));
+            }
+            facts = view;
+        }
+        return view;
+    }
+
+    /**
+     * JSON view of the divisors: concept name to divisor for the facts that have one other than 1
+     */
+    public JsonObject getDivisors() {
+        final JsonObject divisors = new JsonObject();
+        for (int i = 0; i < size(); i++) {
+            final int divisor = divisor(i);
+            if (divisor != 1) {
+                divisors.put(name(i), divisor);
+            }
+        }
+        return divisors;
+    }
+
+    /**
+     * The JSON message format used before filings had their own codec
+     */
+    public JsonObject toJson() {
+        if (flush) {
+            return new JsonObject().put("flush", true);
+        }
+        return new JsonObject()
+                .put(source, getFacts())
+                .put("divisors", getDivisors())
+                .put("reported_on", reportedOn.format(DateTimeFormatter.ISO_DATE))
+                .put("path", path);
+    }
+
+    /**
+     * Collects facts in document order; build() sorts them by concept id. When a concept is added twice the last
+     * value wins, as it did when facts were put into a JsonObject.
+     */
+    public static class Builder {
+        private final String source;
+        private final LocalDate reportedOn;
+        private final String path;
+        private final ConceptDictionary dictionary;
+        private int size = 0;
+        private int[] conceptIds;
+        private byte[] kinds;
+        private byte[] scales;
+        private long[] values;
+        private int[] divisors;
+        private Object[] objects;
+
+        private Builder(String source, LocalDate reportedOn, String path, int capacity) {
+            this.source = source;
+            this.reportedOn = reportedOn;
+            this.path = path;
+            this.dictionary = ConceptDictionary.forSource(source);
+            this.conceptIds = new int[capacity];
+            this.kinds = new byte[capacity];
+            this.scales = new byte[capacity];
+            this.values = new long[capacity];
+            this.divisors = new int[capacity];
+        }
+
+        public ConceptDictionary getDictionary() {
+            return dictionary;
+        }
+
+        /**
+         * Add the value classifier last classified for a concept, with no divisor
+         */
+        public Builder add(int conceptId, XBRLValueClassifier classifier) {
+            return add(conceptId, classifier, 1);
+        }
+
+        /**
+         * Add the value classifier last classified for a concept
+         *
+         * @param divisor Divisor of the fact's unit, from ConceptDictionary.divisorFor()
+         */
+        public Builder add(int conceptId, XBRLValueClassifier classifier, int divisor) {
+            final int kind = classifier.kind();
+            switch (kind) {
+                case XBRLValueClassifier.BOOLEAN:
+                    return add(conceptId, kind, classifier.booleanValue() ? 1 : 0, 0, divisor, null);
+                case XBRLValueClassifier.LONG:
+                    return add(conceptId, kind, classifier.longValue(), 0, divisor, null);
+                case XBRLValueClassifier.DECIMAL:
+                    if (classifier.fitsLong() && classifier.scale() <= Byte.MAX_VALUE) {
+                        return add(conceptId, kind, classifier.longValue(), classifier.scale(), divisor, null);
+                    }
+                    return add(conceptId, kind, 0, 0, divisor, classifier.decimalValue());
+                default:
+                    return add(conceptId, kind, 0, 0, divisor, classifier.value());
+            }
+        }
+
+        /**
+         * Add a boxed Boolean, Integer, Long, Double, BigDecimal or String value, with no divisor
+         */
+        public Builder add(int conceptId, Object value) {
+            return add(conceptId, value, 1);
+        }
+
+        /**
+         * Add a boxed Boolean, Integer, Long, Double, BigDecimal or String value
+         *
+         * @param divisor Divisor of the fact's unit, from ConceptDictionary.divisorFor()
+         */
+        public Builder add(int conceptId, Object value, int divisor) {
+            if (value instanceof Boolean) {
+                return add(conceptId, XBRLValueClassifier.BOOLEAN, (Boolean) value ? 1 : 0, 0, divisor, null);
+            } else if (value instanceof Long || value instanceof Integer) {
+                return add(conceptId, XBRLValueClassifier.LONG, ((Number) value).longValue(), 0, divisor, null);
+            } else if (value instanceof BigDecimal || value instanceof Double) {
+                final BigDecimal decimal = value instanceof BigDecimal ? (BigDecimal) value : BigDecimal.valueOf((Double) value);
+                if (decimal.scale() >= 0 && decimal.scale() <= Byte.MAX_VALUE && decimal.unscaledValue().bitLength() < 64) {
+                    return add(conceptId, XBRLValueClassifier.DECIMAL, decimal.unscaledValue().longValue(), decimal.scale(), divisor, null);
+                }
+                return add(conceptId, XBRLValueClassifier.DECIMAL, 0, 0, divisor, decimal);
+            }
+            return add(conceptId, XBRLValueClassifier.STRING, 0, 0, divisor, String.valueOf(value));
+        }
+
+        /**
+         * Add a fact already split into its XBRLFiling columns; object is null unless the value doesn't fit them
+         */
+        Builder add(int conceptId, int kind, long value, int scale, int divisor, Object object) {
+            if (size == conceptIds.length) {
+                final int capacity = size * 2;
+                conceptIds = Arrays.copyOf(conceptIds, capacity);
+                kinds = Arrays.copyOf(kinds, capacity);
+                scales = Arrays.copyOf(scales, capacity);
+                values = Arrays.copyOf(values, capacity);
+                divisors = Arrays.copyOf(divisors, capacity);
+                if (objects != null) {
+                    objects = Arrays.copyOf(objects, capacity);
+                }
+            }
+            if (object != null && objects == null) {
+                objects = new Object[conceptIds.length];
+            }
+            conceptIds[size] = conceptId;
+            kinds[size] = (byte) kind;
+            scales[size] = (byte) scale;
+            values[size] = value;
+            divisors[size] = divisor;
+            if (objects != null) {
+                objects[size] = object;
+            }
+            size++;
+            return this;
+        }
+
+        /**
+         * Set the divisor of a fact already added, e.g. one that arrives after the values as on the wire
+         *
+         * @param fact Position the fact was added at
+         */
+        Builder divisor(int fact, int divisor) {
+            if (fact < 0 || fact >= size) {
+                throw new IndexOutOfBoundsException("Divisor for fact " + fact + " of " + size);
+            }
+            divisors[fact] = divisor;
+            return this;
+        }
+
+        public XBRLFiling build() {
+            if (isSorted()) {
+                // facts that come in concept id order, e.g. from a QuarterFile, need no sort
+                final BitSet present = new BitSet(dictionary.size());
+                for (int i = 0; i < size; i++) {
+                    present.set(conceptIds[i]);
+                }
+                return new XBRLFiling(source, reportedOn, path, false, dictionary, Arrays.copyOf(conceptIds, size),
+                        Arrays.copyOf(kinds, size), Arrays.copyOf(scales, size), Arrays.copyOf(values, size),
+                        Arrays.copyOf(divisors, size), objects == null ? null : Arrays.copyOf(objects, size), present);
+            }
+            // sort by concept id then position, so that of duplicates the last added comes last
+            final long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = ((long) conceptIds[i] << 32) | i;
+            }
+            Arrays.sort(order);
+
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (i + 1 < size && order[i + 1] >>> 32 == order[i] >>> 32) continue;
+                n++;
+            }
+            final int[] sortedIds = new int[n];
+            final byte[] sortedKinds = new byte[n];
+            final byte[] sortedScales = new byte[n];
+            final long[] sortedValues = new long[n];
+            final int[] sortedDivisors = new int[n];
+            final Object[] sortedObjects = objects == null ? null : new Object[n];
+            final BitSet present = new BitSet(dictionary.size());
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                if (i + 1 < size && order[i + 1] >>> 32 == order[i] >>> 32) continue;
+                final int from = (int) order[i];
+                sortedIds[j] = conceptIds[from];
+                sortedKinds[j] = kinds[from];
+                sortedScales[j] = scales[from];
+                sortedValues[j] = values[from];
+                sortedDivisors[j] = divisors[from];
+                if (sortedObjects != null) sortedObjects[j] = objects[from];
+                present.set(conceptIds[from]);
+                j++;
+            }
+            return new XBRLFiling(source, reportedOn, path, false, dictionary,
+                    sortedIds, sortedKinds, sortedScales, sortedValues, sortedDivisors, sortedObjects, present);
+        }
+
+        private boolean isSorted() {
+            for (int i = 1; i < size; i++) {
+                if (conceptIds[i] <= conceptIds[i - 1]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
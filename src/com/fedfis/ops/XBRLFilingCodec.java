@@ -0,0 +1,196 @@
+package com.fedfis.ops;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * Event bus codec for XBRLFiling
+ * <p>
+ * Local delivery hands the same instance to every consumer. Clustered delivery uses a compact binary layout
+ * that carries concept names, since ConceptDictionary ids differ between JVMs:
+ * <pre>
+ *   byte    version
+ *   byte    flags (1 = flush)
+ *   string  source
+ *   long    reported_on epoch day (flush markers: -1)
+ *   string  path (flush markers: empty)
+ *   int     fact count, then per fact: string name, byte tag, value
+ *   int     divisor count, then per fact whose divisor isn't 1: int fact position, int divisor
+ * </pre>
+ * Strings are an unsigned short byte length followed by UTF-8. Value tags are Z boolean, J long, d decimal that
+ * fits a long (byte scale, long unscaled), B decimal (int scale, then the unscaled value as a string of
+ * big-endian two's complement bytes) and S string; string values carry an int byte length since text facts can
+ * be long.
+ */
+public class XBRLFilingCodec implements MessageCodec<XBRLFiling, XBRLFiling> {
+    public static final String NAME = "xbrl-filing";
+    private static final byte VERSION = 3;
+    private static final byte FLAG_FLUSH = 1;
+
+    /**
+     * Register this codec as the default for XBRLFiling on the Vertx instance's event bus
+     */
+    public static void register(Vertx vertx) {
+        vertx.eventBus().registerDefaultCodec(XBRLFiling.class, new XBRLFilingCodec());
+    }
+
+    @Override
+    public void encodeToWire(Buffer buffer, XBRLFiling filing) {
+        buffer.appendByte(VERSION);
+        buffer.appendByte(filing.isFlush() ? FLAG_FLUSH : 0);
+        appendString(buffer, filing.getSource());
+        buffer.appendLong(filing.isFlush() ? -1L : filing.getReportedOn().toEpochDay());
+        appendString(buffer, filing.isFlush() ? "" : filing.getPath());
+
+        final int[] divisorFacts = new int[filing.size()];
+        final int[] divisors = new int[filing.size()];
+        int divisorCount = 0;
+        buffer.appendInt(filing.size());
+        for (int i = 0; i < filing.size(); i++) {
+            appendString(buffer, filing.name(i));
+            switch (filing.kind(i)) {
+                case XBRLValueClassifier.BOOLEAN:
+                    buffer.appendByte((byte) 'Z').appendByte((byte) (filing.booleanValue(i) ? 1 : 0));
+                    break;
+                case XBRLValueClassifier.LONG:
+                    buffer.appendByte((byte) 'J').appendLong(filing.longValue(i));
+                    break;
+                case XBRLValueClassifier.DECIMAL:
+                    // only decimals the filing holds as an object don't fit its long and byte scale
+                    final Object object = filing.object(i);
+                    if (object == null) {
+                        buffer.appendByte((byte) 'd').appendByte((byte) filing.scale(i)).appendLong(filing.longValue(i));
+                    } else {
+                        final BigDecimal decimal = (BigDecimal) object;
+                        final byte[] unscaled = decimal.unscaledValue().toByteArray();
+                        buffer.appendByte((byte) 'B').appendInt(decimal.scale());
+                        buffer.appendUnsignedShort(unscaled.length).appendBytes(unscaled);
+                    }
+                    break;
+                default:
+                    buffer.appendByte((byte) 'S');
+                    appendText(buffer, String.valueOf(filing.value(i)));
+                    break;
+            }
+            final int divisor = filing.divisor(i);
+            if (divisor != 1) {
+                divisorFacts[divisorCount] = i;
+                divisors[divisorCount++] = divisor;
+            }
+        }
+
+        buffer.appendInt(divisorCount);
+        for (int d = 0; d < divisorCount; d++) {
+            buffer.appendInt(divisorFacts[d]).appendInt(divisors[d]);
+        }
+    }
+
+    @Override
+    public XBRLFiling decodeFromWire(int pos, Buffer buffer) {
+        final int[] at = {pos};
+        final byte version = buffer.getByte(at[0]++);
+        if (version != VERSION) {
+            throw new IllegalStateException("Unsupported " + NAME + " version " + version);
+        }
+        final boolean flush = (buffer.getByte(at[0]++) & FLAG_FLUSH) != 0;
+        final String source = readString(buffer, at);
+        final long epochDay = buffer.getLong(at[0]);
+        at[0] += 8;
+        final String path = readString(buffer, at);
+        if (flush) {
+            return XBRLFiling.flush(source);
+        }
+
+        final XBRLFiling.Builder filing = XBRLFiling.builder(source, LocalDate.ofEpochDay(epochDay), path);
+        final ConceptDictionary dictionary = filing.getDictionary();
+        final int factCount = buffer.getInt(at[0]);
+        at[0] += 4;
+        for (int i = 0; i < factCount; i++) {
+            final int conceptId = dictionary.idOf(readString(buffer, at));
+            final byte tag = buffer.getByte(at[0]++);
+            switch (tag) {
+                case 'Z':
+                    filing.add(conceptId, buffer.getByte(at[0]++) != 0);
+                    break;
+                case 'J':
+                    filing.add(conceptId, buffer.getLong(at[0]));
+                    at[0] += 8;
+                    break;
+                case 'd':
+                    filing.add(conceptId, BigDecimal.valueOf(buffer.getLong(at[0] + 1), buffer.getByte(at[0])));
+                    at[0] += 9;
+                    break;
+                case 'B':
+                    final int scale = buffer.getInt(at[0]);
+                    final int length = buffer.getUnsignedShort(at[0] + 4);
+                    at[0] += 6;
+                    filing.add(conceptId, new BigDecimal(new BigInteger(buffer.getBytes(at[0], at[0] + length)), scale));
+                    at[0] += length;
+                    break;
+                default:
+                    filing.add(conceptId, readText(buffer, at));
+                    break;
+            }
+        }
+
+        final int divisorCount = buffer.getInt(at[0]);
+        at[0] += 4;
+        for (int i = 0; i < divisorCount; i++) {
+            filing.divisor(buffer.getInt(at[0]), buffer.getInt(at[0] + 4));
+            at[0] += 8;
+        }
+        return filing.build();
+    }
+
+    /**
+     * Local delivery: filings are read-only once published, so there is nothing to copy
+     */
+    @Override
+    public XBRLFiling transform(XBRLFiling filing) {
+        return filing;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+
+    private static void appendString(Buffer buffer, String s) {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.appendUnsignedShort(bytes.length);
+        buffer.appendBytes(bytes);
+    }
+
+    private static void appendText(Buffer buffer, String s) {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.appendInt(bytes.length);
+        buffer.appendBytes(bytes);
+    }
+
+    private static String readText(Buffer buffer, int[] at) {
+        final int length = buffer.getInt(at[0]);
+        at[0] += 4;
+        final String s = buffer.getString(at[0], at[0] + length, StandardCharsets.UTF_8.name());
+        at[0] += length;
+        return s;
+    }
+
+    private static String readString(Buffer buffer, int[] at) {
+        final int length = buffer.getUnsignedShort(at[0]);
+        at[0] += 2;
+        final String s = buffer.getString(at[0], at[0] + length, StandardCharsets.UTF_8.name());
+        at[0] += length;
+        return s;
+    }
+}
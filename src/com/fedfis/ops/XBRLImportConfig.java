@@ -7,4 +7,43 @@ public class XBRLImportConfig {
     public static final String RCON_9999 = "RCON9999";//report date
 
     public static final String CFG_PGCONNECTIONURI = "pgConnectionUri";
+    public static final String CFG_PGINGESTMODE = "pgIngestMode";// how FisdbUBPRImportVerticle loads scratchpad.ubpr
+    public static final String PGINGEST_INSERT = "insert";// batched INSERT ... ON CONFLICT through the PgPool
+    public static final String PGINGEST_COPY = "copy";// binary COPY into a staging table, then one upsert per batch
+    public static final String CFG_PGMAXINFLIGHT = "pgMaxInFlight";// scratchpad.ubpr batches written at once
+    public static final String CFG_PGBATCHSIZE = "pgBatchSize";// initial scratchpad.ubpr batch size
+    public static final String CFG_PGMAXBATCHSIZE = "pgMaxBatchSize";// largest the batch size adapts up to
+    public static final String CFG_PGBATCHTARGETMS = "pgBatchTargetMs";// commit latency the batch size adapts to
+    public static final String CFG_PGBATCHRETRIES = "pgBatchRetries";// retries before a failed batch fails its flush
+    public static final String CFG_FISWEBINGESTMODE = "fiswebIngestMode";// how the fisweb verticles apply filings
+    public static final String FISWEBINGEST_UPDATE = "update";// batched UPDATE per bank, grouped by statement shape
+    public static final String FISWEBINGEST_MERGE = "merge";// stage each zip in a temporary table, then one UPDATE ... JOIN
+    public static final String CFG_FISWEBBATCHSIZE = "fiswebBatchSize";// initial UPDATEs per executeBatch for one statement shape
+    public static final String CFG_FISWEBTABLES = "fiswebTables";// comma separated fisweb table types each filing is split across, or "all"
+    public static final String CFG_FISWEBRSSDQUARTERS = "fiswebRssdQuarters";// quarters of RSSD to fisweb id mappings kept
+    public static final String CFG_FISWEBRSSDREFRESHMS = "fiswebRssdRefreshMs";// age at which a quarter with unknown RSSD ids is read again
+    public static final String CFG_MANIFESTPATH = "manifestPath";// JSON import manifest; unset imports every zip every run
+    public static final String CFG_DIGESTPATH = "digestPath";// per-sink filing digests; unset writes every filing
+    public static final String CFG_FISWEBCHANGEDCOLUMNS = "fiswebChangedColumnsOnly";// with digestPath, update only changed columns
+    public static final String CFG_WATCHQUIETMS = "watchQuietMs";// watch mode: mtime quiet period before a zip counts as complete
+    public static final String CFG_WATCHPOLLMS = "watchPollMs";// watch mode: directory listing interval when polling
+    public static final String CFG_WATCHPOLLING = "watchPolling";// watch mode: poll instead of using a WatchService
+    public static final String CFG_METRICSPORT = "metricsPort";// Prometheus /metrics endpoint port, 0 to disable; JMX is always on
+    public static final String CFG_ZIPQUEUESIZE = "zipQueueSize";// zips admitted but not yet being walked
+    public static final String CFG_ZIPWORKERS = "zipWorkers";// zips walked at once
+    public static final String CFG_PARSERWORKERS = "parserWorkers";// remoteParse=false: XML entries of one zip parsed in parallel, in process
+    public static final String CFG_REMOTEPARSE = "remoteParse";// default true: have zip entries parsed by the XBRLParseVerticles of this node or the cluster; false parses in the sinks
+    public static final String CFG_PARSEWINDOW = "parseWindow";// remoteParse: entries of one zip being parsed at once
+    public static final String CFG_PARSETIMEOUTMS = "parseTimeoutMs";// remoteParse: how long to wait for one entry
+    public static final String CFG_PARSEINSTANCES = "parseInstances";// XBRLParseVerticle instances Launcher deploys standalone or with parse
+    public static final String CFG_SINKCREDITS = "sinkCredits";// filings a sink instance lets be parsed ahead of its writer
+    public static final String CFG_FANOUT = "fanOut";// default true: sinks are fed by one XBRLSourceVerticle per source instead of walking and parsing zips themselves
+    public static final String CFG_SINKSTALLMS = "sinkStallMs";// fanOut: how long every sink may be full before the one holding up the parse is detached from a zip
+    public static final String CFG_SINKSPOOLBYTES = "sinkSpoolBytes";// fanOut: filings a sink instance may have spooled to disk, not yet sent, before it counts as full
+    public static final String CFG_SPOOLPATH = "spoolPath";// fanOut: directory of the sinks' spool files, default java.io.tmpdir
+    public static final String CFG_SINKINSTANCES = "sinkInstances";// instances of each sink verticle deployed by Launcher
+    public static final String CFG_QUARTERPATH = "quarterPath";// directory QuarterFileVerticle keeps parsed quarters in; unset keeps none
+    public static final String CFG_ARROWPATH = "arrowPath";// directory ArrowExportVerticle writes Arrow files to, partitioned by quarter
+    public static final String CFG_ARROWBATCHROWS = "arrowBatchRows";// rows per Arrow record batch
+    public static final String CFG_ZIPREADER = "zipReader";// "mapped" (default) memory-maps zips, "zipfs" walks them through the zip filesystem
 }
\ No newline at end of file
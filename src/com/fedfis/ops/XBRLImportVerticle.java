@@ -1,73 +1,136 @@
 package com.fedfis.ops;
 
+import io.micrometer.core.instrument.Gauge;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.Promise;
 import io.vertx.core.eventbus.Message;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.nio.file.*;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.CompletableFuture;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * XBRLImportVerticle implements the generic part of loading XBRL into memory for transformation and storage
  * <p>
- * The kickStart() method starts an async loop that attempts to import the XBRL from zip files
- * published as URIs to the busAddress channel.
+ * Zip files published as paths to the busAddress channel are admitted into a bounded ZipScheduler, which walks
+ * them for XML on a worker pool of its own. A path that doesn't fit in the queue is refused with
+ * ZipScheduler.QUEUE_FULL so the publisher can retry it later. With manifestPath configured, zips and entries
+ * this verticle already imported unchanged are skipped.
+ * <p>
+ * Parsed filings come back on listenerAddress, which is unique to the instance and only consumed on this node. Each
+ * entry of a walk first takes one of the instance's sinkCredits FilingCredits; subclasses call filingConsumed() for
+ * every filing they take and report their writer's backlog with writerBacklog(), so parsing stalls while the writer
+ * is behind instead of filings piling up on the event bus.
+ * <p>
+ * By default, with fanOut, sinks start with listenForZips() by registering with the XBRLSourceVerticle of their
+ * source instead, which walks and parses each zip once and sends every filing to each of its sinks, through a
+ * SinkSpool of the instance's own once it runs out of credits; everything on listenerAddress stays the same.
+ * With fanOut=false every sink walks and parses each zip itself.
+ * <p>
+ * A QuarterFile sent in place of a zip is replayed: its filings are published straight from the file, as parsed
+ * when it was written, without reading any XBRL.
  */
 public abstract class XBRLImportVerticle extends AbstractVerticle {
     private final static Logger logger = LoggerFactory.getLogger(XBRLImportVerticle.class.getName());
-    final protected ArrayBlockingQueue<URI> zipQ;
+    private static final AtomicInteger instances = new AtomicInteger();
+    // fisweb table type suffixes
+    public static final List<String> TABLE_TYPES = List.of("a", "b", "calc", "dm", "pa", "pc", "pq", "rankingq", "rankingy", "ratingq", "ratingy");
 
-    protected final String listenerAddress = "xbrl.listen";
+    protected final String listenerAddress;// parsed filings for this verticle only, so flushes reach their own sink
     protected final String busAddress;
-    protected Boolean busy = false;
+    protected final int instance;
+    protected ZipScheduler zipScheduler;
+    protected FilingCredits credits;
+    private ExecutorService parserPool;
+    private FilingDigestStore digests;
+    private FanOutPublishingVisitor.Sink fanOutSink;
 
     public XBRLImportVerticle(String busAddress) {
         this.busAddress = busAddress;
-        this.zipQ = new ArrayBlockingQueue<>(100);
-    }
-
-    public void kickStart() {
-        try {
-            busy = true;
-            walkFileTree(zipQ.take()).onSuccess(unused -> {
-                if (!zipQ.isEmpty()) {
-                    kickStart();
-                } else {
-                    busy = false;
-                }
-            }).onFailure(t -> {
-                logger.error(t.toString());
-            });
-        } catch (Exception e) {
-            logger.debug(e.getMessage());
-        }
+        this.instance = instances.getAndIncrement();
+        this.listenerAddress = busAddress + ".filings." + instance;
     }
 
+    /**
+     * Get the handler for zip paths sent to busAddress, creating the zip scheduler and credits on first use
+     */
     @NotNull
     protected Handler<Message<Object>> getURIHandler() {
+        if (zipScheduler == null) {
+            zipScheduler = new ZipScheduler(vertx, busAddress + "-" + instance, this::walkFileTreeImpl,
+                    config().getInteger(XBRLImportConfig.CFG_ZIPQUEUESIZE, 100),
+                    config().getInteger(XBRLImportConfig.CFG_ZIPWORKERS, 1));
+            final String tag = String.valueOf(instance);
+            Gauge.builder("xbrl.zip.queued", zipScheduler, ZipScheduler::queued).description("Zips waiting to be walked")
+                    .tags("sink", busAddress, "instance", tag).register(ImportMetrics.registry());
+            Gauge.builder("xbrl.zip.running", zipScheduler, ZipScheduler::running).description("Zips being walked")
+                    .tags("sink", busAddress, "instance", tag).register(ImportMetrics.registry());
+            createCredits();
+        }
         return message -> {
             try {
                 URI uri = URI.create("jar:" + Path.of(message.body().toString()).toUri());
-                logger.debug("Found for import: " + uri);
-                zipQ.add(uri);
-                if (!busy) kickStart();
+                if (zipScheduler.offer(uri)) {
+                    logger.debug("Found for import: " + uri);
+                    message.reply(uri.toString());
+                } else {
+                    message.fail(ZipScheduler.QUEUE_FULL, "Zip queue full");
+                }
             } catch (Exception e) {
                 logger.debug(e.getMessage());
+                message.fail(500, e.toString());
             }
         };
     }
 
+    /**
+     * Create the instance's credits, unless it has them, with gauges of them
+     */
+    protected void createCredits() {
+        if (credits != null) {
+            return;
+        }
+        credits = new FilingCredits(vertx, config().getInteger(XBRLImportConfig.CFG_SINKCREDITS, 256), this::writerBacklog);
+        final String tag = String.valueOf(instance);
+        Gauge.builder("xbrl.credits.available", credits, FilingCredits::available).description("Entries that may start parsing")
+                .tags("sink", busAddress, "instance", tag).register(ImportMetrics.registry());
+        Gauge.builder("xbrl.credits.held", credits, FilingCredits::held).description("Credits held until the writer catches up")
+                .tags("sink", busAddress, "instance", tag).register(ImportMetrics.registry());
+    }
+
+    /**
+     * Start taking zips: with fanOut register with the XBRLSourceVerticle of the sink's source, which walks each zip
+     * once for all of its sinks; otherwise listen for zip paths on busAddress and walk them here
+     */
+    protected void listenForZips() {
+        if (config().getBoolean(XBRLImportConfig.CFG_FANOUT, true)) {
+            createCredits();
+            final SinkSpool spool = new SinkSpool(vertx.eventBus(), listenerAddress, credits,
+                    Path.of(config().getString(XBRLImportConfig.CFG_SPOOLPATH, System.getProperty("java.io.tmpdir"))),
+                    config().getLong(XBRLImportConfig.CFG_SINKSPOOLBYTES, 1L << 30));
+            Gauge.builder("xbrl.spool.bytes", spool, SinkSpool::pending).description("Spooled filings not yet sent")
+                    .tags("sink", busAddress, "instance", String.valueOf(instance)).register(ImportMetrics.registry());
+            fanOutSink = new FanOutPublishingVisitor.Sink(busAddress, listenerAddress, credits, spool);
+            XBRLSourceVerticle.register(getSource(), fanOutSink);
+        } else {
+            vertx.eventBus().consumer(busAddress, getURIHandler());
+        }
+    }
+
     /**
      * Get a file visitor
      * <p>
@@ -76,29 +139,201 @@ public abstract class XBRLImportVerticle extends AbstractVerticle {
     protected abstract SimpleFileVisitor<Path> getPublishingVisitor();
 
     /**
-     * Walk the zip filesystem for XML files
+     * The FFIEC source of the filings this verticle takes, XBRLFiling.UBPR or XBRLFiling.CALL
+     */
+    public String getSource() {
+        return ((XBRLPublishingVisitor) getPublishingVisitor()).getSource();
+    }
+
+    /**
+     * Filings whose rows the writer has cut into batches but not yet written; credits are held while this reaches
+     * sinkCredits. A writer cutting several rows per filing must convert its row count.
+     * <p>
+     * Rows a writer only buffers until the flush must not be counted: the flush can't come while credits are held.
+     */
+    protected int writerBacklog() {
+        return 0;
+    }
+
+    /**
+     * Grant back the credit of a filing taken from listenerAddress, once the writer has room; call for every filing
+     * but the flush, including filings skipped as unchanged
+     */
+    protected void filingConsumed() {
+        if (credits != null) {
+            credits.consumed();
+        }
+    }
+
+    /**
+     * Get the visitor used to walk a zip and parse its entries for a publishing visitor: by default its entries are
+     * parsed by the XBRLParseVerticles of this node or the cluster; with remoteParse=false they are parsed here, on
+     * the parser pool when parserWorkers is more than 1
+     *
+     * @param zip        Path of the zip on the default filesystem
+     * @param publishing Visitor that takes credits for entries and publishes their filings
+     */
+    protected SimpleFileVisitor<Path> getWalkingVisitor(Path zip, XBRLPublishingVisitor publishing) {
+        if (config().getBoolean(XBRLImportConfig.CFG_REMOTEPARSE, true)) {
+            return new RemoteParsingVisitor(publishing, vertx.eventBus(), zip,
+                    config().getString(XBRLImportConfig.CFG_ZIPREADER, "mapped"),
+                    config().getInteger(XBRLImportConfig.CFG_PARSEWINDOW, 32),
+                    config().getLong(XBRLImportConfig.CFG_PARSETIMEOUTMS, 300_000L));
+        }
+        final int parserWorkers = config().getInteger(XBRLImportConfig.CFG_PARSERWORKERS, 1);
+        if (parserWorkers < 2) {
+            return publishing;
+        }
+        synchronized (this) {
+            if (parserPool == null) {
+                logger.info("Parsing with " + parserWorkers + " workers");
+                parserPool = Executors.newFixedThreadPool(parserWorkers);
+            }
+        }
+        return new ParallelPublishingVisitor(publishing, parserPool, parserWorkers);
+    }
+
+    @Override
+    public void stop(Promise<Void> stopPromise) {
+        if (fanOutSink != null) {
+            XBRLSourceVerticle.unregister(getSource(), fanOutSink);
+            fanOutSink.getSpool().close();
+        }
+        final Future<Void> zipsDone = zipScheduler == null ? Future.succeededFuture() : zipScheduler.close();
+        zipsDone.onComplete(ar -> {
+            synchronized (this) {
+                if (parserPool != null) {
+                    parserPool.shutdown();
+                }
+            }
+            stopPromise.handle(ar);
+        });
+    }
+
+    /**
+     * Walk the zip for XML files, through a MappedZipFile or with zipReader "zipfs" the zip filesystem, or replay a
+     * QuarterFile
      *
      * @param uri Filesystem URI
+     * @throws UncheckedIOException if the zip can't be read or its filings weren't all stored
      */
-    @NotNull
-    private void walkFileTreeImpl(URI uri) {
-        try (FileSystem xbrlFS = FileSystems.newFileSystem(uri, new HashMap<>())) {
-            Path zipfsRoot = xbrlFS.getRootDirectories().iterator().next();
-            Files.walkFileTree(zipfsRoot, getPublishingVisitor());
-        } catch (Exception e) {
-            logger.debug(e.toString());
+    protected void walkFileTreeImpl(URI uri) {
+        final ImportManifest manifest = getManifest();
+        ImportManifest.Walk walk = null;
+        final long started = System.nanoTime();
+        String outcome = "failure";
+        try {
+            final Path zip = Path.of(URI.create(uri.getRawSchemeSpecificPart()));
+            if (QuarterFile.isQuarterFile(zip)) {
+                replay(zip, ((XBRLPublishingVisitor) getPublishingVisitor()).withCredits(credits));
+                outcome = "success";
+                return;
+            }
+            if (manifest != null) {
+                walk = manifest.begin(busAddress, zip);
+                if (walk == null) {
+                    logger.info("Already imported, skipping: " + uri);
+                    outcome = "skipped";
+                    return;
+                }
+            }
+            final SimpleFileVisitor<Path> walking = getWalkingVisitor(zip,
+                    ((XBRLPublishingVisitor) getPublishingVisitor()).withCredits(credits).withWalk(walk));
+            final ManifestFilteringVisitor filtering = walk == null ? null : new ManifestFilteringVisitor(walking, walk);
+            walkZip(uri, zip, filtering == null ? walking : filtering);
+            if (walk != null) {
+                logger.info("Imported " + uri + ", " + filtering.skipped() + " unchanged entries skipped");
+                walk.commit();
+            }
+            outcome = "success";
+        } catch (IOException e) {
+            if (walk != null) {
+                walk.fail();
+            }
+            throw new UncheckedIOException(e);
+        } finally {
+            ImportMetrics.registry().timer("xbrl.zip.walk", "sink", busAddress, "outcome", outcome)
+                    .record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
         }
     }
 
     /**
-     * Return a Future of walkFileTreeImpl(uri) using a thread outside the Vert.x pool
+     * Publish the filings of an already parsed quarter instead of walking a zip; a replay ignores the manifest, so
+     * every filing is sent and the sink's digests decide what is written
      *
-     * @param uri location of XBRL files
-     * @return Future List of Tuple(rssdid, {ubpr values}, report_date)
+     * @param quarter QuarterFile of the source
+     * @param visitor Visitor to publish through
+     */
+    protected void replay(Path quarter, XBRLPublishingVisitor visitor) throws IOException {
+        try (QuarterFile file = QuarterFile.open(quarter)) {
+            if (!file.getSource().equals(visitor.getSource())) {
+                throw new IOException(quarter + " holds " + file.getSource() + " filings, not " + visitor.getSource());
+            }
+            file.replay(visitor);
+            logger.info("Replayed " + file.size() + " filings of " + quarter);
+        }
+    }
+
+    /**
+     * Open a zip, through a MappedZipFile or with zipReader "zipfs" the zip filesystem, and walk it with a visitor
+     *
+     * @param uri Zip filesystem URI
+     * @param zip Path of the zip on the default filesystem
+     */
+    protected void walkZip(URI uri, Path zip, SimpleFileVisitor<Path> visitor) throws IOException {
+        final long opening = System.nanoTime();
+        if ("zipfs".equals(config().getString(XBRLImportConfig.CFG_ZIPREADER, "mapped"))) {
+            try (FileSystem xbrlFS = FileSystems.newFileSystem(uri, new HashMap<>())) {
+                ImportMetrics.registry().timer("xbrl.zip.open", "sink", busAddress).record(System.nanoTime() - opening, TimeUnit.NANOSECONDS);
+                Files.walkFileTree(xbrlFS.getRootDirectories().iterator().next(), visitor);
+            }
+        } else {
+            try (MappedZipFile mapped = MappedZipFile.open(zip)) {
+                ImportMetrics.registry().timer("xbrl.zip.open", "sink", busAddress).record(System.nanoTime() - opening, TimeUnit.NANOSECONDS);
+                mapped.walk(visitor);
+            }
+        }
+    }
+
+    /**
+     * Get this sink's filing digests, or null when digestPath isn't configured
+     */
+    protected synchronized FilingDigestStore getDigestStore() {
+        final String digestPath = config().getString(XBRLImportConfig.CFG_DIGESTPATH);
+        if (digests == null && digestPath != null) {
+            digests = new FilingDigestStore(Path.of(digestPath), busAddress);
+        }
+        return digests;
+    }
+
+    /**
+     * Commit digests drained when a flush started, once the flush has been acknowledged
+     * <p>
+     * Failing to save digests only means the filings are written again next time, so it doesn't fail the flush.
+     */
+    protected Future<Void> commitDigests(List<FilingDigestStore.Staged> staged) {
+        if (staged == null || staged.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        return vertx.<Void>executeBlocking(promise -> {
+            try {
+                getDigestStore().commit(staged);
+                promise.complete();
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, true).recover(fail -> {
+            logger.warn("Saving filing digests: " + fail);
+            return Future.succeededFuture();
+        });
+    }
+
+    /**
+     * Get the shared import manifest, or null when manifestPath isn't configured
      */
-    public Future<Void> walkFileTree(URI uri) {
-        ExecutorService es = Executors.newSingleThreadExecutor();
-        return Future.fromCompletionStage(CompletableFuture.runAsync(() -> walkFileTreeImpl(uri), es));
+    protected ImportManifest getManifest() {
+        final String manifestPath = config().getString(XBRLImportConfig.CFG_MANIFESTPATH);
+        return manifestPath == null ? null : ImportManifest.open(Path.of(manifestPath));
     }
 
     /**
@@ -113,7 +348,7 @@ public abstract class XBRLImportVerticle extends AbstractVerticle {
         if (!(iType.equals("b") || iType.equals("c") || iType.equals("h") || iType.equals("r"))) {
             logger.warn("Generating institution type [" + iType + "] for " + dataDate.format(DateTimeFormatter.ofPattern("q")) + " " + tType + " table ");
         }
-        if (!(tType.equals("a") || tType.equals("b") || tType.equals("calc") || tType.equals("dm") || tType.equals("pa") || tType.equals("pc") || tType.equals("pq") || tType.equals("rankingq") || tType.equals("rankingy") || tType.equals("ratingq") || tType.equals("ratingy"))) {
+        if (!TABLE_TYPES.contains(tType)) {
             logger.warn("Generating table type [" + tType + "] for " + iType + dataDate.format(DateTimeFormatter.ofPattern("q")));
         }
         return iType + dataDate.getYear() + "q" + dataDate.format(DateTimeFormatter.ofPattern("q")) + tType;
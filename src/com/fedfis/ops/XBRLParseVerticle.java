@@ -0,0 +1,223 @@
+package com.fedfis.ops;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses zip entries for sinks anywhere in the cluster
+ * <p>
+ * Every instance consumes entry requests point-to-point on PARSE_ADDRESS + source, so the instances on every node
+ * compete for entries and the event bus spreads them across the cluster. A request names the zip, by a path that
+ * must be the same on every node (a shared mount), the entry as the walk visited it, and the zipReader the walk
+ * used, so the entry is opened the way XBRLImportVerticle.walkZip() opened it: from a MappedZipFile, or with
+ * "zipfs" through the zip filesystem. The reply is the XBRLFiling, or a NOT_XBRL failure for entries that aren't
+ * filings of the source.
+ * <p>
+ * Deploy as a worker verticle; each instance parses one entry at a time. Zips are opened once per JVM and shared
+ * by every instance. When a walk has had all of its entries parsed it publishes the zip on DONE_ADDRESS, and the
+ * zip is closed as soon as no entry of it is being parsed; a zip still open after IDLE_MS without a request, say
+ * because its walker went away, is closed as well.
+ */
+public class XBRLParseVerticle extends AbstractVerticle {
+    private static final Logger logger = LoggerFactory.getLogger(XBRLParseVerticle.class.getName());
+    public static final String PARSE_ADDRESS = "xbrl.parse.";// + source
+    public static final String DONE_ADDRESS = "xbrl.parse.done";// zip paths whose walk needs no more entries
+    public static final int NOT_XBRL = 404;
+    protected static final long IDLE_MS = 60_000L;
+    private static final ConcurrentHashMap<String, OpenZip> zips = new ConcurrentHashMap<>();
+
+    private final List<MessageConsumer<?>> consumers = new ArrayList<>();
+    private long sweepTimer = -1;
+
+    /**
+     * Body of a request to parse one entry
+     *
+     * @param zip       Path of the zip on the shared filesystem
+     * @param entry     Path of the entry as walked
+     * @param zipReader How the walk opened the zip, as XBRLImportConfig.CFG_ZIPREADER
+     */
+    public static JsonObject request(Path zip, Path entry, String zipReader) {
+        return new JsonObject().put("zip", zip.toString()).put("entry", entry.toString()).put("reader", zipReader);
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        final PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher("glob:/**.xml");
+        final List<XBRLPublishingVisitor> parsers = List.of(
+                new UBPRPublishingVisitor(pathMatcher, null, null),
+                new CALLPublishingVisitor(pathMatcher, null, null));
+        for (XBRLPublishingVisitor parser : parsers) {
+            consumers.add(vertx.eventBus().<JsonObject>consumer(PARSE_ADDRESS + parser.getSource(), message -> parse(parser, message)));
+        }
+        consumers.add(vertx.eventBus().<String>consumer(DONE_ADDRESS, message -> walked(message.body())));
+        sweepTimer = vertx.setPeriodic(IDLE_MS, t -> sweep());
+        logger.debug("Parsing " + PARSE_ADDRESS + "* on " + Thread.currentThread().getName());
+        startPromise.complete();
+    }
+
+    private void parse(XBRLPublishingVisitor parser, Message<JsonObject> message) {
+        final Path zipPath = Path.of(message.body().getString("zip"));
+        final String entryPath = message.body().getString("entry");
+        final String reader = message.body().getString("reader", config().getString(XBRLImportConfig.CFG_ZIPREADER, "mapped"));
+        OpenZip open = null;
+        try {
+            open = open(zipPath, reader);
+            final Path path;
+            final BasicFileAttributes attrs;
+            if (open.mapped != null) {
+                final MappedZipFile.Entry entry = open.mapped.find(entryPath);
+                path = Path.of(entryPath);
+                attrs = entry == null ? null : entry.attributes();
+            } else {
+                path = open.fileSystem.getPath(entryPath);
+                attrs = Files.exists(path) ? Files.readAttributes(path, BasicFileAttributes.class) : null;
+            }
+            if (attrs == null) {
+                message.fail(500, "No entry " + entryPath + " in " + zipPath);
+                return;
+            }
+            final XBRLFiling filing = parser.parse(path, attrs);
+            if (filing == null) {
+                message.fail(NOT_XBRL, entryPath + " isn't a " + parser.getSource() + " filing");
+            } else {
+                message.reply(filing);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Parsing " + entryPath + " of " + zipPath + ": " + e);
+            message.fail(500, e.toString());
+        } finally {
+            if (open != null) {
+                open.release();
+            }
+        }
+    }
+
+    /**
+     * The open zip at path, in use until released; opened again if the file has changed since it was opened
+     */
+    private static OpenZip open(Path path, String reader) throws IOException {
+        final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        final String version = reader + ":" + attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+        try {
+            return zips.compute(path.toString(), (key, current) -> {
+                if (current != null && current.version.equals(version) && current.acquire()) {
+                    return current;
+                }
+                if (current != null) {
+                    current.close();
+                }
+                try {
+                    final OpenZip opened = "zipfs".equals(reader)
+                            ? new OpenZip(null, FileSystems.newFileSystem(path), version)
+                            : new OpenZip(MappedZipFile.open(path), null, version);
+                    opened.acquire();
+                    return opened;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * A walk of the zip at path has had all of its entries parsed
+     */
+    private static void walked(String path) {
+        final OpenZip open = zips.remove(path);
+        if (open != null) {
+            open.close();
+        }
+    }
+
+    private static void sweep() {
+        final long idleSince = System.currentTimeMillis() - IDLE_MS;
+        zips.values().removeIf(open -> open.closeIfIdle(idleSince));
+    }
+
+    @Override
+    public void stop() {
+        consumers.forEach(MessageConsumer::unregister);
+        vertx.cancelTimer(sweepTimer);
+    }
+
+    /**
+     * A zip opened one way or the other, closed once it is retired and no parse is using it
+     */
+    private static final class OpenZip {
+        final MappedZipFile mapped;
+        final FileSystem fileSystem;
+        final String version;
+        private int users;
+        private boolean closing;
+        private boolean closed;
+        private long lastUsed = System.currentTimeMillis();
+
+        OpenZip(MappedZipFile mapped, FileSystem fileSystem, String version) {
+            this.mapped = mapped;
+            this.fileSystem = fileSystem;
+            this.version = version;
+        }
+
+        synchronized boolean acquire() {
+            if (closing) {
+                return false;
+            }
+            users++;
+            lastUsed = System.currentTimeMillis();
+            return true;
+        }
+
+        synchronized void release() {
+            users--;
+            closeIfUnused();
+        }
+
+        synchronized void close() {
+            closing = true;
+            closeIfUnused();
+        }
+
+        synchronized boolean closeIfIdle(long idleSince) {
+            if (users > 0 || lastUsed >= idleSince) {
+                return false;
+            }
+            close();
+            return true;
+        }
+
+        private void closeIfUnused() {
+            if (!closing || users > 0 || closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (mapped != null) {
+                    mapped.close();
+                } else {
+                    fileSystem.close();
+                }
+            } catch (IOException e) {
+                logger.debug("Closing " + version + ": " + e);
+            }
+        }
+    }
+}
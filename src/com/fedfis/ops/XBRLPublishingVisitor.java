@@ -0,0 +1,268 @@
+package com.fedfis.ops;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonArray;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A Path visitor that parses XBRL documents with an XBRLFactExtractor and publishes an XBRLFiling for each document.
+ * <p>
+ * Subclasses supply the file naming convention and the extractor for their FFIEC source. Visitors keep no
+ * per-file state, so one instance may visit files from several threads at once. Walking must happen on a worker
+ * thread: postVisitDirectory() blocks until the sink has acknowledged the flush, and with FilingCredits visitFile()
+ * blocks until the sink grants a credit for the entry.
+ * <p>
+ * Filings and the flush are sent point-to-point to a sink on the same node, so in a cluster a sink only ever
+ * receives the filings of the zips it walks.
+ */
+public abstract class XBRLPublishingVisitor extends SimpleFileVisitor<Path> {
+    private static final Logger logger = LoggerFactory.getLogger(XBRLPublishingVisitor.class.getName());
+    public static final long FLUSH_TIMEOUT_MS = 30 * 60 * 1000L;
+    private static final DeliveryOptions LOCAL = new DeliveryOptions().setLocalOnly(true);
+    protected final String xbrlBusAddress;
+    protected final PathMatcher pathMatcher;
+    protected final EventBus eventBus;
+    protected final Pattern xbrlPattern;
+    protected final XBRLFactExtractor extractor;
+    private final Timer parseTimer;
+    private final DistributionSummary factsPerFiling;
+    private FilingCredits credits;
+    private ImportManifest.Walk walk;
+
+    /**
+     * @param pathMatcher    Matches the XML files to parse
+     * @param eventBus       Bus to publish filings on
+     * @param xbrlBusAddress Address to publish filings to
+     * @param xbrlPattern    File name pattern; group 2 must capture the report date as MMddyyyy
+     * @param extractor      Extractor for the source's taxonomy
+     */
+    protected XBRLPublishingVisitor(PathMatcher pathMatcher, EventBus eventBus, String xbrlBusAddress, Pattern xbrlPattern, XBRLFactExtractor extractor) {
+        this.pathMatcher = pathMatcher;
+        this.eventBus = eventBus;
+        this.xbrlBusAddress = xbrlBusAddress;
+        this.xbrlPattern = xbrlPattern;
+        this.extractor = extractor;
+        final String source = extractor.getTaxonomy().getSource();
+        this.parseTimer = Timer.builder("xbrl.entry.parse").description("getEntries() time per XML entry")
+                .tag("source", source).publishPercentileHistogram().register(ImportMetrics.registry());
+        this.factsPerFiling = DistributionSummary.builder("xbrl.filing.facts").description("Facts per filing")
+                .tag("source", source).register(ImportMetrics.registry());
+    }
+
+    /**
+     * Filter XBRL files from zip file, load all identifiers from the source's concept namespaces
+     *
+     * @param path  Path of the visited file. This method filters by the naming convention the FFIEC-sourced files use.
+     * @param attrs Attributes of the visited file; those of a MappedZipFile entry are used to read it from the mapping
+     * @return Always CONTINUE; nothing needs to prevent the whole directory from being scanned.
+     * @throws IOException if the entry couldn't be parsed, such as a report date that isn't one; its credit is given back
+     */
+    @Override
+    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+        acquireCredit(path);
+        boolean published = false;
+        try {
+            final XBRLFiling filing = parse(path, attrs);
+            if (filing != null) {
+                publish(filing);
+                published = true;
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Parsing " + path + ": " + e, e);
+        } finally {
+            if (!published) {
+                releaseCredit(path);
+            }
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Have every entry wait for a credit from the sink before it is parsed
+     *
+     * @param credits The sink's credits, shared by every zip it walks
+     * @return this visitor
+     */
+    public XBRLPublishingVisitor withCredits(FilingCredits credits) {
+        this.credits = credits;
+        return this;
+    }
+
+    /**
+     * Note every entry whose filing is published in a manifest walk, so only those are recorded as stored
+     *
+     * @param walk The sink's walk of the zip, or null without a manifest
+     * @return this visitor
+     */
+    public XBRLPublishingVisitor withWalk(ImportManifest.Walk walk) {
+        this.walk = walk;
+        return this;
+    }
+
+    /**
+     * Take a credit for an entry about to be parsed, if the sink hands out credits
+     */
+    public void acquireCredit(Path path) throws InterruptedIOException {
+        if (credits != null) {
+            credits.acquire(path);
+        }
+    }
+
+    /**
+     * Give back the credit of an entry that won't be published
+     */
+    public void releaseCredit(Path path) {
+        if (credits != null) {
+            credits.release();
+        }
+    }
+
+    /**
+     * Send a filing to the sink, which grants back its credit
+     */
+    public void publish(XBRLFiling filing) {
+        eventBus.send(xbrlBusAddress, filing, LOCAL);
+        if (walk != null) {
+            walk.published(filing.getPath());
+        }
+    }
+
+    /**
+     * Parse a file if it is one of the source's XBRL documents
+     *
+     * @param path  Path of the file, matched against pathMatcher and the naming convention
+     * @param attrs Attributes of the file; those of a MappedZipFile entry are used to read it from the mapping
+     * @return the filing, or null if the file isn't an XBRL document of this source
+     * @throws IOException if the document couldn't be read through; nothing of it is published, so that the entry
+     *                     isn't recorded as stored
+     */
+    public XBRLFiling parse(Path path, BasicFileAttributes attrs) throws IOException {
+        Matcher m = xbrlPattern.matcher(path.getFileName().toString());
+        if (pathMatcher.matches(path) && m.find()) {
+            final String fileReportedOn = m.group(2);
+            final LocalDate reportedOn = LocalDate.parse(fileReportedOn, DateTimeFormatter.ofPattern("MMddyyyy"));
+            try {
+                return read(path, reportedOn, attrs, true);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        logger.info("Skipping: " + path);
+        return null;
+    }
+
+    /**
+     * The FFIEC source of the filings this visitor publishes
+     */
+    public String getSource() {
+        return extractor.getTaxonomy().getSource();
+    }
+
+    /**
+     * Send the flush marker and wait for the sink to acknowledge that everything published before it is stored,
+     * but for the entries it answers with
+     *
+     * @throws IOException if the sink failed to store some of the filings, or didn't answer in FLUSH_TIMEOUT_MS
+     */
+    @Override
+    public FileVisitResult postVisitDirectory(Path dir, IOException ioe) throws IOException {
+        final XBRLFiling flush = XBRLFiling.flush(extractor.getTaxonomy().getSource());
+        try {
+            unstored(walk, eventBus.request(xbrlBusAddress, flush, new DeliveryOptions().setSendTimeout(FLUSH_TIMEOUT_MS).setLocalOnly(true))
+                    .toCompletionStage().toCompletableFuture().get().body());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for flush of " + dir);
+        } catch (ExecutionException e) {
+            throw new IOException("Flush of " + dir + " failed: " + e.getCause().getMessage(), e.getCause());
+        }
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Take back the entries a sink's flush answer lists as not stored, so the manifest walks them again
+     *
+     * @param walk  The sink's manifest walk, or null without a manifest
+     * @param reply Body of the flush answer: null if everything was stored, else a JsonArray of entry paths
+     */
+    protected static void unstored(ImportManifest.Walk walk, Object reply) {
+        if (!(reply instanceof JsonArray)) {
+            return;
+        }
+        for (Object entry : (JsonArray) reply) {
+            logger.warn("Not stored, left for the next import: " + entry);
+            if (walk != null) {
+                walk.unstored(String.valueOf(entry));
+            }
+        }
+    }
+
+    @Override
+    public FileVisitResult visitFileFailed(Path file, IOException exc) {
+        return FileVisitResult.CONTINUE;
+    }
+
+    /**
+     * Read through the XBRL file at xbrlPath for the facts in the source's concept namespaces
+     *
+     * @param xbrlPath   Path of XBRL file
+     * @param reportedOn Report date of XBRL file
+     * @return XBRLFiling containing entries for the source's variables; whatever was read before a parse error
+     */
+    @NotNull
+    public XBRLFiling getEntries(Path xbrlPath, LocalDate reportedOn) {
+        return getEntries(xbrlPath, reportedOn, null);
+    }
+
+    /**
+     * Read through an XBRL file for the facts in the source's concept namespaces
+     *
+     * @param xbrlPath   Path of XBRL file
+     * @param reportedOn Report date of XBRL file
+     * @param attrs      Attributes from the walk; a MappedZipFile entry is read from the mapping rather than xbrlPath
+     * @return XBRLFiling containing entries for the source's variables; whatever was read before a parse error
+     */
+    @NotNull
+    public XBRLFiling getEntries(Path xbrlPath, LocalDate reportedOn, BasicFileAttributes attrs) {
+        return read(xbrlPath, reportedOn, attrs, false);
+    }
+
+    /**
+     * @param strict Throw UncheckedIOException on a parse error instead of returning what was read before it
+     */
+    private XBRLFiling read(Path xbrlPath, LocalDate reportedOn, BasicFileAttributes attrs, boolean strict) {
+        final long started = System.nanoTime();
+        final XBRLFiling.Builder filing = XBRLFiling.builder(extractor.getTaxonomy().getSource(), reportedOn, xbrlPath.toString());
+        final MappedZipFile.Entry entry = MappedZipFile.entryOf(attrs);
+        try (InputStream in = entry != null ? entry.open() : Files.newInputStream(xbrlPath)) {
+            extractor.extract(in, reportedOn, filing);
+        } catch (Exception e) {
+            if (strict) {
+                throw new UncheckedIOException(new IOException("Reading " + xbrlPath + ": " + e, e));
+            }
+            logger.debug("Reading " + xbrlPath + ": " + e);
+        }
+        final XBRLFiling built = filing.build();
+        parseTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        factsPerFiling.record(built.size());
+        return built;
+    }
+}
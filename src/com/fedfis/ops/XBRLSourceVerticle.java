@@ -0,0 +1,202 @@
+package com.fedfis.ops;
+
+import io.vertx.core.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The parse stage of one FFIEC source: walks each zip once and feeds every filing to all of the source's sinks
+ * <p>
+ * Sink verticles deployed with fanOut register here instead of taking zips themselves. Zips sent to busAddress
+ * are admitted into the ZipScheduler as a sink's would be, and each is walked with a FanOutPublishingVisitor, parsed
+ * by the XBRLParseVerticles, or here with remoteParse=false, for one instance of every sink, the one with the least
+ * spooled, then the most credits free. Each sink keeps its own progress: with a manifest, a zip is only walked for
+ * the sinks that haven't imported it, only their changed entries are parsed, and the zip is committed or failed for
+ * each sink on its own flush. The walk ends without waiting for a sink that is still draining its spool; the zip is
+ * committed or failed for it once its flush is answered. A zip fails here if it failed for any sink during the
+ * walk, so the publisher logs it; the sinks that stored it keep it.
+ * <p>
+ * A QuarterFile is replayed to every sink instance chosen, regardless of the manifest, with the same credits and
+ * stall detection as a walk.
+ */
+public class XBRLSourceVerticle extends XBRLImportVerticle {
+    private static final Logger logger = LoggerFactory.getLogger(XBRLSourceVerticle.class.getName());
+    private static final Map<String, List<FanOutPublishingVisitor.Sink>> sinks = new ConcurrentHashMap<>();
+
+    protected final String source;
+
+    /**
+     * @param busAddress Zip channel of the source
+     * @param source     XBRLFiling.UBPR or XBRLFiling.CALL
+     */
+    public XBRLSourceVerticle(String busAddress, String source) {
+        super(busAddress);
+        this.source = source;
+    }
+
+    /**
+     * Have a sink instance fed by the source verticles of its source on this node
+     */
+    public static void register(String source, FanOutPublishingVisitor.Sink sink) {
+        sinks.computeIfAbsent(source, s -> new CopyOnWriteArrayList<>()).add(sink);
+        logger.info("Sink " + sink.getName() + " registered for " + source);
+    }
+
+    public static void unregister(String source, FanOutPublishingVisitor.Sink sink) {
+        final List<FanOutPublishingVisitor.Sink> registered = sinks.get(source);
+        if (registered != null) {
+            registered.remove(sink);
+        }
+    }
+
+    /**
+     * One instance of each sink registered for a source, the one with the least spooled, then the most credits free
+     */
+    public static List<FanOutPublishingVisitor.Sink> sinks(String source) {
+        final Map<String, FanOutPublishingVisitor.Sink> chosen = new LinkedHashMap<>();
+        for (FanOutPublishingVisitor.Sink sink : sinks.getOrDefault(source, List.of())) {
+            chosen.merge(sink.getName(), sink, (a, b) -> {
+                final long spooled = Long.compare(b.getSpool().pending(), a.getSpool().pending());
+                return spooled < 0 || spooled == 0 && b.getCredits().available() > a.getCredits().available() ? b : a;
+            });
+        }
+        return new ArrayList<>(chosen.values());
+    }
+
+    @Override
+    protected SimpleFileVisitor<Path> getPublishingVisitor() {
+        final PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher("glob:/**.xml");
+        return XBRLFiling.UBPR.equals(source)
+                ? new UBPRPublishingVisitor(pathMatcher, vertx.eventBus(), null)
+                : new CALLPublishingVisitor(pathMatcher, vertx.eventBus(), null);
+    }
+
+    @Override
+    public String getSource() {
+        return source;
+    }
+
+    @Override
+    public void start(Promise<Void> p) {
+        vertx.eventBus().consumer(busAddress, getURIHandler());
+        p.complete();
+    }
+
+    /**
+     * The source has no writer of its own; its sinks' credits pace it
+     */
+    @Override
+    protected void createCredits() {
+    }
+
+    /**
+     * Walk a zip once for every sink that needs it
+     *
+     * @param uri Filesystem URI
+     * @throws UncheckedIOException if the zip can't be read or wasn't stored by every sink it was walked for
+     */
+    @Override
+    protected void walkFileTreeImpl(URI uri) {
+        final ImportManifest manifest = getManifest();
+        final long started = System.nanoTime();
+        String outcome = "failure";
+        try {
+            final Path zip = Path.of(URI.create(uri.getRawSchemeSpecificPart()));
+            final List<FanOutPublishingVisitor.Sink> registered = sinks(source);
+            if (registered.isEmpty()) {
+                throw new IOException("No " + source + " sinks for " + zip);
+            }
+            final boolean replay = QuarterFile.isQuarterFile(zip);
+            final List<FanOutPublishingVisitor.Target> targets = new ArrayList<>(registered.size());
+            for (FanOutPublishingVisitor.Sink sink : registered) {
+                final ImportManifest.Walk walk = manifest == null || replay ? null : manifest.begin(sink.getName(), zip);
+                if (manifest != null && !replay && walk == null) {
+                    logger.info("Already imported by " + sink.getName() + ": " + uri);
+                } else {
+                    targets.add(new FanOutPublishingVisitor.Target(sink, walk));
+                }
+            }
+            if (targets.isEmpty()) {
+                logger.info("Already imported by every sink, skipping: " + uri);
+                outcome = "skipped";
+                return;
+            }
+
+            final FanOutPublishingVisitor fanOut = new FanOutPublishingVisitor((XBRLPublishingVisitor) getPublishingVisitor(),
+                    vertx.eventBus(), targets, config().getLong(XBRLImportConfig.CFG_SINKSTALLMS, 300_000L));
+            ManifestFilteringVisitor filtering = null;
+            try {
+                if (replay) {
+                    replay(zip, fanOut);
+                } else {
+                    final SimpleFileVisitor<Path> walking = getWalkingVisitor(zip, fanOut);
+                    filtering = manifest == null ? null : new ManifestFilteringVisitor(walking, fanOut::select);
+                    walkZip(uri, zip, filtering == null ? walking : filtering);
+                }
+            } catch (IOException e) {
+                targets.forEach(target -> target.failure = e);
+            }
+
+            int failed = 0;
+            int draining = 0;
+            for (FanOutPublishingVisitor.Target target : targets) {
+                if (target.getFailure() == null && target.getDone() != null && !target.getDone().isComplete()) {
+                    // the flush is queued behind the sink's spool: finish once it is answered
+                    draining++;
+                    target.getDone().onComplete(ar -> vertx.executeBlocking(finished -> {
+                        finish(target, uri);
+                        finished.complete();
+                    }, false));
+                } else if (!finish(target, uri)) {
+                    failed++;
+                }
+            }
+            logger.info("Imported " + uri + " for " + (targets.size() - failed - draining) + " of " + targets.size() + " sinks"
+                    + (draining == 0 ? "" : ", " + draining + " still draining their spools")
+                    + (filtering == null ? "" : ", " + filtering.skipped() + " unchanged entries skipped"));
+            if (failed > 0) {
+                throw new IOException(failed + " of " + targets.size() + " sinks failed " + zip);
+            }
+            outcome = draining == 0 ? "success" : "spooled";
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            ImportMetrics.registry().timer("xbrl.zip.walk", "sink", busAddress, "outcome", outcome)
+                    .record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Commit the zip for a sink that stored it, or fail it for one that didn't
+     *
+     * @return false if the zip failed for the sink
+     */
+    private boolean finish(FanOutPublishingVisitor.Target target, URI uri) {
+        if (target.getFailure() == null) {
+            if (target.getWalk() != null) {
+                target.getWalk().commit();
+            }
+            return true;
+        }
+        logger.error(target.getSink().getName() + " failed " + uri + ": " + target.getFailure().getMessage());
+        if (target.getWalk() != null) {
+            target.getWalk().fail();
+        }
+        return false;
+    }
+}
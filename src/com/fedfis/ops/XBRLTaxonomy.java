@@ -0,0 +1,62 @@
+package com.fedfis.ops;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The family of XBRL namespaces that hold the concepts we import for one FFIEC source
+ * <p>
+ * Namespaces are matched by pattern rather than listed, so a new taxonomy release (e.g. ubpr/v122) is picked up
+ * without a code change. Each namespace URI is matched once and the answer is cached, so the per-element test
+ * is a single hash lookup.
+ */
+public class XBRLTaxonomy {
+    private static final Logger logger = LoggerFactory.getLogger(XBRLTaxonomy.class.getName());
+
+    public static final XBRLTaxonomy UBPR = new XBRLTaxonomy(XBRLFiling.UBPR,
+            Pattern.compile("http://www\\.cdr\\.ffiec\\.gov/xbrl/ubpr/(v\\d+)/(Source)?Concepts"));
+    public static final XBRLTaxonomy CALL = new XBRLTaxonomy(XBRLFiling.CALL,
+            Pattern.compile("http://www\\.ffiec\\.gov/xbrl/(call/)?concepts"));
+
+    protected final String source;
+    protected final Pattern namespacePattern;
+    private final ConcurrentHashMap<String, Boolean> namespaces = new ConcurrentHashMap<>();
+
+    /**
+     * @param source           Name of the source, for logging
+     * @param namespacePattern Matches the whole URI of every namespace holding concepts to import. If it has a
+     *                         capturing group, group 1 is logged as the taxonomy version when first seen.
+     */
+    public XBRLTaxonomy(String source, Pattern namespacePattern) {
+        this.source = source;
+        this.namespacePattern = namespacePattern;
+    }
+
+    /**
+     * Does namespaceURI hold concepts to import?
+     */
+    public boolean accepts(String namespaceURI) {
+        if (namespaceURI == null) {
+            return false;
+        }
+        final Boolean known = namespaces.get(namespaceURI);
+        return known != null ? known : learn(namespaceURI);
+    }
+
+    private boolean learn(String namespaceURI) {
+        final Matcher m = namespacePattern.matcher(namespaceURI);
+        final boolean accepted = m.matches();
+        if (namespaces.putIfAbsent(namespaceURI, accepted) == null && accepted) {
+            logger.info("Detected " + source + " taxonomy " + (m.groupCount() > 0 && m.group(1) != null ? m.group(1) + " " : "") + "namespace " + namespaceURI);
+        }
+        return accepted;
+    }
+
+    public String getSource() {
+        return source;
+    }
+}
@@ -0,0 +1,175 @@
+package com.fedfis.ops;
+
+import java.math.BigDecimal;
+
+/**
+ * Classifies the text of an XBRL fact as boolean, long, exact decimal or string in a single scan
+ * <p>
+ * This replaces trying Integer.parseInt and Double.parseDouble and catching their exceptions: most UBPR facts
+ * are ratios or amounts that don't fit an int, so that approach threw for nearly every fact and rounded large
+ * amounts to doubles. Here nothing throws and nothing is allocated until a boxed value is asked for.
+ * Decimals keep their exact digits and scale.
+ * <p>
+ * An instance holds the result of the last classify() call, so it must not be shared between threads.
+ */
+public class XBRLValueClassifier {
+    public static final int STRING = 0;
+    public static final int BOOLEAN = 1;
+    public static final int LONG = 2;
+    public static final int DECIMAL = 3;
+
+    private static final long MULTMIN = Long.MIN_VALUE / 10;
+
+    private String text;
+    private int kind;
+    private int start;
+    private int end;
+    private boolean overflow;
+    private long unscaled;
+    private int scale;
+
+    /**
+     * Scan text and remember what kind of value it holds
+     *
+     * @return STRING, BOOLEAN, LONG or DECIMAL
+     */
+    public int classify(String text) {
+        this.text = text;
+        this.overflow = false;
+        this.unscaled = 0;
+        this.scale = 0;
+
+        // xs:decimal and xs:boolean values may carry surrounding whitespace
+        int i = 0;
+        int n = text.length();
+        while (i < n && isWhitespace(text.charAt(i))) i++;
+        while (n > i && isWhitespace(text.charAt(n - 1))) n--;
+        start = i;
+        end = n;
+
+        if (n - i == 4 && text.startsWith("true", i)) {
+            return kind = BOOLEAN;
+        }
+        if (n - i == 5 && text.startsWith("false", i)) {
+            return kind = BOOLEAN;
+        }
+        if (i == n) {
+            return kind = STRING;
+        }
+
+        boolean negative = false;
+        final char sign = text.charAt(i);
+        if (sign == '-' || sign == '+') {
+            negative = sign == '-';
+            i++;
+        }
+
+        // accumulate negatively so Long.MIN_VALUE fits, like Long.parseLong
+        long acc = 0;
+        int digits = 0;
+        boolean point = false;
+        for (; i < n; i++) {
+            final char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (point) scale++;
+                final int d = c - '0';
+                if (!overflow && (acc < MULTMIN || acc * 10 < Long.MIN_VALUE + d)) {
+                    overflow = true;
+                }
+                if (!overflow) {
+                    acc = acc * 10 - d;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else if ((c == 'e' || c == 'E') && digits > 0) {
+                // xs:double style exponent, only worth validating; BigDecimal does the arithmetic
+                if (!isExponent(text, i + 1, n)) {
+                    return kind = STRING;
+                }
+                overflow = true;
+                return kind = DECIMAL;
+            } else {
+                return kind = STRING;
+            }
+        }
+        if (digits == 0) {
+            return kind = STRING;
+        }
+        if (!negative && !overflow) {
+            if (acc == Long.MIN_VALUE) {
+                overflow = true;
+            } else {
+                acc = -acc;
+            }
+        }
+        unscaled = acc;
+        return kind = (point || overflow) ? DECIMAL : LONG;
+    }
+
+    private static boolean isExponent(String text, int i, int n) {
+        if (i < n && (text.charAt(i) == '-' || text.charAt(i) == '+')) i++;
+        if (i == n) return false;
+        for (; i < n; i++) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    public int kind() {
+        return kind;
+    }
+
+    public boolean booleanValue() {
+        return text.charAt(start) == 't';
+    }
+
+    /**
+     * Value of a LONG, or the unscaled value of a DECIMAL that fits a long
+     */
+    public long longValue() {
+        return unscaled;
+    }
+
+    /**
+     * Number of digits after the decimal point of a DECIMAL
+     */
+    public int scale() {
+        return scale;
+    }
+
+    /**
+     * Does the DECIMAL fit longValue() and scale(), or does it need decimalValue()?
+     */
+    public boolean fitsLong() {
+        return !overflow;
+    }
+
+    public BigDecimal decimalValue() {
+        if (overflow) {
+            return new BigDecimal(text.substring(start, end));
+        }
+        return BigDecimal.valueOf(unscaled, scale);
+    }
+
+    /**
+     * The value boxed as Boolean, Long, BigDecimal or String
+     */
+    public Object value() {
+        switch (kind) {
+            case BOOLEAN:
+                return booleanValue();
+            case LONG:
+                return unscaled;
+            case DECIMAL:
+                return decimalValue();
+            default:
+                return text;
+        }
+    }
+}
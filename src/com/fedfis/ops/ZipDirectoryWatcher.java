@@ -0,0 +1,234 @@
+package com.fedfis.ops;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a directory for zips and publishes each one through a ZipURIPublishingVisitor once it is complete
+ * <p>
+ * Zips already in the directory are picked up at start. New or rewritten zips are noticed through a WatchService,
+ * or by listing the directory every pollMs where a WatchService isn't available or doesn't see remote writes.
+ * A zip is only published when its mtime has been quiet for quietMs and its central directory can be read, so
+ * downloads still in progress are left alone. A zip is published again only if its size or mtime changes.
+ * <p>
+ * start() and close() must be called from the Vert.x context the publisher was created on.
+ */
+public class ZipDirectoryWatcher {
+    private static final Logger logger = LoggerFactory.getLogger(ZipDirectoryWatcher.class.getName());
+
+    protected final Vertx vertx;
+    protected final Path dir;
+    protected final PathMatcher pathMatcher;
+    protected final ZipURIPublishingVisitor publisher;
+    protected final long quietMs;
+    protected final long pollMs;
+    private boolean polling;
+
+    private final Set<Path> candidates = new LinkedHashSet<>();
+    private final Map<Path, String> published = new HashMap<>();
+    private Context context;
+    private WatchService watchService;
+    private long checkTimer = -1;
+    private long pollTimer = -1;
+    private boolean checking = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param vertx       Vertx instance
+     * @param dir         Directory to watch
+     * @param pathMatcher Matches the zips to publish
+     * @param publisher   Sends zip paths to the importers
+     * @param quietMs     How long a zip's mtime must stay unchanged before it is published
+     * @param pollMs      Directory listing interval when polling
+     * @param polling     Poll even if a WatchService is available
+     */
+    public ZipDirectoryWatcher(Vertx vertx, Path dir, PathMatcher pathMatcher, ZipURIPublishingVisitor publisher,
+                               long quietMs, long pollMs, boolean polling) {
+        this.vertx = vertx;
+        this.dir = dir;
+        this.pathMatcher = pathMatcher;
+        this.publisher = publisher;
+        this.quietMs = quietMs;
+        this.pollMs = pollMs;
+        this.polling = polling;
+    }
+
+    /**
+     * Start watching; the zips already in the directory become candidates straight away
+     */
+    public Future<Void> start() {
+        context = vertx.getOrCreateContext();
+        return vertx.<List<Path>>executeBlocking(promise -> {
+            try {
+                if (!polling) {
+                    try {
+                        watchService = dir.getFileSystem().newWatchService();
+                        dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+                        final Thread watcher = new Thread(this::watch, "xbrl-zip-watch-" + dir.getFileName());
+                        watcher.setDaemon(true);
+                        watcher.start();
+                    } catch (IOException | UnsupportedOperationException e) {
+                        logger.warn("Can't watch " + dir + ", polling every " + pollMs + "ms: " + e);
+                        polling = true;
+                    }
+                }
+                promise.complete(list());
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, false).map(existing -> {
+            candidates.addAll(existing);
+            if (polling) {
+                pollTimer = vertx.setPeriodic(pollMs, t -> rescan());
+            }
+            checkTimer = vertx.setPeriodic(Math.max(100L, Math.min(1000L, quietMs / 2)), t -> check());
+            logger.info("Watching " + dir + (polling ? " by polling" : "") + ", " + existing.size() + " zips present");
+            return null;
+        });
+    }
+
+    private List<Path> list() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            final List<Path> zips = new ArrayList<>();
+            files.filter(pathMatcher::matches).forEach(zips::add);
+            return zips;
+        }
+    }
+
+    /**
+     * Runs on its own thread, turning watch events into candidates on the context
+     */
+    private void watch() {
+        try {
+            while (!closed) {
+                final WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        context.runOnContext(v -> rescan());
+                        continue;
+                    }
+                    final Path path = dir.resolve((Path) event.context());
+                    if (pathMatcher.matches(path)) {
+                        context.runOnContext(v -> candidates.add(path));
+                    }
+                }
+                if (!key.reset()) {
+                    logger.error("Watch on " + dir + " was cancelled, falling back to polling");
+                    context.runOnContext(v -> {
+                        if (pollTimer == -1 && !closed) {
+                            polling = true;
+                            pollTimer = vertx.setPeriodic(pollMs, t -> rescan());
+                        }
+                    });
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.debug("Stopped watching " + dir);
+        }
+    }
+
+    private void rescan() {
+        vertx.<List<Path>>executeBlocking(promise -> {
+            try {
+                promise.complete(list());
+            } catch (IOException e) {
+                promise.fail(e);
+            }
+        }, false).onSuccess(candidates::addAll).onFailure(fail -> logger.error("Listing " + dir + ": " + fail));
+    }
+
+    /**
+     * Publish the candidates that have stopped changing and aren't published as they are now
+     */
+    private void check() {
+        if (checking || candidates.isEmpty() || closed) {
+            return;
+        }
+        checking = true;
+        final Map<Path, String> batch = new HashMap<>();
+        candidates.forEach(path -> batch.put(path, published.get(path)));
+        vertx.<Map<Path, String>>executeBlocking(promise -> {
+            final Map<Path, String> settled = new HashMap<>();// path to fingerprint, null when done with the path
+            final long now = System.currentTimeMillis();
+            batch.forEach((path, last) -> {
+                try {
+                    final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                    final long mtime = attrs.lastModifiedTime().toMillis();
+                    final String fingerprint = attrs.size() + ":" + mtime;
+                    if (fingerprint.equals(last)) {
+                        settled.put(path, null);
+                    } else if (now - mtime >= quietMs && isComplete(path)) {
+                        settled.put(path, fingerprint);
+                    }
+                } catch (NoSuchFileException e) {
+                    settled.put(path, null);
+                } catch (IOException e) {
+                    logger.debug("Checking " + path + ": " + e);
+                }
+            });
+            promise.complete(settled);
+        }, false).onComplete(ar -> {
+            checking = false;
+            if (ar.failed()) {
+                logger.error("Checking zips in " + dir + ": " + ar.cause());
+                return;
+            }
+            ar.result().forEach((path, fingerprint) -> {
+                candidates.remove(path);
+                if (fingerprint != null && !closed) {
+                    published.put(path, fingerprint);
+                    logger.info("New zip: " + path);
+                    publisher.publish(path);
+                }
+            });
+        });
+    }
+
+    private static boolean isComplete(Path zip) {
+        try {
+            // opening reads the central directory, which a zip still being copied doesn't have yet
+            new ZipFile(zip.toFile()).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop watching. Zips already handed to the publisher are still delivered.
+     */
+    public void close() {
+        closed = true;
+        if (checkTimer != -1) {
+            vertx.cancelTimer(checkTimer);
+        }
+        if (pollTimer != -1) {
+            vertx.cancelTimer(pollTimer);
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.debug(e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.fedfis.ops;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * ZipScheduler admits zip URIs into a bounded queue and walks them on a managed worker pool of its own
+ * <p>
+ * Vert.x hands back the existing pool for a name already in use, whatever size is asked for, so each scheduler
+ * names its pool after its owner: every scheduler gets the maxConcurrent it was created with.
+ * <p>
+ * Every method must be called from the owning verticle's context; completions of the blocking walks come back
+ * on that context, so none of the state here needs to be synchronized. offer() never blocks: when the queue is
+ * full it returns false and the caller is expected to push back on whoever sent the URI.
+ */
+public class ZipScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(ZipScheduler.class.getName());
+    public static final String WORKER_POOL_NAME = "xbrl-zip-walker";
+    public static final int QUEUE_FULL = 503;// failure code sent back to the publisher when the queue is full
+
+    protected final WorkerExecutor workers;
+    protected final Consumer<URI> walker;
+    protected final int capacity;
+    protected final int maxConcurrent;
+    private final ArrayDeque<URI> pending;
+    private int running = 0;
+    private Promise<Void> drained;
+
+    /**
+     * @param vertx         Vertx instance owning the worker pool
+     * @param name          Name of the owner, unique to it, which names the worker pool
+     * @param walker        Blocking code that imports one zip, run on the worker pool
+     * @param capacity      Number of zips that may wait for a worker
+     * @param maxConcurrent Number of zips walked at once, also the size of the worker pool
+     */
+    public ZipScheduler(Vertx vertx, String name, Consumer<URI> walker, int capacity, int maxConcurrent) {
+        this.walker = walker;
+        this.capacity = capacity;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.pending = new ArrayDeque<>(capacity);
+        this.workers = vertx.createSharedWorkerExecutor(WORKER_POOL_NAME + "-" + name, this.maxConcurrent);
+    }
+
+    /**
+     * Admit a zip for import
+     *
+     * @param uri zip filesystem URI
+     * @return false if the queue is full or the scheduler is closing, the URI was not admitted
+     */
+    public boolean offer(URI uri) {
+        if (drained != null || pending.size() >= capacity) {
+            return false;
+        }
+        pending.add(uri);
+        schedule();
+        return true;
+    }
+
+    public int queued() {
+        return pending.size();
+    }
+
+    public int running() {
+        return running;
+    }
+
+    private void schedule() {
+        while (running < maxConcurrent && !pending.isEmpty()) {
+            final URI uri = pending.poll();
+            running++;
+            workers.<Void>executeBlocking(promise -> {
+                walker.accept(uri);
+                promise.complete();
+            }, false).onComplete(ar -> {
+                running--;
+                if (ar.failed()) {
+                    logger.error("Import of " + uri + " failed: " + ar.cause());
+                }
+                if (drained != null && running == 0) {
+                    drained.tryComplete();
+                }
+                schedule();
+            });
+        }
+    }
+
+    /**
+     * Stop admitting zips, drop the ones not yet started, wait for running walks and release the worker pool
+     */
+    public Future<Void> close() {
+        if (drained == null) {
+            drained = Promise.promise();
+            if (!pending.isEmpty()) {
+                logger.warn("Dropping " + pending.size() + " queued zips on shutdown");
+                pending.clear();
+            }
+            if (running == 0) {
+                drained.complete();
+            }
+        }
+        return drained.future().compose(unused -> workers.close());
+    }
+}
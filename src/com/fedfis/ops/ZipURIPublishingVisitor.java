@@ -1,6 +1,9 @@
 package com.fedfis.ops;
 
-import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.ReplyException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,28 +12,103 @@ import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.List;
 
+/**
+ * A Path visitor that sends the path of every matching zip file to each of the zip channels.
+ * <p>
+ * Paths are sent point-to-point with at most window requests outstanding. A channel that answers with
+ * ZipScheduler.QUEUE_FULL gets the same path again after retryMs, so nothing is dropped when the importers
+ * fall behind. All methods must be called from the Vert.x context the visitor was created on.
+ */
 public class ZipURIPublishingVisitor extends SimpleFileVisitor<Path> {
     private static final Logger logger = LoggerFactory.getLogger(ZipURIPublishingVisitor.class.getName());
     protected final PathMatcher pathMatcher;
-    protected final EventBus eventBus;
-    protected final String zipChannel;
+    protected final Vertx vertx;
+    protected final List<String> zipChannels;
+    protected final int window;
+    protected final long retryMs;
 
-    public ZipURIPublishingVisitor(PathMatcher pathMatcher, EventBus eventBus, String zipChannel) {
+    private final ArrayDeque<String[]> pending = new ArrayDeque<>();// {channel, path}
+    private final Promise<Void> done = Promise.promise();
+    private int inFlight = 0;
+    private boolean finished = false;
+
+    public ZipURIPublishingVisitor(PathMatcher pathMatcher, Vertx vertx, List<String> zipChannels) {
+        this(pathMatcher, vertx, zipChannels, 4, 1000L);
+    }
+
+    public ZipURIPublishingVisitor(PathMatcher pathMatcher, Vertx vertx, List<String> zipChannels, int window, long retryMs) {
         this.pathMatcher = pathMatcher;
-        this.eventBus = eventBus;
-        this.zipChannel = zipChannel;
+        this.vertx = vertx;
+        this.zipChannels = zipChannels;
+        this.window = window;
+        this.retryMs = retryMs;
     }
 
     @Override
     public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
         if (path.toFile().isFile() && pathMatcher.matches(path)) {
-            final String s = path.toString();
-            eventBus.publish(zipChannel, path.toString());
+            publish(path);
         } else {
             logger.info("Skipping: " + path);
         }
 
         return FileVisitResult.CONTINUE;
     }
+
+    /**
+     * Queue a zip path for every zip channel
+     */
+    public void publish(Path path) {
+        for (String zipChannel : zipChannels) {
+            pending.add(new String[]{zipChannel, path.toString()});
+        }
+        pump();
+    }
+
+    /**
+     * Mark the end of the walk; done() completes once everything published so far has been admitted
+     */
+    public Future<Void> finish() {
+        finished = true;
+        checkDone();
+        return done.future();
+    }
+
+    public Future<Void> done() {
+        return done.future();
+    }
+
+    private void pump() {
+        while (inFlight < window && !pending.isEmpty()) {
+            final String[] next = pending.poll();
+            inFlight++;
+            send(next[0], next[1]);
+        }
+    }
+
+    private void send(String zipChannel, String path) {
+        vertx.eventBus().request(zipChannel, path).onComplete(ar -> {
+            if (ar.failed() && ar.cause() instanceof ReplyException
+                    && ((ReplyException) ar.cause()).failureCode() == ZipScheduler.QUEUE_FULL) {
+                // keep the slot, try again once the importer has had time to work on its queue
+                vertx.setTimer(retryMs, t -> send(zipChannel, path));
+                return;
+            }
+            if (ar.failed()) {
+                logger.error("Couldn't queue " + path + " on " + zipChannel + ": " + ar.cause().getMessage());
+            }
+            inFlight--;
+            pump();
+            checkDone();
+        });
+    }
+
+    private void checkDone() {
+        if (finished && inFlight == 0 && pending.isEmpty()) {
+            done.tryComplete();
+        }
+    }
 }
@@ -0,0 +1,216 @@
+package com.fedfis.ops;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.spi.cluster.hazelcast.HazelcastClusterManager;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs two clustered Vert.x nodes with conf/cluster-local.xml, each with its own XBRLParseVerticles, and imports UBPR
+ * zips on one of them
+ * <p>
+ * The first node has the sink and the XBRLSourceVerticle walking the zips, the second only parses, as a node started
+ * with "cluster parse" does. Every parse request is counted where it is delivered: each entry must be parsed exactly
+ * once, on either node, with both nodes taking part, and every filing must reach the sink once before its zip's flush.
+ */
+class ClusteredParseTest {
+    private static final int BANKS = 40;
+    private static final List<LocalDate> QUARTERS = List.of(LocalDate.parse("2021-06-30"), LocalDate.parse("2021-09-30"));
+    private static final DateTimeFormatter FILE_DATE = DateTimeFormatter.ofPattern("MMddyyyy");
+    private static final String ZIPS = "xbrl.uri.listen." + XBRLFiling.UBPR;
+    private static Vertx sinkNode;
+    private static Vertx parseNode;
+
+    @TempDir
+    static Path corpus;
+
+    @BeforeAll
+    static void cluster() throws Exception {
+        System.setProperty("vertx.hazelcast.config", System.getProperty("vertx.hazelcast.config", "conf/cluster-local.xml"));
+        sinkNode = join();
+        parseNode = join();
+    }
+
+    @AfterAll
+    static void leave() throws Exception {
+        for (Vertx node : new Vertx[]{parseNode, sinkNode}) {
+            if (node != null) {
+                node.close().toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Test
+    void everyEntryIsParsedOnceAndDelivered() throws Exception {
+        final Map<String, AtomicInteger> parsed = new ConcurrentHashMap<>();
+        final AtomicInteger parsedOnSinkNode = count(sinkNode, parsed);
+        final AtomicInteger parsedOnParseNode = count(parseNode, parsed);
+        for (Vertx node : new Vertx[]{sinkNode, parseNode}) {
+            deploy(node, XBRLParseVerticle.class.getName(), new DeploymentOptions().setWorker(true).setInstances(2));
+        }
+        final RecordingSinkVerticle sink = new RecordingSinkVerticle(ZIPS + ".recording");
+        sinkNode.deployVerticle(sink).toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+        sinkNode.deployVerticle(new XBRLSourceVerticle(ZIPS, XBRLFiling.UBPR), new DeploymentOptions().setConfig(new JsonObject()
+                .put(XBRLImportConfig.CFG_PARSEWINDOW, 8))).toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+
+        final Set<String> entries = ConcurrentHashMap.newKeySet();
+        for (LocalDate quarter : QUARTERS) {
+            writeZip(quarter, entries);
+        }
+        final Promise<Void> published = Promise.promise();
+        sinkNode.getOrCreateContext().runOnContext(v -> {
+            try {
+                Launcher.publishZips(sinkNode, corpus.toString(), List.of(ZIPS)).onComplete(published);
+            } catch (IOException e) {
+                published.fail(e);
+            }
+        });
+        published.future().toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+
+        final long deadline = System.currentTimeMillis() + 120_000L;
+        while (sink.flushes.get() < QUARTERS.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(QUARTERS.size(), sink.flushes.get(), "zips flushed");
+        assertEquals(entries, parsed.keySet(), "entries parsed");
+        parsed.forEach((entry, times) -> assertEquals(1, times.get(), entry + " parsed once"));
+        assertTrue(parsedOnSinkNode.get() > 0 && parsedOnParseNode.get() > 0,
+                "both nodes parse: " + parsedOnSinkNode + " and " + parsedOnParseNode);
+        assertEquals(entries, sink.received, "filings delivered");
+        assertEquals(0, sink.duplicates.get(), "filings delivered twice");
+        // zips are walked one at a time, so each flush follows exactly the filings of its zip
+        assertEquals(List.of(BANKS, 2 * BANKS), sink.receivedAtFlush, "filings delivered before each flush");
+    }
+
+    private static Vertx join() throws Exception {
+        final VertxOptions options = new VertxOptions().setClusterManager(new HazelcastClusterManager());
+        options.getEventBusOptions().setHost("127.0.0.1");
+        final Vertx vertx = Vertx.clusteredVertx(options).toCompletionStage().toCompletableFuture().get(120, TimeUnit.SECONDS);
+        XBRLFilingCodec.register(vertx);
+        return vertx;
+    }
+
+    private static void deploy(Vertx node, String verticle, DeploymentOptions options) throws Exception {
+        node.deployVerticle(verticle, options).toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Count the parse requests delivered to a node's XBRLParseVerticles, by zip and entry
+     *
+     * @return Requests delivered to this node
+     */
+    private static AtomicInteger count(Vertx node, Map<String, AtomicInteger> parsed) {
+        final AtomicInteger here = new AtomicInteger();
+        node.eventBus().addInboundInterceptor(delivery -> {
+            if (delivery.message().address().equals(XBRLParseVerticle.PARSE_ADDRESS + XBRLFiling.UBPR)) {
+                final JsonObject request = (JsonObject) delivery.message().body();
+                parsed.computeIfAbsent(Path.of(request.getString("zip")).getFileName() + request.getString("entry"),
+                        e -> new AtomicInteger()).incrementAndGet();
+                here.incrementAndGet();
+            }
+            delivery.next();
+        });
+        return here;
+    }
+
+    /**
+     * Write a UBPR bulk zip for a quarter, adding its entries, as zip file name and entry path, to entries
+     */
+    private static void writeZip(LocalDate quarter, Set<String> entries) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(corpus.resolve(zipName(quarter)))))) {
+            for (int bank = 0; bank < BANKS; bank++) {
+                final int rssd = 10_000 + bank;
+                final String name = "FFIEC CDR UBPR Facsimile " + rssd + "(ID RSSD) " + quarter.format(FILE_DATE) + ".XBRL.xml";
+                out.putNextEntry(new ZipEntry(name));
+                out.write(ubpr(rssd, quarter));
+                out.closeEntry();
+                entries.add(zipName(quarter) + "/" + name);
+            }
+        }
+    }
+
+    private static String zipName(LocalDate quarter) {
+        return "FFIEC CDR UBPR XBRL Facsimile All Banks " + quarter.format(FILE_DATE) + ".zip";
+    }
+
+    private static byte[] ubpr(int rssd, LocalDate quarter) {
+        final String context = "CI_" + rssd + "_" + quarter;
+        return ("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                + "<xbrl xmlns=\"http://www.xbrl.org/2003/instance\" xmlns:iso4217=\"http://www.xbrl.org/2003/iso4217\" "
+                + "xmlns:uc=\"http://www.cdr.ffiec.gov/xbrl/ubpr/v122/Concepts\">\n"
+                + "  <context id=\"" + context + "\"><entity><identifier scheme=\"http://www.ffiec.gov/cdr\">" + rssd
+                + "</identifier></entity><period><instant>" + quarter + "</instant></period></context>\n"
+                + "  <unit id=\"USD\"><measure>iso4217:USD</measure></unit>\n"
+                + "  <uc:RSSD9001 contextRef=\"" + context + "\">" + rssd + "</uc:RSSD9001>\n"
+                + "  <uc:UBPR9999 contextRef=\"" + context + "\">" + quarter + "</uc:UBPR9999>\n"
+                + "  <uc:UBPR2170 contextRef=\"" + context + "\" unitRef=\"USD\" decimals=\"-3\">" + rssd * 1000L + "</uc:UBPR2170>\n"
+                + "</xbrl>\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A sink that keeps the path of every filing sent to it and acknowledges every flush
+     */
+    static class RecordingSinkVerticle extends XBRLImportVerticle {
+        final Set<String> received = ConcurrentHashMap.newKeySet();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicInteger flushes = new AtomicInteger();
+        final List<Integer> receivedAtFlush = new CopyOnWriteArrayList<>();
+
+        RecordingSinkVerticle(String busAddress) {
+            super(busAddress);
+        }
+
+        @Override
+        protected SimpleFileVisitor<Path> getPublishingVisitor() {
+            return new UBPRPublishingVisitor(FileSystems.getDefault().getPathMatcher("glob:/**.xml"), vertx.eventBus(), listenerAddress);
+        }
+
+        @Override
+        public void start(Promise<Void> p) {
+            vertx.eventBus().<XBRLFiling>localConsumer(listenerAddress, message -> {
+                final XBRLFiling filing = message.body();
+                if (filing.isFlush()) {
+                    receivedAtFlush.add(received.size());
+                    flushes.incrementAndGet();
+                    message.reply(null);
+                    return;
+                }
+                filingConsumed();
+                if (!received.add(zipName(filing.getReportedOn()) + filing.getPath())) {
+                    duplicates.incrementAndGet();
+                }
+            });
+            listenForZips();
+            p.complete();
+        }
+    }
+}
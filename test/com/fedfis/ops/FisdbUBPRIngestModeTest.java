@@ -0,0 +1,182 @@
+package com.fedfis.ops;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.pgclient.PgConnectOptions;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Imports the same UBPR filings into scratchpad.ubpr through the insert and copy pgIngestModes and compares the rows
+ * <p>
+ * Needs a PostgreSQL the test may create databases on, named by pgConnectionUri as a system property or
+ * PG_CONNECTION_URI in the environment, e.g. mvn test -DpgConnectionUri=postgresql://postgres@localhost:5432/postgres;
+ * without one the test is skipped. Each mode loads a database of its own, created for the run and dropped after it.
+ * <p>
+ * Filings go straight to FisdbUBPRImportVerticle's listenerAddress, as a walk publishes them, in two imports: the
+ * second overwrites part of the first, and sends one bank twice so the row published last has to win, within a batch
+ * for COPY's DISTINCT ON and across batches for both modes' ON CONFLICT.
+ */
+class FisdbUBPRIngestModeTest {
+    private static final int BANKS = 240;
+    private static final List<LocalDate> QUARTERS = List.of(LocalDate.parse("2021-06-30"), LocalDate.parse("2021-09-30"));
+    private static String pgConnectionUri;
+    private static Vertx vertx;
+
+    @BeforeAll
+    static void connect() {
+        pgConnectionUri = System.getProperty(XBRLImportConfig.CFG_PGCONNECTIONURI, System.getenv("PG_CONNECTION_URI"));
+        Assumptions.assumeTrue(pgConnectionUri != null, "no pgConnectionUri to test against");
+        vertx = Vertx.vertx();
+        XBRLFilingCodec.register(vertx);
+    }
+
+    @AfterAll
+    static void close() throws Exception {
+        if (vertx != null) {
+            vertx.close().toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void insertAndCopyStoreTheSameRows() throws Exception {
+        final List<String> inserted = load(XBRLImportConfig.PGINGEST_INSERT);
+        final List<String> copied = load(XBRLImportConfig.PGINGEST_COPY);
+
+        assertEquals(BANKS * QUARTERS.size() + 1, inserted.size(), "rows stored with insert");
+        assertTrue(inserted.stream().anyMatch(row -> row.startsWith("1000|2021-09-30|") && row.contains("\"UBPRE013\": 3")),
+                "the filing published last wins");
+        assertTrue(inserted.stream().noneMatch(row -> row.contains("stale")), "existing rows are overwritten");
+        assertEquals(inserted, copied);
+    }
+
+    /**
+     * Import the filings into a new database with one ingest mode
+     *
+     * @return The scratchpad.ubpr rows as rssd_id|reported_on|ubpr, in key order
+     */
+    private static List<String> load(String mode) throws Exception {
+        final String database = "ubpr_ingest_" + mode + "_" + ProcessHandle.current().pid();
+        execute(pgConnectionUri, "DROP DATABASE IF EXISTS " + database, "CREATE DATABASE " + database);
+        final String databaseUri = uri(database);
+        try {
+            execute(databaseUri, "CREATE SCHEMA scratchpad",
+                    "CREATE TABLE scratchpad.ubpr (rssd_id int4 NOT NULL, ubpr jsonb, reported_on date NOT NULL, PRIMARY KEY (rssd_id, reported_on))",
+                    // a row from an earlier import, which the filings overwrite
+                    "INSERT INTO scratchpad.ubpr VALUES (1001, '{\"note\": \"stale\"}', '2021-06-30')",
+                    // and one they don't touch
+                    "INSERT INTO scratchpad.ubpr VALUES (999, '{\"RSSD9001\": 999}', '2021-03-31')");
+
+            final FisdbUBPRImportVerticle sink = new FisdbUBPRImportVerticle("xbrl.uri.listen.test." + mode);
+            final String deployment = vertx.deployVerticle(sink, new DeploymentOptions().setConfig(new JsonObject()
+                    .put(XBRLImportConfig.CFG_PGCONNECTIONURI, databaseUri)
+                    .put(XBRLImportConfig.CFG_PGINGESTMODE, mode)
+                    .put(XBRLImportConfig.CFG_FANOUT, false)
+                    .put(XBRLImportConfig.CFG_PGBATCHSIZE, 100)
+                    .put(XBRLImportConfig.CFG_PGMAXINFLIGHT, 2))).toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+            try {
+                for (int i = 0; i < BANKS; i++) {
+                    for (LocalDate quarter : QUARTERS) {
+                        publish(sink, filing(1000 + i, quarter, 1));
+                    }
+                }
+                assertNull(flush(sink), "first import stored");
+                for (int i = 0; i < BANKS; i += 3) {
+                    publish(sink, filing(1000 + i, QUARTERS.get(1), 2));
+                }
+                publish(sink, filing(1000, QUARTERS.get(1), 3));
+                assertNull(flush(sink), "second import stored");
+            } finally {
+                vertx.undeploy(deployment).toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS);
+            }
+            return rows(databaseUri);
+        } finally {
+            execute(pgConnectionUri, "DROP DATABASE IF EXISTS " + database);
+        }
+    }
+
+    /**
+     * A UBPR filing with every kind of fact; revision changes some of its values
+     */
+    private static XBRLFiling filing(int rssdId, LocalDate quarter, int revision) {
+        final XBRLFiling.Builder filing = XBRLFiling.builder(XBRLFiling.UBPR, quarter,
+                "/FFIEC CDR UBPR Facsimile " + rssdId + "(ID RSSD) " + quarter + ".XBRL.xml");
+        final ConceptDictionary dictionary = filing.getDictionary();
+        filing.add(dictionary.idOf(XBRLImportConfig.RSSD_9001), rssdId)
+                .add(dictionary.idOf(XBRLImportConfig.UBPR_9999), quarter.toString())
+                .add(dictionary.idOf("UBPRE013"), (long) revision)
+                .add(dictionary.idOf("UBPR2170"), 1_000_000_000L * rssdId + revision, 1000)
+                .add(dictionary.idOf("UBPRE630"), new BigDecimal("12.3456").add(BigDecimal.valueOf(rssdId, 4)))
+                .add(dictionary.idOf("UBPRD659"), new BigDecimal("123456789012345678901234567890.123456789"))
+                .add(dictionary.idOf("UBPR9304"), rssdId % 2 == 0)
+                .add(dictionary.idOf("UBPRTEXT"), "Bank \"" + rssdId + "\" é€\n\ttab \\ slash");
+        return filing.build();
+    }
+
+    private static void publish(FisdbUBPRImportVerticle sink, XBRLFiling filing) {
+        vertx.eventBus().send(sink.listenerAddress, filing);
+    }
+
+    /**
+     * Send the flush marker, as a walk does at the end of a zip
+     *
+     * @return Body of the answer: null once everything published before it is stored
+     */
+    private static Object flush(FisdbUBPRImportVerticle sink) throws Exception {
+        return vertx.eventBus().request(sink.listenerAddress, XBRLFiling.flush(XBRLFiling.UBPR))
+                .toCompletionStage().toCompletableFuture().get(60, TimeUnit.SECONDS).body();
+    }
+
+    private static List<String> rows(String databaseUri) throws SQLException {
+        final List<String> rows = new ArrayList<>();
+        try (Connection connection = connection(databaseUri);
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT rssd_id, reported_on, ubpr::text FROM scratchpad.ubpr ORDER BY rssd_id, reported_on")) {
+            while (rs.next()) {
+                rows.add(rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3));
+            }
+        }
+        return rows;
+    }
+
+    private static void execute(String uri, String... statements) throws SQLException {
+        try (Connection connection = connection(uri); Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    private static Connection connection(String uri) throws SQLException {
+        final PgConnectOptions options = PgConnectOptions.fromUri(uri);
+        return DriverManager.getConnection("jdbc:postgresql://" + options.getHost() + ":" + options.getPort() + "/" + options.getDatabase(),
+                options.getUser(), options.getPassword());
+    }
+
+    /**
+     * pgConnectionUri, naming another database on the same server
+     */
+    private static String uri(String database) {
+        final PgConnectOptions options = PgConnectOptions.fromUri(pgConnectionUri);
+        return "postgresql://" + options.getUser() + (options.getPassword() == null ? "" : ":" + options.getPassword())
+                + "@" + options.getHost() + ":" + options.getPort() + "/" + database;
+    }
+}